@@ -0,0 +1,157 @@
+package com.orbitz.consul;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.catalog.CatalogService;
+import com.orbitz.consul.option.QueryOptions;
+
+import retrofit2.Retrofit;
+
+/**
+ * CatalogClient answering getService()/getServices() from memory, so the
+ * discovery hot path can be benchmarked w/o a Consul agent or any HTTP.
+ *
+ * Lives in com.orbitz.consul as CatalogClient's only constructor is
+ * package private. The Retrofit instance is never used.
+ *
+ * Like Consul 1.2.3+ every ?tag= in the QueryOptions is applied.
+ *
+ * @author bitsofinfo
+ *
+ */
+public class InMemoryCatalogClient extends CatalogClient {
+
+    private final Map<String,List<CatalogService>> catalog = new ConcurrentHashMap<String,List<CatalogService>>();
+    private final AtomicLong index = new AtomicLong(1);
+    private final AtomicLong requests = new AtomicLong();
+    private volatile long latencyMillis = 0;
+
+    public InMemoryCatalogClient() {
+        super(new Retrofit.Builder().baseUrl("http://localhost/").build());
+    }
+
+    /**
+     * Replaces the entries for the given catalog service name
+     *
+     * @param serviceName
+     * @param services
+     * @return
+     */
+    public InMemoryCatalogClient put(String serviceName, List<CatalogService> services) {
+        catalog.put(serviceName, Collections.unmodifiableList(new ArrayList<CatalogService>(services)));
+        index.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Groups the given entries by their service name and put()s each group
+     *
+     * @param services
+     * @return
+     */
+    public InMemoryCatalogClient putAll(List<CatalogService> services) {
+        Map<String,List<CatalogService>> byName = new LinkedHashMap<String,List<CatalogService>>();
+        for (CatalogService service : services) {
+            List<CatalogService> entries = byName.get(service.getServiceName());
+            if (entries == null) {
+                entries = new ArrayList<CatalogService>();
+                byName.put(service.getServiceName(), entries);
+            }
+            entries.add(service);
+        }
+        for (Map.Entry<String,List<CatalogService>> entry : byName.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * Simulated agent round trip, each getService()/getServices() sleeps this long
+     *
+     * @param latencyMillis
+     * @return
+     */
+    public InMemoryCatalogClient setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    private void roundTrip() {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return number of getService()/getServices() calls answered
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public ConsulResponse<List<CatalogService>> getService(String service) {
+        return getService(service, QueryOptions.BLANK);
+    }
+
+    @Override
+    public ConsulResponse<List<CatalogService>> getService(String service, QueryOptions queryOptions) {
+        requests.incrementAndGet();
+        roundTrip();
+
+        List<CatalogService> entries = catalog.get(service);
+        if (entries == null) {
+            entries = Collections.emptyList();
+        }
+
+        List<String> tags = queryOptions.getTag();
+        if (!tags.isEmpty()) {
+            List<CatalogService> filtered = new ArrayList<CatalogService>(entries.size());
+            for (CatalogService entry : entries) {
+                if (entry.getServiceTags().containsAll(tags)) {
+                    filtered.add(entry);
+                }
+            }
+            entries = filtered;
+        }
+
+        return new ConsulResponse<List<CatalogService>>(entries, 0, true, BigInteger.valueOf(index.get()));
+    }
+
+    @Override
+    public ConsulResponse<Map<String,List<String>>> getServices() {
+        return getServices(QueryOptions.BLANK);
+    }
+
+    @Override
+    public ConsulResponse<Map<String,List<String>>> getServices(QueryOptions queryOptions) {
+        requests.incrementAndGet();
+        roundTrip();
+
+        Map<String,List<String>> services = new LinkedHashMap<String,List<String>>();
+        for (Map.Entry<String,List<CatalogService>> entry : catalog.entrySet()) {
+            Set<String> tags = new LinkedHashSet<String>();
+            for (CatalogService service : entry.getValue()) {
+                tags.addAll(service.getServiceTags());
+            }
+            services.put(entry.getKey(), new ArrayList<String>(tags));
+        }
+
+        return new ConsulResponse<Map<String,List<String>>>(services, 0, true, BigInteger.valueOf(index.get()));
+    }
+
+}
@@ -0,0 +1,112 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.catalog.CatalogService;
+
+/**
+ * Cost of turning raw catalog entries into ServiceInfos, per catalog entry
+ * (OperationsPerInvocation = ENTRIES) so that w/ the GC profiler
+ * "gc.alloc.rate.norm" reads as bytes allocated per catalog entry.
+ *
+ * - legacyMatch: the previous split(":") + boxed ports.contains() + containsAll() matching
+ * - compiledMatch: CatalogEntryMatcher, same decisions
+ * - toServiceInfos: the full conversion incl. building ServiceInfos for matches
+ *
+ * The synthetic catalog has 4 ports per container, 2 of which we care about,
+ * and 1 in 4 containers lacks one of the required tags.
+ *
+ * Run: gradle jmh -PjmhArgs="CatalogEntryProcessingBenchmark -prof gc"
+ *  or: main() below which adds the GC profiler
+ *
+ * @author bitsofinfo
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogEntryProcessingBenchmark {
+
+    static final int ENTRIES = 20000;
+
+    private ConsulResponse<List<CatalogService>> response;
+    private Collection<Integer> ports;
+    private Collection<String> mustMatchTags;
+    private CatalogEntryMatcher matcher;
+    private ServiceNameStrategyBase strategy;
+
+    @Setup
+    public void setup() {
+        this.response = new ConsulResponse<List<CatalogService>>(SyntheticCatalog.generate(ENTRIES, new int[]{8080, 8443, 9090, 5701}, false, 0, 1),
+                                                                      0, true, BigInteger.ONE);
+        this.ports = new ArrayList<Integer>(Arrays.asList(8080, 8443));
+        this.mustMatchTags = new ArrayList<String>(Arrays.asList("dev", "my-app"));
+        this.matcher = new CatalogEntryMatcher(this.ports, this.mustMatchTags);
+        this.strategy = new OneServiceNameMultiPortStrategy();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public void legacyMatch(Blackhole bh) {
+        List<CatalogService> entries = response.getResponse();
+        for (CatalogService srv : entries) {
+            if (srv.getServiceTags().containsAll(mustMatchTags)) {
+                int mappedPort = Integer.valueOf(srv.getServiceId().split(":")[2]);
+                bh.consume(ports.contains(mappedPort));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public void compiledMatch(Blackhole bh) {
+        List<CatalogService> entries = response.getResponse();
+        for (int i=0, n=entries.size(); i<n; i++) {
+            CatalogService srv = entries.get(i);
+            if (matcher.matchesTags(srv.getServiceTags())) {
+                bh.consume(matcher.matchesPort(CatalogEntryMatcher.parseMappedPort(srv.getServiceId())));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public List<ServiceInfo> toServiceInfos() throws Exception {
+        return strategy.toServiceInfos(response, "my-service", ports, mustMatchTags);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                                .include(CatalogEntryProcessingBenchmark.class.getSimpleName())
+                                .addProfiler(GCProfiler.class)
+                                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,127 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * ConsistentHashRing lookup throughput and rebuild cost
+ *
+ * - lookup: get() of a (precomputed) key, "-prof gc" should show no allocation
+ * - fullRebuild: a new ring from all nodes, what rebuilding from scratch costs
+ * - joinLeave: incremental update() where one node leaves and another joins
+ * - unchanged: update() w/ the same membership (i.e. a poll where nothing changed)
+ *
+ * Run: gradle jmh -PjmhArgs="ConsistentHashRingBenchmark -prof gc"
+ *      gradle jmh -PjmhArgs="ConsistentHashRingBenchmark -p nodes=10000 -p virtualNodes=200"
+ *
+ * @author bitsofinfo
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsistentHashRingBenchmark {
+
+    private static final int KEYS = 4096; // power of 2
+
+    @Param({"1000", "10000"})
+    public int nodes;
+
+    @Param({"100"})
+    public int virtualNodes;
+
+    private List<ServiceInfo> all;
+    private List<ServiceInfo> oneReplaced;
+    private String[] keys;
+
+    private ConsistentHashRing ring;
+    private ConsistentHashRing churning;
+    private boolean replaced = false;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        this.all = new ArrayList<ServiceInfo>(nodes);
+        for (int i=0; i<nodes; i++) {
+            all.add(node(i));
+        }
+        this.oneReplaced = new ArrayList<ServiceInfo>(all);
+        this.oneReplaced.set(nodes / 2, node(nodes));
+
+        this.keys = new String[KEYS];
+        for (int k=0; k<KEYS; k++) {
+            keys[k] = "session-" + k;
+        }
+
+        this.ring = new ConsistentHashRing(virtualNodes, ConsistentHashRing.FNV1A_64);
+        this.ring.update(all);
+        this.churning = new ConsistentHashRing(virtualNodes, ConsistentHashRing.FNV1A_64);
+        this.churning.update(all);
+    }
+
+    private static ServiceInfo node(int i) throws Exception {
+        return new ServiceInfo(SyntheticCatalog.SERVICE_NAME, "host" + (i % 100) + ":container_" + i + ":8080",
+                               InetAddress.getByAddress(new byte[]{10, (byte)(i >> 16), (byte)(i >> 8), (byte)i}),
+                               32000 + (i % 30000), 8080, Arrays.asList("my-app", "dev", "node-" + i));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public ServiceInfo lookup() {
+        next = (next + 1) & (KEYS - 1);
+        return ring.get(keys[next]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ConsistentHashRing fullRebuild() {
+        ConsistentHashRing rebuilt = new ConsistentHashRing(virtualNodes, ConsistentHashRing.FNV1A_64);
+        rebuilt.update(all);
+        return rebuilt;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ConsistentHashRing joinLeave() {
+        replaced = !replaced;
+        churning.update(replaced ? oneReplaced : all);
+        return churning;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ConsistentHashRing unchanged() {
+        ring.update(all);
+        return ring;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                                .include(ConsistentHashRingBenchmark.class.getSimpleName())
+                                .addProfiler(GCProfiler.class)
+                                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,115 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.orbitz.consul.InMemoryCatalogClient;
+
+/**
+ * A burst of threads all discovering the same peers, w/ and w/o
+ * single flight coalescing (what ConsulDiscovery._discover() does unless
+ * setCoalesceRequests(false)), against an InMemoryCatalogClient that
+ * simulates the agent round trip.
+ *
+ * Besides discovery throughput the "agentRequests" counter reports how
+ * many requests actually reached the agent: uncoalesced it equals the
+ * number of discoveries, coalesced it collapses towards one per round
+ * trip no matter how many threads are calling.
+ *
+ * Run: gradle jmh -PjmhArgs="RequestCoalescingBenchmark"
+ *      gradle jmh -PjmhArgs="RequestCoalescingBenchmark -t 64 -p latencyMillis=5"
+ *
+ * @author bitsofinfo
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(16)
+@Fork(1)
+public class RequestCoalescingBenchmark {
+
+    @Param({"1000"})
+    public int entries;
+
+    @Param({"0", "1", "5"})
+    public long latencyMillis;
+
+    private Collection<Integer> ports = Arrays.asList(8080, 8443);
+    private Collection<String> mustMatchTags = Arrays.asList("my-app", "dev");
+    private List<Object> key = Arrays.<Object>asList(SyntheticCatalog.SERVICE_NAME, mustMatchTags);
+
+    private InMemoryCatalogClient catalog;
+    private OneServiceNameMultiPortStrategy strategy;
+    private SingleFlight<List<Object>,Collection<ServiceInfo>> inFlight;
+
+    /**
+     * Per thread, JMH sums these across threads
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+
+        public long agentRequests;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            agentRequests = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        this.catalog = new InMemoryCatalogClient()
+                            .putAll(SyntheticCatalog.generate(entries, new int[]{8080, 8443}, false, 0, 1))
+                            .setLatencyMillis(latencyMillis);
+        this.strategy = new OneServiceNameMultiPortStrategy();
+        this.inFlight = new SingleFlight<List<Object>,Collection<ServiceInfo>>();
+    }
+
+    private Collection<ServiceInfo> fetch(Counters counters) throws Exception {
+        counters.agentRequests++;
+        return strategy.discover(catalog, SyntheticCatalog.SERVICE_NAME, ports, mustMatchTags);
+    }
+
+    @Benchmark
+    public Collection<ServiceInfo> uncoalesced(Counters counters) throws Exception {
+        return fetch(counters);
+    }
+
+    @Benchmark
+    public Collection<ServiceInfo> coalesced(Counters counters) throws Exception {
+        // only the thread actually running the fetch counts the agent request
+        return inFlight.execute(key, () -> fetch(counters));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                                .include(RequestCoalescingBenchmark.class.getSimpleName())
+                                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.orbitz.consul.InMemoryCatalogClient;
+import com.orbitz.consul.model.catalog.CatalogService;
+
+/**
+ * End to end ServiceNameStrategy.discover() over synthetic catalogs served
+ * by an InMemoryCatalogClient, i.e. everything but the HTTP round trip.
+ *
+ * Reports throughput and sampled latency (incl. percentiles), add
+ * "-prof gc" for allocation (main() below does this).
+ *
+ * Parameters:
+ * - entries: total catalog entries (10 .. 50k)
+ * - portsPerContainer: mapped ports per container (1-4), 8080 + 8443 are discovered
+ * - extraTags/tagCardinality: how many additional tags each entry carries
+ *   and how many distinct values they are drawn from
+ *
+ * Run: gradle jmh -PjmhArgs="ServiceNameStrategyBenchmark -prof gc"
+ *      gradle jmh -PjmhArgs="ServiceNameStrategyBenchmark -p entries=50000"
+ *
+ * @author bitsofinfo
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceNameStrategyBenchmark {
+
+    private static final int[] MAPPED_PORTS = new int[]{8080, 8443, 9090, 5701};
+
+    @Param({"10", "1000", "10000", "50000"})
+    public int entries;
+
+    @Param({"1", "4"})
+    public int portsPerContainer;
+
+    @Param({"0", "8"})
+    public int extraTags;
+
+    @Param({"16"})
+    public int tagCardinality;
+
+    private Collection<Integer> ports = Arrays.asList(8080, 8443);
+    private Collection<String> mustMatchTags = Arrays.asList("my-app", "dev");
+
+    private InMemoryCatalogClient oneServiceNameCatalog;
+    private InMemoryCatalogClient multiServiceNameCatalog;
+
+    private OneServiceNameMultiPortStrategy oneServiceNameStrategy;
+    private MultiServiceNameSinglePortStrategy multiServiceNameStrategy;
+
+    @Setup
+    public void setup() {
+        int[] mappedPorts = Arrays.copyOf(MAPPED_PORTS, Math.max(1, Math.min(portsPerContainer, MAPPED_PORTS.length)));
+
+        List<CatalogService> single = SyntheticCatalog.generate(entries, mappedPorts, false, extraTags, tagCardinality);
+        List<CatalogService> perPort = SyntheticCatalog.generate(entries, mappedPorts, true, extraTags, tagCardinality);
+
+        this.oneServiceNameCatalog = new InMemoryCatalogClient().putAll(single);
+        this.multiServiceNameCatalog = new InMemoryCatalogClient().putAll(perPort);
+
+        this.oneServiceNameStrategy = new OneServiceNameMultiPortStrategy();
+        this.multiServiceNameStrategy = new MultiServiceNameSinglePortStrategy();
+    }
+
+    @Benchmark
+    public Collection<ServiceInfo> oneServiceNameMultiPort() throws Exception {
+        return oneServiceNameStrategy.discover(oneServiceNameCatalog, SyntheticCatalog.SERVICE_NAME, ports, mustMatchTags);
+    }
+
+    @Benchmark
+    public Collection<ServiceInfo> multiServiceNameSinglePort() throws Exception {
+        return multiServiceNameStrategy.discover(multiServiceNameCatalog, SyntheticCatalog.SERVICE_NAME, ports, mustMatchTags);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                                .include(ServiceNameStrategyBenchmark.class.getSimpleName())
+                                .addProfiler(GCProfiler.class)
+                                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,70 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.orbitz.consul.model.catalog.CatalogService;
+import com.orbitz.consul.model.catalog.ImmutableCatalogService;
+
+/**
+ * Generates Registrator style catalog entries for benchmarks
+ *
+ * Each container gets one entry per mapped port, tagged w/ "my-app",
+ * its own "uniqueContainerId<n>", "dev" (except every 4th container, which
+ * therefore never matches) and extraTags further tags drawn from a pool
+ * of tagCardinality distinct values.
+ *
+ * @author bitsofinfo
+ *
+ */
+class SyntheticCatalog {
+
+    static final String SERVICE_NAME = "my-service";
+
+    /**
+     *
+     * @param entries total number of entries to generate
+     * @param mappedPorts ports each container exposes
+     * @param perPortServiceNames true for "<serviceName>-<port>" names (MultiServiceNameSinglePortStrategy)
+     *                            false for a single service name (OneServiceNameMultiPortStrategy)
+     * @param extraTags number of additional tags per entry
+     * @param tagCardinality number of distinct additional tags
+     * @return
+     */
+    static List<CatalogService> generate(int entries,
+                                         int[] mappedPorts,
+                                         boolean perPortServiceNames,
+                                         int extraTags,
+                                         int tagCardinality) {
+
+        List<CatalogService> catalog = new ArrayList<CatalogService>(entries);
+
+        for (int i=0; i<entries; i++) {
+            int container = i / mappedPorts.length;
+            int mappedPort = mappedPorts[i % mappedPorts.length];
+            int dockerHost = container % 50;
+
+            ImmutableCatalogService.Builder builder = ImmutableCatalogService.builder()
+                    .node("docker-host-" + dockerHost)
+                    .address("10.0." + ((dockerHost >> 8) & 0xff) + "." + (dockerHost & 0xff))
+                    .serviceName(perPortServiceNames ? SERVICE_NAME + "-" + mappedPort : SERVICE_NAME)
+                    .serviceId("docker-host-" + dockerHost + ":container_" + container + ":" + mappedPort)
+                    .serviceAddress("192.168." + ((container >> 8) & 0xff) + "." + (container & 0xff))
+                    .servicePort(32000 + (i % 30000))
+                    .addServiceTags("my-app", "uniqueContainerId" + container);
+
+            if (container % 4 != 0) {
+                builder.addServiceTags("dev");
+            }
+
+            for (int t=0; t<extraTags; t++) {
+                builder.addServiceTags("tag-" + ((container + (t * 7919)) % Math.max(1, tagCardinality)));
+            }
+
+            catalog.add(builder.build());
+        }
+
+        return catalog;
+    }
+
+}
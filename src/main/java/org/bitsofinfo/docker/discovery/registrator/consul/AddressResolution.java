@@ -0,0 +1,23 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+/**
+ * When discovered ServiceInfo exposed addresses are resolved to InetAddresses. 
+ * IPv4 literals are always parsed directly, this only matters when 
+ * Consul holds hostnames.
+ * 
+ * @see ConsulDiscovery#setAddressResolution(AddressResolution)
+ * @author bitsofinfo
+ *
+ */
+public enum AddressResolution {
+    
+    /** resolved during discovery, discovery fails if any cannot be resolved (default) */
+    EAGER,
+    
+    /** resolved on the first ServiceInfo.getExposedAddress() call */
+    LAZY,
+    
+    /** like LAZY, but resolution is started in the background during discovery */
+    ASYNC
+
+}
@@ -0,0 +1,269 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the ServiceAddress/Address strings found in the Consul catalog
+ * to InetAddresses.
+ *
+ * - IPv4 literals (what Registrator normally registers) are parsed directly
+ *   and never touch the system resolver
+ * - everything else (hostnames, IPv6 literals) goes through InetAddress.getByName(),
+ *   results are held in a bounded cache for ttlMillis so that repeated discoveries
+ *   of the same few hundred peers do not each do a blocking DNS lookup
+ *
+ * Thread safe, a single instance is shared by default (see getDefault())
+ *
+ * @author bitsofinfo
+ *
+ */
+public class AddressResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(AddressResolver.class);
+
+    private static final AddressResolver DEFAULT = new AddressResolver(30000, 4096);
+
+    private static class Entry {
+        final InetAddress address;
+        final long expiresAtNanos;
+
+        Entry(InetAddress address, long expiresAtNanos) {
+            this.address = address;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String,Entry> cache = new ConcurrentHashMap<String,Entry>();
+
+    private final Object prefetchLock = new Object();
+    private Executor prefetchExecutor = null;
+
+    /**
+     *
+     * @param ttlMillis how long a hostname resolution is cached (0 = never cached)
+     * @param maxEntries max number of hostnames cached
+     */
+    public AddressResolver(long ttlMillis, int maxEntries) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the JVM wide shared resolver (30s TTL, max 4096 hostnames)
+     */
+    public static AddressResolver getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Resolves the given host
+     *
+     * @param host IPv4/IPv6 literal or hostname
+     * @return
+     * @throws UnknownHostException
+     */
+    public InetAddress resolve(String host) throws UnknownHostException {
+        return resolve(host, null);
+    }
+
+    /**
+     * Resolves the given host, reporting any actual (uncached) resolution
+     *
+     * @param host IPv4/IPv6 literal or hostname
+     * @param metrics optional
+     * @return
+     * @throws UnknownHostException
+     */
+    public InetAddress resolve(String host, DiscoveryMetrics metrics) throws UnknownHostException {
+
+        InetAddress address = parseIPv4Literal(host);
+        if (address != null) {
+            return address;
+        }
+
+        long now = System.nanoTime();
+
+        Entry entry = cache.get(host);
+        if (entry != null && (entry.expiresAtNanos - now) > 0) {
+            return entry.address;
+        }
+
+        if (metrics == null) {
+            address = InetAddress.getByName(host);
+        } else {
+            long start = System.nanoTime();
+            try {
+                address = InetAddress.getByName(host);
+                metrics.onAddressResolution(host, System.nanoTime() - start, true);
+            } catch(UnknownHostException e) {
+                metrics.onAddressResolution(host, System.nanoTime() - start, false);
+                throw e;
+            }
+        }
+
+        if (ttlNanos > 0) {
+            if (cache.size() >= maxEntries) {
+                evict(now);
+            }
+            cache.put(host, new Entry(address, now + ttlNanos));
+        }
+
+        return address;
+    }
+
+    /**
+     * Resolves the given host in the background (if it is not a literal
+     * and not already cached) so that a later resolve() is a cache hit
+     *
+     * @param host
+     */
+    public void prefetch(String host) {
+        prefetch(host, null);
+    }
+
+    /**
+     * @see #prefetch(String)
+     * @param host
+     * @param metrics optional, reported to if the host is actually resolved
+     */
+    public void prefetch(final String host, final DiscoveryMetrics metrics) {
+        if (host == null || isIPv4Literal(host)) {
+            return;
+        }
+
+        Entry entry = cache.get(host);
+        if (entry != null && (entry.expiresAtNanos - System.nanoTime()) > 0) {
+            return;
+        }
+
+        try {
+            getPrefetchExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        resolve(host, metrics);
+                    } catch(Exception e) {
+                        logger.debug("prefetch() could not resolve " + host + ": " + e.getMessage());
+                    }
+                }
+            });
+        } catch(Exception e) {
+            logger.debug("prefetch() could not schedule resolution of " + host + ": " + e.getMessage());
+        }
+    }
+
+    private Executor getPrefetchExecutor() {
+        synchronized(prefetchLock) {
+            if (prefetchExecutor == null) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                                                                     new LinkedBlockingQueue<Runnable>(),
+                                                                     new DaemonThreadFactory("consul-address-resolver"));
+                executor.allowCoreThreadTimeOut(true);
+                prefetchExecutor = executor;
+            }
+            return prefetchExecutor;
+        }
+    }
+
+    private void evict(long now) {
+        // drop expired first
+        for (Iterator<Entry> itr = cache.values().iterator(); itr.hasNext(); ) {
+            if ((itr.next().expiresAtNanos - now) <= 0) {
+                itr.remove();
+            }
+        }
+
+        // still full, drop arbitrary entries
+        for (Iterator<String> itr = cache.keySet().iterator(); itr.hasNext() && cache.size() >= maxEntries; ) {
+            itr.next();
+            itr.remove();
+        }
+    }
+
+    /**
+     * Drops all cached resolutions
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * @return number of hostnames currently cached (expired or not)
+     */
+    int getCacheSize() {
+        return cache.size();
+    }
+
+    static boolean isIPv4Literal(String host) {
+        return parseIPv4(host) != null;
+    }
+
+    /**
+     * @return the InetAddress for a dotted quad IPv4 literal or null if
+     *         host is anything else. Never calls the system resolver.
+     */
+    static InetAddress parseIPv4Literal(String host) {
+        byte[] bytes = parseIPv4(host);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch(UnknownHostException e) {
+            return null; // cannot happen w/ 4 bytes
+        }
+    }
+
+    private static byte[] parseIPv4(String host) {
+        if (host == null) {
+            return null;
+        }
+
+        int len = host.length();
+        if (len < 7 || len > 15) {
+            return null;
+        }
+
+        byte[] bytes = new byte[4];
+        int octet = 0;
+        int value = 0;
+        int digits = 0;
+
+        for (int i=0; i<len; i++) {
+            char c = host.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits > 0 && value == 0) {
+                    return null; // leading zero, leave it to InetAddress
+                }
+                value = (value * 10) + (c - '0');
+                if (++digits > 3 || value > 255) {
+                    return null;
+                }
+            } else if (c == '.' && digits > 0 && octet < 3) {
+                bytes[octet++] = (byte)value;
+                value = 0;
+                digits = 0;
+            } else {
+                return null;
+            }
+        }
+
+        if (octet != 3 || digits == 0) {
+            return null;
+        }
+        bytes[3] = (byte)value;
+        return bytes;
+    }
+
+}
@@ -0,0 +1,49 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Jittered exponential backoff: the n-th delay is picked uniformly from
+ * [d/2, d] where d = min(max, min * 2^(n-1)), so retrying callers
+ * (i.e. every container on a host after an agent restart) spread out
+ * rather than hitting Consul in lock step.
+ *
+ * Not thread safe, use one per retry loop.
+ *
+ * @author bitsofinfo
+ *
+ */
+class Backoff {
+
+    private final long minMillis;
+    private final long maxMillis;
+    private int attempts = 0;
+
+    public Backoff(long minMillis, long maxMillis) {
+        this.minMillis = Math.max(1, minMillis);
+        this.maxMillis = Math.max(this.minMillis, maxMillis);
+    }
+
+    /**
+     * @return how long to wait before the next attempt
+     */
+    public long nextDelayMillis() {
+        // cap the shift, beyond ~2^30 * min we are at max anyway
+        int shift = Math.min(attempts++, 30);
+        long delay = Math.min(this.maxMillis, this.minMillis << shift);
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    /**
+     * Call after a success, the next delay starts from min again
+     */
+    public void reset() {
+        this.attempts = 0;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+}
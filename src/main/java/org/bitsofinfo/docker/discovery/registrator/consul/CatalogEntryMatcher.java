@@ -0,0 +1,165 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pre-compiled form of the ports + mustMatchTags a catalog entry
+ * has to match, built once per catalog query/watch rather than
+ * re-evaluated per entry:
+ *
+ * - ports are held in a primitive bitset (no Integer boxing, no list scan)
+ * - tags are hashed, each required tag gets one bit in a mask, an entry
+ *   matches when its tags set every bit (no containsAll() list scans)
+ * - the mapped port is parsed straight out of the Registrator serviceId
+ *   (no regex split, no intermediate Strings)
+ *
+ * Immutable and thread safe once built.
+ *
+ * @author bitsofinfo
+ *
+ */
+final class CatalogEntryMatcher {
+
+    private static final long[] NO_PORTS = new long[0];
+
+    private final long[] portBits;
+    private final Collection<Integer> ports;
+
+    // required tag -> bit index, null if no required tags
+    private final Map<String,Integer> tagBits;
+    private final long allTagsMask;
+
+    // > 64 distinct required tags (unlikely), fall back to containsAll()
+    private final Collection<String> mustMatchTags;
+
+    CatalogEntryMatcher(Collection<Integer> ports, Collection<String> mustMatchTags) {
+
+        this.ports = ports;
+
+        int maxPort = -1;
+        if (ports != null) {
+            for (Integer port : ports) {
+                if (port != null && port >= 0) {
+                    maxPort = Math.max(maxPort, port);
+                }
+            }
+        }
+
+        if (maxPort < 0) {
+            this.portBits = NO_PORTS;
+        } else {
+            this.portBits = new long[(maxPort >>> 6) + 1];
+            for (Integer port : ports) {
+                if (port != null && port >= 0) {
+                    this.portBits[port >>> 6] |= (1L << port);
+                }
+            }
+        }
+
+        Map<String,Integer> tagBits = null;
+        if (mustMatchTags != null && !mustMatchTags.isEmpty()) {
+            tagBits = new HashMap<String,Integer>(mustMatchTags.size() * 2);
+            for (String tag : mustMatchTags) {
+                if (!tagBits.containsKey(tag)) {
+                    tagBits.put(tag, tagBits.size());
+                }
+            }
+        }
+
+        if (tagBits != null && tagBits.size() > 64) {
+            this.tagBits = null;
+            this.allTagsMask = 0;
+            this.mustMatchTags = mustMatchTags;
+        } else {
+            this.tagBits = tagBits;
+            this.allTagsMask = (tagBits == null ? 0 : (tagBits.size() == 64 ? -1L : (1L << tagBits.size()) - 1));
+            this.mustMatchTags = null;
+        }
+    }
+
+    /**
+     * @param mappedPort
+     * @return true if mappedPort is one of the ports we care about
+     */
+    boolean matchesPort(int mappedPort) {
+        int word = mappedPort >>> 6;
+        return mappedPort >= 0 && word < portBits.length && (portBits[word] & (1L << mappedPort)) != 0;
+    }
+
+    /**
+     * @param entryTags the catalog entry's tags
+     * @return true if entryTags contain every required tag
+     */
+    boolean matchesTags(List<String> entryTags) {
+        if (this.mustMatchTags != null) {
+            return entryTags != null && entryTags.containsAll(this.mustMatchTags);
+        }
+        if (this.tagBits == null) {
+            return true;
+        }
+        if (entryTags == null) {
+            return false;
+        }
+
+        long mask = 0;
+        // indexed loop, no Iterator allocation
+        for (int i=0, n=entryTags.size(); i<n; i++) {
+            Integer bit = this.tagBits.get(entryTags.get(i));
+            if (bit != null) {
+                mask |= (1L << bit);
+                if (mask == this.allTagsMask) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    Collection<Integer> getPorts() {
+        return ports;
+    }
+
+    /**
+     * Parses the mapped port out of a Registrator serviceId in the format
+     * "<docker-host>:<container-name>:<port>[:udp]" w/o allocating
+     *
+     * @param serviceId
+     * @return the mapped port
+     * @throws NumberFormatException if serviceId is not in that format
+     */
+    static int parseMappedPort(String serviceId) {
+        if (serviceId != null) {
+            int first = serviceId.indexOf(':');
+            int second = (first < 0 ? -1 : serviceId.indexOf(':', first + 1));
+
+            if (second >= 0) {
+                int len = serviceId.length();
+                int port = 0;
+                int digits = 0;
+
+                for (int i = second + 1; i < len; i++) {
+                    char c = serviceId.charAt(i);
+                    if (c == ':') {
+                        break;
+                    }
+                    if (c < '0' || c > '9' || ++digits > 5) {
+                        digits = 0;
+                        break;
+                    }
+                    port = (port * 10) + (c - '0');
+                }
+
+                if (digits > 0) {
+                    return port;
+                }
+            }
+        }
+
+        throw new NumberFormatException("serviceId[" + serviceId + "] is not in the expected " +
+                                        "<docker-host>:<container-name>:<port> format");
+    }
+
+}
@@ -0,0 +1,458 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consistent hash ring over discovered peers, for sharding keys across them.
+ *
+ * Each node (a ServiceInfo, keyed by its serviceId or by its container)
+ * gets virtualNodes points on a 64 bit ring, derived from the configured
+ * HashFunction of its key. A key belongs to the node owning the first
+ * point clockwise of the key's hash.
+ *
+ * The ring is a sorted long[] of points plus a parallel int[] of owners,
+ * published immutably on each update, so get() is a binary search: lock
+ * free, O(log n) and allocation free.
+ *
+ * Updates are incremental: an unchanged membership is a no-op, otherwise
+ * the points of nodes that left are filtered out and those of nodes that
+ * joined are merged in, nodes that stayed are never rehashed.
+ *
+ * Optionally loads are bounded (consistent hashing w/ bounded loads): w/ a
+ * load factor c > 0, acquire() skips clockwise past nodes already holding
+ * more than ceil(c * average) acquired keys. Release via Node.release().
+ *
+ * Feed it via update() or, as a DiscoveryListener, watchPeers(ring)/watchAll(ring).
+ *
+ * @author bitsofinfo
+ *
+ */
+public class ConsistentHashRing implements DiscoveryListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConsistentHashRing.class);
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Hashes node keys and lookup keys onto the ring, must not allocate
+     * for lookups to stay allocation free
+     */
+    public interface HashFunction {
+        public long hash(CharSequence key);
+    }
+
+    /**
+     * 64 bit FNV-1a w/ a murmur3 finalizer (default)
+     */
+    public static final HashFunction FNV1A_64 = new HashFunction() {
+        public long hash(CharSequence key) {
+            long h = 0xcbf29ce484222325L;
+            for (int i=0; i<key.length(); i++) {
+                h = (h ^ key.charAt(i)) * 0x100000001b3L;
+            }
+            return ServiceInfo.mix(h);
+        }
+    };
+
+    /**
+     * What identifies a node on the ring
+     */
+    public enum NodeKey {
+
+        /** ServiceInfo.getServiceId(), one node per discovered service (port) */
+        SERVICE_ID,
+
+        /** the container ("host:container" part of the service id), one node per container */
+        CONTAINER
+    }
+
+    /**
+     * A member of the ring
+     */
+    public class Node {
+
+        private final String key;
+        private volatile ServiceInfo serviceInfo;
+        private final long[] points; // sorted
+        private final AtomicInteger load = new AtomicInteger();
+
+        private Node(String key, ServiceInfo serviceInfo, long[] points) {
+            this.key = key;
+            this.serviceInfo = serviceInfo;
+            this.points = points;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public ServiceInfo getServiceInfo() {
+            return serviceInfo;
+        }
+
+        /**
+         * @return keys acquired but not yet released
+         */
+        public int getLoad() {
+            return load.get();
+        }
+
+        /**
+         * Releases one key acquired via acquire()
+         */
+        public void release() {
+            load.decrementAndGet();
+            totalLoad.decrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return key + "[load=" + load.get() + "]";
+        }
+    }
+
+    /**
+     * Immutable state of the ring
+     */
+    private static class Ring {
+        final Node[] nodes;
+        final Map<String,Node> byKey;
+        final long[] points;
+        final int[] owners; // index into nodes
+
+        Ring(Node[] nodes, Map<String,Node> byKey, long[] points, int[] owners) {
+            this.nodes = nodes;
+            this.byKey = byKey;
+            this.points = points;
+            this.owners = owners;
+        }
+    }
+
+    private static final Ring EMPTY = new Ring(new Node[0], Collections.<String,Node>emptyMap(), new long[0], new int[0]);
+
+    private final int virtualNodes;
+    private final HashFunction hashFunction;
+    private NodeKey nodeKey = NodeKey.SERVICE_ID;
+    private int mappedPort = -1;
+    private double loadFactor = 0;
+
+    private final Object updateLock = new Object();
+    private volatile Ring ring = EMPTY;
+    private final AtomicLong totalLoad = new AtomicLong();
+
+    public ConsistentHashRing() {
+        this(100, FNV1A_64);
+    }
+
+    /**
+     * @param virtualNodes points per node, more spread keys more evenly
+     * @param hashFunction
+     */
+    public ConsistentHashRing(int virtualNodes, HashFunction hashFunction) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+        this.hashFunction = hashFunction;
+    }
+
+    /**
+     * @param key
+     * @return the ServiceInfo of the node owning the key, null if the ring is empty
+     */
+    public ServiceInfo get(CharSequence key) {
+        Node node = getNode(key);
+        return (node != null ? node.serviceInfo : null);
+    }
+
+    /**
+     * @param key
+     * @return the node owning the key, null if the ring is empty
+     */
+    public Node getNode(CharSequence key) {
+        Ring r = this.ring;
+        if (r.points.length == 0) {
+            return null;
+        }
+        return r.nodes[r.owners[indexOf(r.points, hashFunction.hash(key))]];
+    }
+
+    /**
+     * Like getNode() but w/ bounded loads (if a load factor is set) and
+     * counting the key against the returned node's load until released
+     *
+     * @param key
+     * @return the node, call release() on it when done, null if the ring is empty
+     */
+    public Node acquire(CharSequence key) {
+        Ring r = this.ring;
+        int n = r.points.length;
+        if (n == 0) {
+            return null;
+        }
+
+        int i = indexOf(r.points, hashFunction.hash(key));
+        Node node = r.nodes[r.owners[i]];
+
+        if (this.loadFactor > 0) {
+            long capacity = (long)Math.ceil(this.loadFactor * (totalLoad.get() + 1) / r.nodes.length);
+            for (int step=0; step<n && node.load.get() >= capacity; step++) {
+                i = (i + 1 == n ? 0 : i + 1);
+                node = r.nodes[r.owners[i]];
+            }
+        }
+
+        node.load.incrementAndGet();
+        totalLoad.incrementAndGet();
+        return node;
+    }
+
+    /**
+     * @return index of the first point >= hash, wrapping around
+     */
+    private static int indexOf(long[] points, long hash) {
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return (i == points.length ? 0 : i);
+    }
+
+    /**
+     * Updates the membership, only nodes that joined or left change the ring
+     *
+     * @param services i.e. discoverPeers(), filtered by mapped port if one is set
+     */
+    public void update(Collection<ServiceInfo> services) {
+        synchronized(updateLock) {
+            Ring current = this.ring;
+
+            // desired membership, first ServiceInfo per key wins
+            Map<String,ServiceInfo> desired = new LinkedHashMap<String,ServiceInfo>(services.size() * 2);
+            for (ServiceInfo info : services) {
+                if (this.mappedPort >= 0 && info.getMappedPort() != this.mappedPort) {
+                    continue;
+                }
+                String key = keyOf(info);
+                if (!desired.containsKey(key)) {
+                    desired.put(key, info);
+                }
+            }
+
+            // survivors keep their node (and points), ServiceInfo refreshed
+            int[] oldToNew = new int[current.nodes.length];
+            List<Node> nodes = new ArrayList<Node>(desired.size());
+            int removed = 0;
+            for (int i=0; i<current.nodes.length; i++) {
+                Node node = current.nodes[i];
+                ServiceInfo info = desired.remove(node.key);
+                if (info == null) {
+                    oldToNew[i] = -1;
+                    removed++;
+                } else {
+                    node.serviceInfo = info;
+                    oldToNew[i] = nodes.size();
+                    nodes.add(node);
+                }
+            }
+
+            if (removed == 0 && desired.isEmpty()) {
+                return; // same membership
+            }
+
+            // what is left in desired joined
+            int survivors = nodes.size();
+            for (Map.Entry<String,ServiceInfo> joined : desired.entrySet()) {
+                nodes.add(new Node(joined.getKey(), joined.getValue(), pointsOf(joined.getKey())));
+            }
+
+            long[] points = current.points;
+            int[] owners = current.owners;
+
+            if (removed > 0) {
+                int kept = 0;
+                long[] keptPoints = new long[points.length - removed * this.virtualNodes];
+                int[] keptOwners = new int[keptPoints.length];
+                for (int i=0; i<points.length; i++) {
+                    int owner = oldToNew[owners[i]];
+                    if (owner >= 0) {
+                        keptPoints[kept] = points[i];
+                        keptOwners[kept] = owner;
+                        kept++;
+                    }
+                }
+                points = keptPoints;
+                owners = keptOwners;
+            }
+
+            if (nodes.size() > survivors) {
+                Run joined = runOf(nodes, survivors, nodes.size());
+                Run merged = merge(new Run(points, owners), joined);
+                points = merged.points;
+                owners = merged.owners;
+            }
+
+            Map<String,Node> byKey = new HashMap<String,Node>(nodes.size() * 2);
+            for (Node node : nodes) {
+                byKey.put(node.key, node);
+            }
+            this.ring = new Ring(nodes.toArray(new Node[nodes.size()]), byKey, points, owners);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("update() " + nodes.size() + " nodes, " + (nodes.size() - survivors) +
+                             " joined, " + removed + " left, " + points.length + " points");
+            }
+        }
+    }
+
+    /**
+     * Same as update() w/ the snapshot's peers
+     *
+     * @param snapshot
+     */
+    public void update(DiscoverySnapshot snapshot) {
+        update(this.mappedPort >= 0 ? snapshot.getPeers(this.mappedPort) : snapshot.getPeers());
+    }
+
+    private String keyOf(ServiceInfo info) {
+        if (this.nodeKey == NodeKey.CONTAINER) {
+            String containerId = DiscoverySnapshot.getContainerId(info.getServiceId());
+            if (containerId != null) {
+                return containerId;
+            }
+        }
+        return info.getServiceId();
+    }
+
+    /**
+     * @return the node's sorted points, vnode i at mix(hash(key) + i * golden gamma)
+     */
+    long[] pointsOf(String key) {
+        long base = hashFunction.hash(key);
+        long[] points = new long[this.virtualNodes];
+        for (int i=0; i<points.length; i++) {
+            points[i] = ServiceInfo.mix(base + i * GOLDEN_GAMMA);
+        }
+        Arrays.sort(points);
+        return points;
+    }
+
+    /**
+     * Sorted points + owners
+     */
+    private static class Run {
+        final long[] points;
+        final int[] owners;
+
+        Run(long[] points, int[] owners) {
+            this.points = points;
+            this.owners = owners;
+        }
+    }
+
+    /**
+     * @return the merged points of nodes [from, to), owners being their index in nodes
+     */
+    private static Run runOf(List<Node> nodes, int from, int to) {
+        if (to - from == 1) {
+            long[] points = nodes.get(from).points;
+            int[] owners = new int[points.length];
+            Arrays.fill(owners, from);
+            return new Run(points, owners);
+        }
+        int mid = (from + to) >>> 1;
+        return merge(runOf(nodes, from, mid), runOf(nodes, mid, to));
+    }
+
+    private static Run merge(Run a, Run b) {
+        int n = a.points.length + b.points.length;
+        long[] points = new long[n];
+        int[] owners = new int[n];
+        int i = 0, j = 0;
+        for (int k=0; k<n; k++) {
+            if (j >= b.points.length || (i < a.points.length && a.points[i] <= b.points[j])) {
+                points[k] = a.points[i];
+                owners[k] = a.owners[i++];
+            } else {
+                points[k] = b.points[j];
+                owners[k] = b.owners[j++];
+            }
+        }
+        return new Run(points, owners);
+    }
+
+    @Override
+    public void onDiscovery(Collection<ServiceInfo> services) {
+        update(services);
+    }
+
+    @Override
+    public void onError(Exception e) {
+        // keep the ring as is
+        logger.debug("onError() discovery failed, keeping " + this.ring.nodes.length + " nodes: " + e.getMessage());
+    }
+
+    /**
+     * @param key a node key (serviceId or container id)
+     * @return the node or null
+     */
+    public Node getNodeByKey(String key) {
+        return this.ring.byKey.get(key);
+    }
+
+    public List<Node> getNodes() {
+        return Collections.unmodifiableList(Arrays.asList(this.ring.nodes));
+    }
+
+    public int size() {
+        return this.ring.nodes.length;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * What identifies a node (default SERVICE_ID), set before the first update()
+     *
+     * @param nodeKey
+     * @return
+     */
+    public ConsistentHashRing setNodeKey(NodeKey nodeKey) {
+        this.nodeKey = nodeKey;
+        return this;
+    }
+
+    /**
+     * Only place peers w/ this mapped port on the ring (default -1, all)
+     *
+     * @param mappedPort
+     * @return
+     */
+    public ConsistentHashRing setMappedPort(int mappedPort) {
+        this.mappedPort = mappedPort;
+        return this;
+    }
+
+    /**
+     * Bounds each node's acquire()d keys to ceil(loadFactor * average),
+     * i.e. 1.25. Default 0, unbounded
+     *
+     * @param loadFactor
+     * @return
+     */
+    public ConsistentHashRing setLoadFactor(double loadFactor) {
+        this.loadFactor = (loadFactor > 0 ? Math.max(1.0, loadFactor) : 0);
+        return this;
+    }
+
+}
@@ -0,0 +1,181 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.io.Closeable;
+import java.net.URL;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orbitz.consul.CatalogClient;
+import com.orbitz.consul.Consul;
+import com.orbitz.consul.Consul.Builder;
+import com.orbitz.consul.HealthClient;
+import com.orbitz.consul.util.bookend.ConsulBookend;
+import com.orbitz.consul.util.bookend.ConsulBookendContext;
+
+/**
+ * Holds a single long-lived Consul client (and therefore a single
+ * underlying HTTP connection pool w/ keep-alive) for a given
+ * Consul url + acl token combination.
+ *
+ * The Consul client is built lazily on first use and then shared
+ * by all threads until close() is called. A ConsulConnection is
+ * immutable with regards to its url/token, if those change
+ * the owner is expected to close() this one and create a new one.
+ *
+ * @author bitsofinfo
+ *
+ */
+class ConsulConnection implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConsulConnection.class);
+
+    private final URL consulHostPortUrl;
+    private final String consulAclToken;
+    private final Long readTimeoutMillis;
+    private final DiscoveryMetrics metrics;
+
+    private final Object lock = new Object();
+    private volatile Consul consul = null;
+    private volatile boolean closed = false;
+
+    public ConsulConnection(URL consulHostPortUrl, String consulAclToken) {
+        this(consulHostPortUrl, consulAclToken, null);
+    }
+    
+    /**
+     * @param consulHostPortUrl
+     * @param consulAclToken
+     * @param readTimeoutMillis optional (null = client default), must be greater
+     *                          than any blocking query wait time used over this connection
+     */
+    public ConsulConnection(URL consulHostPortUrl, String consulAclToken, Long readTimeoutMillis) {
+        this(consulHostPortUrl, consulAclToken, readTimeoutMillis, null);
+    }
+    
+    /**
+     * @param consulHostPortUrl
+     * @param consulAclToken
+     * @param readTimeoutMillis optional (null = client default), must be greater
+     *                          than any blocking query wait time used over this connection
+     * @param metrics optional, if set every agent request is reported to it
+     */
+    public ConsulConnection(URL consulHostPortUrl, String consulAclToken, Long readTimeoutMillis, DiscoveryMetrics metrics) {
+        this.consulHostPortUrl = consulHostPortUrl;
+        this.consulAclToken = consulAclToken;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the shared Consul client, building it on first call
+     *
+     * @return
+     * @throws Exception
+     */
+    public Consul getConsul() throws Exception {
+        Consul c = this.consul;
+        if (c != null) {
+            return c;
+        }
+
+        synchronized(lock) {
+            if (this.closed) {
+                throw new IllegalStateException("ConsulConnection to " + this.consulHostPortUrl + " is closed");
+            }
+
+            if (this.consul == null) {
+                try {
+                    Builder consulBuilder = Consul.builder();
+
+                    consulBuilder = consulBuilder.withUrl(this.consulHostPortUrl);
+
+                    if (this.consulAclToken != null && !this.consulAclToken.trim().isEmpty()) {
+                        consulBuilder.withAclToken(consulAclToken);
+                    }
+                    
+                    if (this.readTimeoutMillis != null) {
+                        consulBuilder.withReadTimeoutMillis(this.readTimeoutMillis);
+                    }
+                    
+                    if (this.metrics != null) {
+                        consulBuilder.withConsulBookend(new MetricsBookend(this.metrics));
+                    }
+
+                    this.consul = consulBuilder.build();
+                    logger.debug("Built shared Consul client to interrogate Consul @ " + this.consulHostPortUrl);
+
+                } catch(Exception e) {
+                    throw new Exception("Unexpected error building Consul client: " + e.getMessage(),e);
+                }
+            }
+
+            return this.consul;
+        }
+    }
+
+    /**
+     * Reports the path, status and duration of every agent request
+     */
+    private static class MetricsBookend implements ConsulBookend {
+        
+        private static final String START = "metrics.start";
+        private static final String PATH = "metrics.path";
+        
+        private final DiscoveryMetrics metrics;
+        
+        MetricsBookend(DiscoveryMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void pre(String path, ConsulBookendContext context) {
+            context.put(START, System.nanoTime());
+            context.put(PATH, path);
+        }
+
+        @Override
+        public void post(int statusCode, ConsulBookendContext context) {
+            Long start = context.get(START, Long.class).orNull();
+            if (start != null) {
+                metrics.onAgentRequest(context.get(PATH, String.class).orNull(), statusCode, System.nanoTime() - start);
+            }
+        }
+    }
+
+    public CatalogClient getCatalogClient() throws Exception {
+        return getConsul().catalogClient();
+    }
+
+    public HealthClient getHealthClient() throws Exception {
+        return getConsul().healthClient();
+    }
+
+    public URL getConsulHostPortUrl() {
+        return consulHostPortUrl;
+    }
+
+    public String getConsulAclToken() {
+        return consulAclToken;
+    }
+
+    /**
+     * Releases the underlying Consul client, subsequent calls
+     * to getConsul() will fail.
+     */
+    @Override
+    public void close() {
+        synchronized(lock) {
+            this.closed = true;
+            if (this.consul != null) {
+                try {
+                    this.consul.destroy();
+                } catch(Exception e) {
+                    logger.warn("close() error destroying Consul client for " + this.consulHostPortUrl + ": " + e.getMessage(),e);
+                }
+                this.consul = null;
+            }
+        }
+    }
+
+}
@@ -1,18 +1,37 @@
 package org.bitsofinfo.docker.discovery.registrator.consul;
 
+import java.io.Closeable;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.net.HostAndPort;
 import com.orbitz.consul.CatalogClient;
-import com.orbitz.consul.Consul;
-import com.orbitz.consul.Consul.Builder;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.option.ConsistencyMode;
 
 /**
  * Use ConsulDiscovery for finding information about services/ports
@@ -31,10 +50,15 @@ import com.orbitz.consul.Consul.Builder;
  * see: https://github.com/gliderlabs/registrator
  * see: http://gliderlabs.com/registrator/latest/
  * 
+ * A ConsulDiscovery instance lazily builds and then re-uses a single
+ * Consul client (and its HTTP connection pool) across all discover*()
+ * calls, it is safe to share across threads. Call close() when
+ * finished with it to release the underlying client.
+ * 
  * @author bitsofinfo
  *
  */
-public class ConsulDiscovery {
+public class ConsulDiscovery implements Closeable {
     
     private static final Logger logger = LoggerFactory.getLogger(ConsulDiscovery.class);
 
@@ -50,6 +74,59 @@ public class ConsulDiscovery {
     
     private Class<? extends ServiceNameStrategy> serviceNameStrategyClass = null;
     
+    // shared, lazily built Consul client
+    private final Object connectionLock = new Object();
+    private volatile ConsulConnection connection = null;
+    
+    // separate connection for blocking queries which need a longer read timeout
+    private volatile ConsulConnection watchConnection = null;
+    private int watchWaitSeconds = 55;
+    private long watchErrorRetryMillis = 5000;
+    private final List<ServiceWatch> watches = new CopyOnWriteArrayList<ServiceWatch>();
+    
+    // optional additional agents to fail over to (and hedge against)
+    private List<URL> failoverUrls = new ArrayList<URL>();
+    private volatile ConsulEndpoints endpoints = null;
+    private volatile ConsulEndpoints watchEndpoints = null;
+    private int endpointMaxFailures = 3;
+    private long endpointCooldownMillis = 10000;
+    private boolean hedgeRequests = false;
+    private long hedgeMinDelayMillis = 20;
+    
+    // optional snapshot cache, disabled when cacheTtlMillis <= 0
+    private long cacheTtlMillis = 0;
+    private long cacheMaxStaleMillis = 0;
+    private final Object cacheLock = new Object();
+    private volatile DiscoveryCache cache = null;
+    private ExecutorService cacheRefreshExecutor = null;
+    
+    // bounded pool for strategies that query several catalog service names 
+    private int maxConcurrentQueries = 4;
+    private long queryTimeoutMillis = 0;
+    private boolean allowPartialResults = false;
+    private boolean serverSideTagFiltering = true;
+    
+    private ConsistencyMode consistencyMode = ConsistencyMode.DEFAULT;
+    private long maxStaleMillis = 0;
+    
+    private AddressResolver addressResolver = AddressResolver.getDefault();
+    private AddressResolution addressResolution = AddressResolution.EAGER;
+    private volatile DiscoveryMetrics metrics = null;
+    private HealthFilter healthFilter = HealthFilter.NONE;
+    private boolean coalesceRequests = true;
+    private volatile SnapshotStore snapshotStore = null;
+    private final AtomicBoolean fetchingInBackground = new AtomicBoolean(false);
+    private final SingleFlight<List<Object>,Collection<ServiceInfo>> inFlight = new SingleFlight<List<Object>,Collection<ServiceInfo>>();
+    private final Object queryExecutorLock = new Object();
+    private ExecutorService queryExecutor = null;
+    private boolean ownsQueryExecutor = false;
+    
+    // dedicated pool the *Async() methods run blocking Consul calls on
+    private int maxAsyncThreads = 8;
+    private final Object asyncExecutorLock = new Object();
+    private Executor asyncExecutor = null;
+    private boolean ownsAsyncExecutor = false;
+    
     /**
      * Constructor for builder syntax
      */
@@ -134,7 +211,12 @@ public class ConsulDiscovery {
     
     private void logConfiguration() {
         
+        if (!logger.isTraceEnabled()) {
+            return;
+        }
+        
         logger.trace("ConsulDiscovery() configured with: consulHostPortUrl: " + this.consulHostPortUrl + 
+                " failoverUrls: " + failoverUrls +
     			" serviceName: " + serviceName +
     			" portsToDiscover: " + portsToDiscover +
     			" serviceNameStrategyClass: " + serviceNameStrategyClass + 
@@ -151,13 +233,30 @@ public class ConsulDiscovery {
      * @throws Exception
      */
     public Collection<ServiceInfo> discoverMe() throws Exception {
+        if (this.metrics == null) {
+            return me();
+        }
+        return measured("discoverMe", this::me);
+    }
+    
+    private Collection<ServiceInfo> me() throws Exception {
+        
+        DiscoveryCache cache = getCache();
+        if (cache != null) {
+            return cache.getSnapshot().getMe();
+        }
     	
-        // get all with configured tags + our unique id which will
-        // be only us.
+        return _discover(meTags());
+    }
+    
+    /**
+     * @return all configured tags + our unique id which will be only us
+     */
+    private Collection<String> meTags() {
         Collection<String> filters = new ArrayList<String>();
         filters.addAll(this.mustHaveTags);
         filters.add(this.myNodeUniqueTagId);
-        return _discover(filters);
+        return filters;
     }
     
     /**
@@ -170,9 +269,22 @@ public class ConsulDiscovery {
      * @throws Exception
      */
     public Collection<ServiceInfo> discoverMe(int withMappedPort) throws Exception {
+        if (this.metrics == null) {
+            return me(withMappedPort);
+        }
+        return measured("discoverMe", () -> me(withMappedPort));
+    }
+    
+    private Collection<ServiceInfo> me(int withMappedPort) throws Exception {
+        
+        DiscoveryCache cache = getCache();
+        if (cache != null) {
+            return cache.getSnapshot().getMe(withMappedPort);
+        }
+        
         Collection<ServiceInfo> withPort = new ArrayList<ServiceInfo>();
 
-        Collection<ServiceInfo> infos = discoverMe(); 
+        Collection<ServiceInfo> infos = me(); 
         
         for(ServiceInfo info : infos) {
             if (info.getMappedPort() == withMappedPort) {
@@ -191,6 +303,19 @@ public class ConsulDiscovery {
      * @throws Exception
      */
     public Collection<ServiceInfo> discoverPeers() throws Exception {
+        if (this.metrics == null) {
+            return peers();
+        }
+        return measured("discoverPeers", this::peers);
+    }
+    
+    private Collection<ServiceInfo> peers() throws Exception {
+        
+        DiscoveryCache cache = getCache();
+        if (cache != null) {
+            return cache.getSnapshot().getPeers();
+        }
+        
         Collection<ServiceInfo> peers = new ArrayList<ServiceInfo>();
 
         // get all, then filter out everything OTHER than our uniqueId
@@ -214,9 +339,22 @@ public class ConsulDiscovery {
      * @throws Exception
      */
     public Collection<ServiceInfo> discoverPeers(int withMappedPort) throws Exception {
+        if (this.metrics == null) {
+            return peers(withMappedPort);
+        }
+        return measured("discoverPeers", () -> peers(withMappedPort));
+    }
+    
+    private Collection<ServiceInfo> peers(int withMappedPort) throws Exception {
+        
+        DiscoveryCache cache = getCache();
+        if (cache != null) {
+            return cache.getSnapshot().getPeers(withMappedPort);
+        }
+        
         Collection<ServiceInfo> withPort = new ArrayList<ServiceInfo>();
         
-        Collection<ServiceInfo> infos = discoverPeers(); 
+        Collection<ServiceInfo> infos = peers(); 
         
         for(ServiceInfo info : infos) {
             if (info.getMappedPort() == withMappedPort) {
@@ -235,6 +373,19 @@ public class ConsulDiscovery {
      * @throws Exception
      */
     public Collection<ServiceInfo> discoverAll() throws Exception {
+        if (this.metrics == null) {
+            return all();
+        }
+        return measured("discoverAll", this::all);
+    }
+    
+    private Collection<ServiceInfo> all() throws Exception {
+        
+        DiscoveryCache cache = getCache();
+        if (cache != null) {
+            return cache.getSnapshot().getAll();
+        }
+        
         return _discover(this.mustHaveTags); // all
     }
     
@@ -250,9 +401,22 @@ public class ConsulDiscovery {
      * @throws Exception
      */
     public Collection<ServiceInfo> discoverAll(int withMappedPort) throws Exception {
+        if (this.metrics == null) {
+            return all(withMappedPort);
+        }
+        return measured("discoverAll", () -> all(withMappedPort));
+    }
+    
+    private Collection<ServiceInfo> all(int withMappedPort) throws Exception {
+        
+        DiscoveryCache cache = getCache();
+        if (cache != null) {
+            return cache.getSnapshot().getAll(withMappedPort);
+        }
+        
         Collection<ServiceInfo> withPort = new ArrayList<ServiceInfo>();
         
-        Collection<ServiceInfo> infos = discoverAll(); // all
+        Collection<ServiceInfo> infos = all(); // all
         
         for(ServiceInfo info : infos) {
             if (info.getMappedPort() == withMappedPort) {
@@ -263,138 +427,1664 @@ public class ConsulDiscovery {
         return withPort;
     }
     
+    /**
+     * Get everything discoverMe(), discoverPeers() and discoverAll() (and their 
+     * mapped port variants) would return, as an immutable, indexed 
+     * DiscoverySnapshot from a single fetch of the catalog. Lookups on it by
+     * mapped port, tag or container (and me vs peers) never hit Consul and 
+     * are constant time, hold onto it for as long as it is fresh enough.
+     * 
+     * Prefer this over calling several discover*() methods back to back.
+     * 
+     * If the cache is enabled the cached snapshot itself is returned.
+     * 
+     * @return
+     * @throws Exception
+     */
+    public DiscoverySnapshot discoverSnapshot() throws Exception {
+        if (this.metrics == null) {
+            return snapshot();
+        }
+        return measured("discoverSnapshot", this::snapshot);
+    }
     
-    private Collection<ServiceInfo> _discover(Collection<String> mustHaveTags) throws Exception {
-    	
-
-    	logConfiguration();
-    	
+    private DiscoverySnapshot snapshot() throws Exception {
         
-        // initialize the service name strategy
-        ServiceNameStrategy serviceNameStrategy = null;
+        DiscoveryCache cache = getCache();
+        if (cache != null) {
+            return cache.getSnapshot();
+        }
+        
+        return new DiscoverySnapshot(_discover(this.mustHaveTags), this.myNodeUniqueTagId);
+    }
+    
+    
+    /**
+     * Async variant of discoverMe()
+     * 
+     * @see #discoverMe()
+     * @return
+     */
+    public CompletableFuture<Collection<ServiceInfo>> discoverMeAsync() {
+        return async("discoverMe", DiscoverySnapshot::getMe, this::discoverMe);
+    }
+    
+    /**
+     * Async variant of discoverMe(withMappedPort)
+     * 
+     * @see #discoverMe(int)
+     * @param withMappedPort
+     * @return
+     */
+    public CompletableFuture<Collection<ServiceInfo>> discoverMeAsync(int withMappedPort) {
+        return async("discoverMe", snapshot -> snapshot.getMe(withMappedPort), () -> discoverMe(withMappedPort));
+    }
+    
+    /**
+     * Async variant of discoverPeers()
+     * 
+     * @see #discoverPeers()
+     * @return
+     */
+    public CompletableFuture<Collection<ServiceInfo>> discoverPeersAsync() {
+        return async("discoverPeers", DiscoverySnapshot::getPeers, this::discoverPeers);
+    }
+    
+    /**
+     * Async variant of discoverPeers(withMappedPort)
+     * 
+     * @see #discoverPeers(int)
+     * @param withMappedPort
+     * @return
+     */
+    public CompletableFuture<Collection<ServiceInfo>> discoverPeersAsync(int withMappedPort) {
+        return async("discoverPeers", snapshot -> snapshot.getPeers(withMappedPort), () -> discoverPeers(withMappedPort));
+    }
+    
+    /**
+     * Async variant of discoverAll()
+     * 
+     * @see #discoverAll()
+     * @return
+     */
+    public CompletableFuture<Collection<ServiceInfo>> discoverAllAsync() {
+        return async("discoverAll", DiscoverySnapshot::getAll, this::discoverAll);
+    }
+    
+    /**
+     * Async variant of discoverAll(withMappedPort)
+     * 
+     * @see #discoverAll(int)
+     * @param withMappedPort
+     * @return
+     */
+    public CompletableFuture<Collection<ServiceInfo>> discoverAllAsync(int withMappedPort) {
+        return async("discoverAll", snapshot -> snapshot.getAll(withMappedPort), () -> discoverAll(withMappedPort));
+    }
+    
+    /**
+     * Async variant of discoverSnapshot()
+     * 
+     * @see #discoverSnapshot()
+     * @return
+     */
+    public CompletableFuture<DiscoverySnapshot> discoverSnapshotAsync() {
+        return async("discoverSnapshot", snapshot -> snapshot, this::discoverSnapshot);
+    }
+    
+    /**
+     * Runs the discovery reporting its duration (or failure) to our metrics, 
+     * only called when metrics are enabled
+     */
+    private <T> T measured(String method, Callable<T> discovery) throws Exception {
+        DiscoveryMetrics metrics = this.metrics;
+        long start = System.nanoTime();
         try {
-            serviceNameStrategy = this.serviceNameStrategyClass.newInstance();
-            logger.debug("Using ServiceNameStrategy " + this.serviceNameStrategyClass.getSimpleName());
+            T result = discovery.call();
+            metrics.onDiscovery(method, System.nanoTime() - start);
+            return result;
             
         } catch(Exception e) {
-            throw new Exception("Unexpected error creating "
-                    + "ServiceNameStrategy["+this.serviceNameStrategyClass.getName()+"]: " + e.getMessage(),e);
+            metrics.onError(method, e);
+            throw e;
         }
+    }
+    
+    /**
+     * Runs the blocking discovery call on the async executor so the 
+     * caller's thread (i.e. an event loop) is never tied up waiting on
+     * Consul. If the cache holds a snapshot that can be served without 
+     * loading, the returned future is completed from it and no thread hop occurs.
+     * 
+     * @param method reported to our metrics for the cached answer
+     * @param fromSnapshot answers from a cached snapshot
+     * @param discovery the blocking call
+     * @return
+     */
+    private <T> CompletableFuture<T> async(String method, Function<DiscoverySnapshot,T> fromSnapshot, Callable<T> discovery) {
         
+        DiscoveryCache cache = getCache();
+        DiscoverySnapshot snapshot = (cache != null ? cache.getSnapshotIfAvailable() : null);
+        if (snapshot != null) {
+            Callable<T> cached = () -> fromSnapshot.apply(snapshot);
+            return complete(new CompletableFuture<T>(), (this.metrics == null ? cached : () -> measured(method, cached)));
+        }
         
-        // create catalog client
-        CatalogClient catalogClient = null;
-        
+        CompletableFuture<T> future = new CompletableFuture<T>();
         try {
-            Builder consulBuilder = Consul.builder();
-            
-            consulBuilder = consulBuilder.withUrl(this.consulHostPortUrl);
-            
-            if (this.consulAclToken != null && !this.consulAclToken.trim().isEmpty()) {
-            	consulBuilder.withAclToken(consulAclToken);
+            getAsyncExecutor().execute(() -> complete(future, discovery));
+        } catch(Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    
+    private static <T> CompletableFuture<T> complete(CompletableFuture<T> future, Callable<T> discovery) {
+        try {
+            future.complete(discovery.call());
+        } catch(Throwable e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    
+    private Executor getAsyncExecutor() {
+        synchronized(asyncExecutorLock) {
+            if (this.asyncExecutor == null) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(this.maxAsyncThreads, this.maxAsyncThreads, 
+                                                                    60, TimeUnit.SECONDS, 
+                                                                    new LinkedBlockingQueue<Runnable>(),
+                                                                    new DaemonThreadFactory("consul-async-" + this.serviceName));
+                executor.allowCoreThreadTimeOut(true);
+                this.asyncExecutor = executor;
+                this.ownsAsyncExecutor = true;
             }
-            
-            Consul consul = consulBuilder.build();
-            catalogClient = consul.catalogClient();
-            logger.debug("Configured to interrogate Consul @ " + this.consulHostPortUrl);
+            return this.asyncExecutor;
+        }
+    }
+    
+    private void shutdownAsyncExecutor() {
+        synchronized(asyncExecutorLock) {
+            if (this.asyncExecutor != null && this.ownsAsyncExecutor) {
+                ((ExecutorService)this.asyncExecutor).shutdownNow();
+            }
+            this.asyncExecutor = null;
+            this.ownsAsyncExecutor = false;
+        }
+    }
+    
+    private Collection<ServiceInfo> _discover(Collection<String> mustHaveTags) throws Exception {
+        return _discover(this.serviceName, mustHaveTags);
+    }
+    
+    private Collection<ServiceInfo> _discover(String serviceName, Collection<String> mustHaveTags) throws Exception {
+        SnapshotStore store = this.snapshotStore;
+        if (store == null || !serviceName.equals(this.serviceName)) {
+            return live(serviceName, mustHaveTags, null);
+        }
+        
+        // the store holds everything for our service name, narrowed down to the requested tags here
+        if (!store.isLive()) {
+            Collection<ServiceInfo> lastKnownGood = store.getLastKnownGood(getSnapshotKey(), this.addressResolver);
+            if (lastKnownGood != null) {
+                // answer from disk right away while the first live fetch is in flight
+                fetchInBackground(store);
+                return withTags(lastKnownGood, mustHaveTags);
+            }
+        }
+        
+        try {
+            return withTags(live(serviceName, this.mustHaveTags, store), mustHaveTags);
             
         } catch(Exception e) {
-            throw new Exception("Unexpected error building Consul CatalogClient: " + e.getMessage(),e);
+            Collection<ServiceInfo> lastKnownGood = store.getLastKnownGood(getSnapshotKey(), this.addressResolver);
+            if (lastKnownGood == null) {
+                throw e;
+            }
+            logger.warn("_discover() failed, answering from last known good snapshot (" + 
+                        store.getLastKnownGoodAgeMillis() + "ms old) in " + store.getFile() + ": " + e.getMessage());
+            return withTags(lastKnownGood, mustHaveTags);
+        }
+    }
+    
+    private void fetchInBackground(SnapshotStore store) {
+        if (!this.fetchingInBackground.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            getAsyncExecutor().execute(() -> {
+                try {
+                    live(this.serviceName, this.mustHaveTags, store);
+                    
+                    // anything cached before now came from disk
+                    DiscoveryCache cache = this.cache;
+                    if (cache != null) {
+                        cache.invalidateIfStale();
+                    }
+                } catch(Exception e) {
+                    logger.debug("fetchInBackground() initial live fetch failed: " + e.getMessage());
+                } finally {
+                    this.fetchingInBackground.set(false);
+                }
+            });
+        } catch(RuntimeException e) {
+            this.fetchingInBackground.set(false);
+            logger.debug("fetchInBackground() could not schedule initial live fetch: " + e.getMessage());
+        }
+    }
+    
+    private Collection<ServiceInfo> withTags(Collection<ServiceInfo> infos, Collection<String> mustHaveTags) {
+        if (mustHaveTags == this.mustHaveTags) {
+            return infos;
+        }
+        Collection<ServiceInfo> tagged = new ArrayList<ServiceInfo>();
+        for (ServiceInfo info : infos) {
+            if (info.getTags() != null && info.getTags().containsAll(mustHaveTags)) {
+                tagged.add(info);
+            }
+        }
+        return tagged;
+    }
+    
+    /**
+     * Discovery against Consul (never the SnapshotStore), recording successful 
+     * results in the given store if any
+     */
+    private Collection<ServiceInfo> live(String serviceName, Collection<String> mustHaveTags, SnapshotStore store) throws Exception {
+        if (!this.coalesceRequests) {
+            Collection<ServiceInfo> infos = fetch(serviceName, mustHaveTags);
+            if (store != null) {
+                store.update(getSnapshotKey(), infos);
+            }
+            return infos;
+        }
+        
+        // concurrent identical callers share one request, each gets its own copy. 
+        // The store is updated per caller, the shared request may be one w/o a store
+        List<Object> key = Arrays.<Object>asList(serviceName, new ArrayList<String>(mustHaveTags));
+        Collection<ServiceInfo> shared = this.inFlight.execute(key, 
+                () -> Collections.unmodifiableCollection(fetch(serviceName, mustHaveTags)));
+        if (store != null) {
+            store.update(getSnapshotKey(), shared);
+        }
+        return new ArrayList<ServiceInfo>(shared);
+    }
+    
+    private Collection<ServiceInfo> fetch(String serviceName, Collection<String> mustHaveTags) throws Exception {
+    	
+
+    	logConfiguration();
+    	
+        
+        // initialize the service name strategy
+        ServiceNameStrategy serviceNameStrategy = newServiceNameStrategy();
+        
+        
+        // get the shared catalog client (of the best agent if failing over)
+        ConsulEndpoints endpoints = getEndpoints();
+        CatalogClient catalogClient = (endpoints != null ? endpoints.getCatalogClient() : getConnection().getCatalogClient());
+        if (endpoints == null && this.healthFilter != HealthFilter.NONE && serviceNameStrategy instanceof ServiceNameStrategyBase) {
+            ((ServiceNameStrategyBase)serviceNameStrategy).setHealthClient(getConnection().getHealthClient());
         }
         
         // invoke the actual discovery
+        Collection<ServiceInfo> infos;
         try {
-            return serviceNameStrategy.discover(catalogClient, this.serviceName, this.portsToDiscover, mustHaveTags);
+            infos = serviceNameStrategy.discover(catalogClient, serviceName, this.portsToDiscover, mustHaveTags);
         } catch(Exception e) {
             throw new Exception("Unexpected error calling ServiceNameStrategy.discover() " + e.getMessage(),e);
         }
         
+        return infos;
+        
         
     }    
     
-    public ConsulDiscovery setConsulUrl(URL url) {
-    	this.consulHostPortUrl = url;
-    	return this;
+    /**
+     * Same as discoverSnapshot() but for another service name, w/ all our 
+     * other configuration and our shared client. Never cached
+     * 
+     * @see MultiServiceDiscovery
+     * @param serviceName
+     * @return
+     * @throws Exception
+     */
+    DiscoverySnapshot discoverSnapshot(String serviceName) throws Exception {
+        return new DiscoverySnapshot(_discover(serviceName, this.mustHaveTags), this.myNodeUniqueTagId);
     }
     
-    public ConsulDiscovery setConsulAclToken(String token) {
-    	this.consulAclToken = token;
-    	return this;
-    }
-
     /**
-     * @deprecated use setConsulUrl instead
-     * @param consulIp
+     * Lists the service names in the Consul catalog (one /v1/catalog/services 
+     * call) that match the given pattern and could match our must have tags. 
+     * For MultiServiceNameSinglePortStrategy catalog names "<name>-<port>" 
+     * (for our ports to discover) are reported (and matched) as "<name>"
+     * 
+     * @see MultiServiceDiscovery
+     * @param pattern
      * @return
+     * @throws Exception
      */
-    @Deprecated
-    public ConsulDiscovery setConsulIp(String consulIp) {
-        this.consulIp = consulIp;
-        if (this.consulPort > 0) {
-        	try {
-        		this.consulHostPortUrl = new URL("http://"+this.consulIp+":"+this.consulPort);
-	        } catch(Exception e) {
-	    		throw new RuntimeException("Could not construct ConsulDiscovery: " + e.getMessage(),e);
-	    	}
+    Set<String> findServiceNames(Pattern pattern) throws Exception {
+        ConsulEndpoints endpoints = getEndpoints();
+        ConsulResponse<Map<String,List<String>>> resp = (endpoints != null ? 
+                                                            endpoints.execute(consul -> consul.catalogClient().getServices(), true) : 
+                                                            getConnection().getCatalogClient().getServices());
+        
+        boolean portSuffixed = (this.serviceNameStrategyClass != null && 
+                                MultiServiceNameSinglePortStrategy.class.isAssignableFrom(this.serviceNameStrategyClass));
+        
+        Set<String> names = new TreeSet<String>();
+        for (Map.Entry<String,List<String>> service : resp.getResponse().entrySet()) {
+            String name = service.getKey();
+            
+            if (portSuffixed) {
+                String base = null;
+                for (Integer port : this.portsToDiscover) {
+                    String suffix = "-" + port;
+                    if (name.endsWith(suffix)) {
+                        base = name.substring(0, name.length() - suffix.length());
+                        break;
+                    }
+                }
+                if (base == null) {
+                    continue;
+                }
+                name = base;
+            }
+            
+            // tags here are the union across all instances, if not all are
+            // there no instance can match
+            if (service.getValue() != null && !service.getValue().containsAll(this.mustHaveTags)) {
+                continue;
+            }
+            
+            if (pattern.matcher(name).matches()) {
+                names.add(name);
+            }
         }
-        return this;
+        return names;
     }
-
-
+    
     /**
-     * @deprecated use setConsulUrl instead
-     * @param consulPort
+     * Returns the DiscoveryCache, building it on first call, 
+     * or null if caching is disabled
+     * 
      * @return
      */
-    @Deprecated
-    public ConsulDiscovery setConsulPort(int consulPort) {
-        this.consulPort = consulPort;
-        if (this.consulIp != null) {
-        	try {
-        		this.consulHostPortUrl = new URL("http://"+this.consulIp+":"+this.consulPort);
-	        } catch(Exception e) {
-	    		throw new RuntimeException("Could not construct ConsulDiscovery: " + e.getMessage(),e);
-	    	}
+    public DiscoveryCache getCache() {
+        if (this.cacheTtlMillis <= 0) {
+            return null;
+        }
+        
+        DiscoveryCache c = this.cache;
+        if (c != null) {
+            return c;
+        }
+        
+        synchronized(cacheLock) {
+            if (this.cache == null) {
+                if (this.cacheRefreshExecutor == null) {
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, 
+                                                                        new LinkedBlockingQueue<Runnable>(),
+                                                                        new DaemonThreadFactory("consul-cache-refresh-" + this.serviceName));
+                    executor.allowCoreThreadTimeOut(true);
+                    this.cacheRefreshExecutor = executor;
+                }
+                
+                this.cache = new DiscoveryCache(new DiscoveryCache.Loader() {
+                                                    public Collection<ServiceInfo> load() throws Exception {
+                                                        return _discover(mustHaveTags);
+                                                    }
+                                                }, 
+                                                this.myNodeUniqueTagId,
+                                                this.cacheRefreshExecutor, 
+                                                this.cacheTtlMillis, 
+                                                this.cacheMaxStaleMillis);
+                this.cache.setMetrics(this.metrics);
+            }
+            return this.cache;
         }
-        return this;
-    }
-
-
-    public ConsulDiscovery setServiceName(String serviceName) {
-        this.serviceName = serviceName;
-        return this;
     }
-
-
-    public ConsulDiscovery setPortsToDiscover(List<Integer> portsToDiscover) {
-        this.portsToDiscover = portsToDiscover;
-        return this;
+    
+    /**
+     * Drops the cache (if any) as what it holds no longer 
+     * reflects our configuration
+     */
+    private void resetCache() {
+        synchronized(cacheLock) {
+            this.cache = null;
+        }
     }
     
-    public ConsulDiscovery addPortToDiscover(Integer portToDiscover) {
+    private ServiceNameStrategy newServiceNameStrategy() throws Exception {
+        try {
+            ServiceNameStrategy serviceNameStrategy = this.serviceNameStrategyClass.newInstance();
+            logger.debug("Using ServiceNameStrategy " + this.serviceNameStrategyClass.getSimpleName());
+            
+            if (serviceNameStrategy instanceof ServiceNameStrategyBase) {
+                ServiceNameStrategyBase base = (ServiceNameStrategyBase)serviceNameStrategy;
+                base.setQueryExecutor(getQueryExecutor());
+                base.setQueryTimeoutMillis(this.queryTimeoutMillis);
+                base.setAllowPartialResults(this.allowPartialResults);
+                base.setServerSideTagFiltering(this.serverSideTagFiltering);
+                base.setConsistencyMode(this.consistencyMode);
+                base.setMaxStaleMillis(this.maxStaleMillis);
+                base.setAddressResolver(this.addressResolver);
+                base.setAddressResolution(this.addressResolution);
+                base.setMetrics(this.metrics);
+                base.setEndpoints(getEndpoints());
+                base.setHealthFilter(this.healthFilter);
+            }
+            
+            return serviceNameStrategy;
+            
+        } catch(Exception e) {
+            throw new Exception("Unexpected error creating "
+                    + "ServiceNameStrategy["+this.serviceNameStrategyClass.getName()+"]: " + e.getMessage(),e);
+        }
+    }
+    
+    /**
+     * Returns the executor for concurrent catalog queries, building our 
+     * own bounded one on first call unless one was given to us, or null
+     * if concurrent queries are disabled
+     * 
+     * @return
+     */
+    private ExecutorService getQueryExecutor() {
+        synchronized(queryExecutorLock) {
+            if (this.queryExecutor == null && this.maxConcurrentQueries > 1) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(this.maxConcurrentQueries, this.maxConcurrentQueries, 
+                                                                    60, TimeUnit.SECONDS, 
+                                                                    new LinkedBlockingQueue<Runnable>(),
+                                                                    new DaemonThreadFactory("consul-query-" + this.serviceName));
+                executor.allowCoreThreadTimeOut(true);
+                this.queryExecutor = executor;
+                this.ownsQueryExecutor = true;
+            }
+            return this.queryExecutor;
+        }
+    }
+    
+    private void shutdownQueryExecutor() {
+        synchronized(queryExecutorLock) {
+            if (this.queryExecutor != null && this.ownsQueryExecutor) {
+                this.queryExecutor.shutdownNow();
+            }
+            this.queryExecutor = null;
+            this.ownsQueryExecutor = false;
+        }
+    }
+    
+    /**
+     * awaitMe() for all configured ports to discover
+     * 
+     * @see #awaitMe(Collection, long)
+     * @param timeoutMillis
+     * @return
+     * @throws Exception
+     */
+    public Collection<ServiceInfo> awaitMe(long timeoutMillis) throws Exception {
+        return awaitMe(this.portsToDiscover, timeoutMillis);
+    }
+    
+    /**
+     * Blocks until Registrator has registered us, i.e. discoverMe() returns an 
+     * entry for every one of the given mapped ports, and returns what discoverMe() would. 
+     * Use at startup instead of sleeping and re-polling discoverMe().
+     * 
+     * Uses a blocking query watch so it returns as soon as Consul has the 
+     * registration. If the watch can't be started (i.e. the agent is not up yet, 
+     * or the ServiceNameStrategy does not extend ServiceNameStrategyBase) it falls 
+     * back to polling w/ jittered exponential backoff (capped at watchErrorRetryMillis).
+     * Never uses the cache.
+     * 
+     * @param ports mapped ports that must all be visible (null/empty: portsToDiscover)
+     * @param timeoutMillis
+     * @return
+     * @throws TimeoutException if not all ports were visible in time
+     * @throws Exception
+     */
+    public Collection<ServiceInfo> awaitMe(Collection<Integer> ports, long timeoutMillis) throws Exception {
+        if (this.myNodeUniqueTagId == null) {
+            throw new Exception("awaitMe() requires a myNodeUniqueTagId");
+        }
+        
+        final Collection<Integer> required = (ports == null || ports.isEmpty() ? this.portsToDiscover : ports);
+        
+        return await(DiscoveryScope.ME, 
+                     () -> live(this.serviceName, meTags(), null), 
+                     me -> hasAllPorts(me, required), 
+                     0, 
+                     timeoutMillis, 
+                     "mapped ports " + required + " of " + this.myNodeUniqueTagId);
+    }
+    
+    /**
+     * awaitPeers() w/o a settle window, counting peer containers regardless of port
+     * 
+     * @see #awaitPeers(int, int, long, long)
+     * @param minCount
+     * @param timeoutMillis
+     * @return
+     * @throws Exception
+     */
+    public DiscoverySnapshot awaitPeers(int minCount, long timeoutMillis) throws Exception {
+        return awaitPeers(0, minCount, 0, timeoutMillis);
+    }
+    
+    /**
+     * Quorum gate for cluster bootstrap: blocks until at least minCount peer 
+     * containers (other than us) are registered and returns a DiscoverySnapshot
+     * (me + peers from the same catalog read) taken at that moment. Use it to 
+     * pick seed nodes instead of re-polling discoverPeers(port).
+     * 
+     * Driven by a blocking query watch (falling back to polling w/ jittered 
+     * exponential backoff, like awaitMe()). Never uses the cache.
+     * 
+     * With a settleMillis > 0, once minCount is reached we keep waiting until 
+     * membership has not changed for settleMillis, so that a burst of peers 
+     * registering at once yields one snapshot with all of them rather than 
+     * several rejoins. The settle window never extends past the timeout, if 
+     * the timeout hits while settling the latest snapshot is returned.
+     * 
+     * @param withMappedPort only count peers exposing this mapped port (0 = any)
+     * @param minCount
+     * @param settleMillis 
+     * @param timeoutMillis
+     * @return
+     * @throws TimeoutException if fewer than minCount peers were seen in time
+     * @throws Exception
+     */
+    public DiscoverySnapshot awaitPeers(int withMappedPort, int minCount, long settleMillis, long timeoutMillis) throws Exception {
+        final String myId = this.myNodeUniqueTagId;
+        
+        Collection<ServiceInfo> all = await(DiscoveryScope.ALL, 
+                                            () -> live(this.serviceName, this.mustHaveTags, null), 
+                                            infos -> countPeerContainers(infos, myId, withMappedPort) >= minCount, 
+                                            settleMillis, 
+                                            timeoutMillis, 
+                                            minCount + " peers" + (withMappedPort > 0 ? " w/ mapped port " + withMappedPort : ""));
+        
+        return new DiscoverySnapshot(all, myId);
+    }
+    
+    private static int countPeerContainers(Collection<ServiceInfo> infos, String myNodeUniqueTagId, int withMappedPort) {
+        Set<String> containers = new HashSet<String>();
+        for (ServiceInfo info : infos) {
+            if ((withMappedPort <= 0 || info.getMappedPort() == withMappedPort) && 
+                    !info.getTags().contains(myNodeUniqueTagId)) {
+                containers.add(DiscoverySnapshot.getContainerId(info.getServiceId()));
+            }
+        }
+        return containers.size();
+    }
+    
+    /**
+     * Waits for the discovered ServiceInfos (of the given scope) to satisfy the condition,
+     * via a watch or if that can't be started by polling w/ jittered exponential backoff
+     * 
+     * @param scope what the watch should deliver, must match what poll returns
+     * @param poll a direct, uncached discovery
+     * @param condition
+     * @param settleMillis once satisfied, how long there must be no changes (0 = none)
+     * @param timeoutMillis
+     * @param awaiting for the TimeoutException message
+     * @return the first ServiceInfos that satisfy the condition (and settled)
+     * @throws Exception
+     */
+    private Collection<ServiceInfo> await(DiscoveryScope scope, 
+                                          Callable<Collection<ServiceInfo>> poll, 
+                                          Predicate<Collection<ServiceInfo>> condition, 
+                                          long settleMillis,
+                                          long timeoutMillis,
+                                          String awaiting) throws Exception {
+        
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final long settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMillis);
+        
+        // fast path, already satisfied
+        Collection<ServiceInfo> current = null;
+        Exception lastError = null;
+        try {
+            current = poll.call();
+            if (settleNanos <= 0 && condition.test(current)) {
+                return current;
+            }
+        } catch(Exception e) {
+            lastError = e;
+        }
+        
+        final BlockingQueue<Collection<ServiceInfo>> updates = new LinkedBlockingQueue<Collection<ServiceInfo>>();
+        ServiceWatch watch = null;
+        if (this.serviceNameStrategyClass != null && ServiceNameStrategyBase.class.isAssignableFrom(this.serviceNameStrategyClass)) {
+            try {
+                watch = watch(scope, new DiscoveryListener() {
+                    public void onDiscovery(Collection<ServiceInfo> services) {
+                        updates.add(services);
+                    }
+                    public void onError(Exception e) {
+                        // the watch retries on its own
+                    }
+                });
+            } catch(Exception e) {
+                logger.debug("await() could not start watch, polling instead: " + e.getMessage());
+                lastError = e;
+            }
+        }
+        
+        try {
+            Backoff backoff = new Backoff(ServiceWatch.MIN_ERROR_RETRY_MILLIS, this.watchErrorRetryMillis);
+            
+            // when satisfied, until when nothing may change
+            long settledAt = 0;
+            boolean satisfied = (current != null && condition.test(current));
+            if (satisfied) {
+                settledAt = System.nanoTime() + settleNanos;
+            }
+            
+            while (true) {
+                long now = System.nanoTime();
+                if (satisfied && now - settledAt >= 0) {
+                    return current;
+                }
+                
+                long remainingNanos = deadline - now;
+                if (remainingNanos <= 0) {
+                    if (satisfied) {
+                        return current; // timed out while settling
+                    }
+                    throw new TimeoutException("Timed out after " + timeoutMillis + "ms waiting for " + awaiting + 
+                                               ", found: " + (current != null ? current.size() + " ServiceInfos" : "nothing") +
+                                               (lastError != null ? ", last error: " + lastError.getMessage() : ""));
+                }
+                long waitNanos = (satisfied ? Math.min(remainingNanos, settledAt - now) : remainingNanos);
+                
+                Collection<ServiceInfo> update = null;
+                if (watch != null) {
+                    update = updates.poll(waitNanos, TimeUnit.NANOSECONDS);
+                    
+                } else {
+                    Thread.sleep(Math.min(backoff.nextDelayMillis(), Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos))));
+                    try {
+                        update = poll.call();
+                    } catch(Exception e) {
+                        lastError = e;
+                    }
+                }
+                
+                if (update == null || sameServiceInfos(current, update)) {
+                    continue; // no change
+                }
+                
+                current = update;
+                satisfied = condition.test(current);
+                if (satisfied) {
+                    if (settleNanos <= 0) {
+                        return current;
+                    }
+                    settledAt = System.nanoTime() + settleNanos;
+                }
+            }
+            
+        } finally {
+            if (watch != null) {
+                watch.close();
+                this.watches.remove(watch);
+            }
+        }
+    }
+    
+    private static boolean sameServiceInfos(Collection<ServiceInfo> infos1, Collection<ServiceInfo> infos2) {
+        if (infos1 == null || infos2 == null || infos1.size() != infos2.size()) {
+            return infos1 == infos2;
+        }
+        return new HashSet<ServiceInfo>(infos1).containsAll(infos2);
+    }
+    
+    private static boolean hasAllPorts(Collection<ServiceInfo> infos, Collection<Integer> ports) {
+        if (infos == null || infos.isEmpty()) {
+            return false;
+        }
+        for (Integer port : ports) {
+            boolean found = false;
+            for (ServiceInfo info : infos) {
+                if (info.getMappedPort() == port) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Like watchAll() but through the JVM wide WatchHub: every ConsulDiscovery 
+     * in this JVM watching the same query (consul url(s), acl token, service name, 
+     * strategy, ports, tags, health filter, consistency) shares a single blocking 
+     * query loop, which stops once the last subscription is closed. Each update 
+     * is delivered as a DiscoverySnapshot w/ our myNodeUniqueTagId.
+     * 
+     * The shared watch runs on its own copy of our configuration, so it is not 
+     * affected by closing (or reconfiguring) this ConsulDiscovery, close the 
+     * returned subscription instead.
+     * 
+     * @see WatchHub
+     * @param listener
+     * @return
+     * @throws Exception
+     */
+    public WatchHub.Subscription watchShared(SnapshotListener listener) throws Exception {
+        return WatchHub.getDefault().subscribe(this, listener);
+    }
+    
+    /**
+     * Identifies what we would watch, equal for ConsulDiscovery instances whose 
+     * watchAll() would see identical results
+     * 
+     * @return
+     */
+    List<Object> getWatchKey() {
+        return Arrays.<Object>asList(getConsulUrls().toString(), 
+                                     this.consulAclToken,
+                                     this.serviceName,
+                                     (this.serviceNameStrategyClass != null ? this.serviceNameStrategyClass.getName() : null),
+                                     new TreeSet<Integer>(this.portsToDiscover),
+                                     new TreeSet<String>(this.mustHaveTags),
+                                     this.healthFilter,
+                                     this.consistencyMode,
+                                     this.maxStaleMillis);
+    }
+    
+    /**
+     * Identifies what a SnapshotStore holds for us: the watch key w/o the 
+     * acl token, which must not end up on disk
+     * 
+     * @return
+     */
+    String getSnapshotKey() {
+        List<Object> key = new ArrayList<Object>(getWatchKey());
+        key.remove(1); // consulAclToken
+        return key.toString();
+    }
+    
+    /**
+     * @return a new ConsulDiscovery w/ the same configuration (but no 
+     *         myNodeUniqueTagId, connections, cache or executors of its own)
+     */
+    ConsulDiscovery copyConfiguration() {
+        ConsulDiscovery copy = new ConsulDiscovery();
+        copy.consulHostPortUrl = this.consulHostPortUrl;
+        copy.consulAclToken = this.consulAclToken;
+        copy.serviceName = this.serviceName;
+        copy.portsToDiscover = new ArrayList<Integer>(this.portsToDiscover);
+        copy.mustHaveTags = new ArrayList<String>(this.mustHaveTags);
+        copy.serviceNameStrategyClass = this.serviceNameStrategyClass;
+        copy.watchWaitSeconds = this.watchWaitSeconds;
+        copy.watchErrorRetryMillis = this.watchErrorRetryMillis;
+        copy.failoverUrls = new ArrayList<URL>(this.failoverUrls);
+        copy.endpointMaxFailures = this.endpointMaxFailures;
+        copy.endpointCooldownMillis = this.endpointCooldownMillis;
+        copy.hedgeRequests = this.hedgeRequests;
+        copy.hedgeMinDelayMillis = this.hedgeMinDelayMillis;
+        copy.maxConcurrentQueries = this.maxConcurrentQueries;
+        copy.queryTimeoutMillis = this.queryTimeoutMillis;
+        copy.allowPartialResults = this.allowPartialResults;
+        copy.serverSideTagFiltering = this.serverSideTagFiltering;
+        copy.consistencyMode = this.consistencyMode;
+        copy.maxStaleMillis = this.maxStaleMillis;
+        copy.addressResolver = this.addressResolver;
+        copy.addressResolution = this.addressResolution;
+        copy.metrics = this.metrics;
+        copy.healthFilter = this.healthFilter;
+        copy.coalesceRequests = this.coalesceRequests;
+        synchronized(queryExecutorLock) {
+            if (this.queryExecutor != null && !this.ownsQueryExecutor) {
+                copy.queryExecutor = this.queryExecutor; // someone else's, safe to share
+            }
+        }
+        return copy;
+    }
+    
+    public String getServiceName() {
+        return serviceName;
+    }
+    
+    public String getMyNodeUniqueTagId() {
+        return myNodeUniqueTagId;
+    }
+    
+    /**
+     * Watch for changes to ServiceInfo objects that match our configuration for 
+     * matching servicename, tags, ports AND tag "myNodeUniqueTagId". 
+     * 
+     * @see #watchAll(DiscoveryListener)
+     * @param listener
+     * @return
+     * @throws Exception
+     */
+    public ServiceWatch watchMe(DiscoveryListener listener) throws Exception {
+        return watch(DiscoveryScope.ME, listener);
+    }
+    
+    /**
+     * Watch for changes to ServiceInfo objects that match our configuration for 
+     * matching servicename, tags, ports OTHER THAN tag "myNodeUniqueTagId". 
+     * 
+     * @see #watchAll(DiscoveryListener)
+     * @param listener
+     * @return
+     * @throws Exception
+     */
+    public ServiceWatch watchPeers(DiscoveryListener listener) throws Exception {
+        return watch(DiscoveryScope.PEERS, listener);
+    }
+    
+    /**
+     * Same as watchPeers(DiscoveryListener) but reports incremental changes, 
+     * keyed by serviceId, rather than the full set of peers each time
+     * 
+     * @see MembershipTracker
+     * @param listener
+     * @return
+     * @throws Exception
+     */
+    public ServiceWatch watchPeers(MembershipListener listener) throws Exception {
+        return watch(DiscoveryScope.PEERS, MembershipTracker.asDiscoveryListener(listener));
+    }
+    
+    /**
+     * Same as watchAll(DiscoveryListener) but reports incremental changes, 
+     * keyed by serviceId, rather than the full set of services each time
+     * 
+     * @see MembershipTracker
+     * @param listener
+     * @return
+     * @throws Exception
+     */
+    public ServiceWatch watchAll(MembershipListener listener) throws Exception {
+        return watch(DiscoveryScope.ALL, MembershipTracker.asDiscoveryListener(listener));
+    }
+    
+    /**
+     * Watch for changes to ServiceInfo objects that match our configuration for 
+     * matching servicename, tags, ports (including ourself)
+     * 
+     * Rather than polling, this uses Consul blocking queries (waiting up to
+     * watchWaitSeconds per request) in background daemon thread(s). The listener 
+     * is called with the initial result and then only when that result changes.
+     * 
+     * Requires a ServiceNameStrategy that extends ServiceNameStrategyBase.
+     * 
+     * @param listener
+     * @return the ServiceWatch, close() it to stop watching
+     * @throws Exception
+     */
+    public ServiceWatch watchAll(DiscoveryListener listener) throws Exception {
+        return watch(DiscoveryScope.ALL, listener);
+    }
+    
+    private ServiceWatch watch(DiscoveryScope scope, DiscoveryListener listener) throws Exception {
+        
+        logConfiguration();
+        
+        ServiceNameStrategy serviceNameStrategy = newServiceNameStrategy();
+        if (!(serviceNameStrategy instanceof ServiceNameStrategyBase)) {
+            throw new Exception("watch*() requires a ServiceNameStrategy that extends ServiceNameStrategyBase, "
+                    + this.serviceNameStrategyClass.getName() + " does not");
+        }
+        
+        // fail now rather than in the watch thread if we can't connect at all
+        connectWatch((ServiceNameStrategyBase)serviceNameStrategy);
+        
+        ServiceWatch watch = new ServiceWatch(this::connectWatch,
+                                              (ServiceNameStrategyBase)serviceNameStrategy,
+                                              this.serviceName,
+                                              this.portsToDiscover,
+                                              this.mustHaveTags,
+                                              scope,
+                                              this.myNodeUniqueTagId,
+                                              listener,
+                                              () -> this.watchWaitSeconds,
+                                              this.watchErrorRetryMillis,
+                                              this.metrics);
+        
+        // drop any already closed watches
+        for (ServiceWatch w : this.watches) {
+            if (w.isClosed()) {
+                this.watches.remove(w);
+            }
+        }
+        this.watches.add(watch);
+        
+        watch.start(new DaemonThreadFactory("consul-watch-" + this.serviceName));
+        return watch;
+    }
+    
+    /**
+     * Points the given watch strategy at the current watch connection(s) and
+     * returns the CatalogClient to query with. Running watches call this before 
+     * every blocking query, so they move over to new connections whenever
+     * resetConnection() or setWatchWaitSeconds() closed the previous ones
+     * 
+     * @param strategy
+     * @return
+     * @throws Exception
+     */
+    private CatalogClient connectWatch(ServiceNameStrategyBase strategy) throws Exception {
+        // blocking queries fail over across their own (long read timeout) connections
+        ConsulEndpoints endpoints = getWatchEndpoints();
+        strategy.setEndpoints(endpoints);
+        if (endpoints != null) {
+            return endpoints.getCatalogClient();
+        }
+        
+        ConsulConnection conn = getWatchConnection();
+        if (strategy.getHealthFilter() != HealthFilter.NONE) {
+            strategy.setHealthClient(conn.getHealthClient());
+        }
+        return conn.getCatalogClient();
+    }
+    
+    /**
+     * Returns the shared ConsulConnection, building it if this is the
+     * first call or the consul url/acl token changed since the last one
+     * 
+     * @return
+     */
+    private ConsulConnection getConnection() {
+        ConsulConnection conn = this.connection;
+        if (conn != null) {
+            return conn;
+        }
+        
+        synchronized(connectionLock) {
+            if (this.connection == null) {
+                this.connection = new ConsulConnection(this.consulHostPortUrl, this.consulAclToken, null, this.metrics);
+            }
+            return this.connection;
+        }
+    }
+    
+    /**
+     * Returns the shared ConsulConnection used for blocking queries,
+     * its read timeout must exceed the blocking wait time, plus the
+     * up to wait/16 jitter Consul adds
+     * 
+     * @return
+     */
+    private ConsulConnection getWatchConnection() {
+        ConsulConnection conn = this.watchConnection;
+        if (conn != null) {
+            return conn;
+        }
+        
+        synchronized(connectionLock) {
+            if (this.watchConnection == null) {
+                long readTimeoutMillis = (this.watchWaitSeconds + (this.watchWaitSeconds / 16) + 10) * 1000L;
+                this.watchConnection = new ConsulConnection(this.consulHostPortUrl, this.consulAclToken, readTimeoutMillis, this.metrics);
+            }
+            return this.watchConnection;
+        }
+    }
+    
+    /**
+     * Returns the shared ConsulEndpoints (failover group of the consul url 
+     * and all failover urls), building it on first call, or null if no 
+     * failover urls are configured
+     * 
+     * @return
+     */
+    private ConsulEndpoints getEndpoints() {
+        if (this.failoverUrls.isEmpty()) {
+            return null;
+        }
+        
+        ConsulEndpoints e = this.endpoints;
+        if (e != null) {
+            return e;
+        }
+        
+        synchronized(connectionLock) {
+            if (this.endpoints == null) {
+                this.endpoints = newEndpoints(null, this.hedgeRequests ? this.hedgeMinDelayMillis : -1, "consul-hedge-");
+            }
+            return this.endpoints;
+        }
+    }
+    
+    /**
+     * Same as getEndpoints() but for blocking queries (never hedged)
+     * 
+     * @return
+     */
+    private ConsulEndpoints getWatchEndpoints() {
+        if (this.failoverUrls.isEmpty()) {
+            return null;
+        }
+        
+        ConsulEndpoints e = this.watchEndpoints;
+        if (e != null) {
+            return e;
+        }
+        
+        synchronized(connectionLock) {
+            if (this.watchEndpoints == null) {
+                long readTimeoutMillis = (this.watchWaitSeconds + (this.watchWaitSeconds / 16) + 10) * 1000L;
+                this.watchEndpoints = newEndpoints(readTimeoutMillis, -1, "consul-watch-hedge-");
+            }
+            return this.watchEndpoints;
+        }
+    }
+    
+    private ConsulEndpoints newEndpoints(Long readTimeoutMillis, long hedgeMinDelayMillis, String threadNamePrefix) {
+        List<ConsulConnection> connections = new ArrayList<ConsulConnection>();
+        connections.add(new ConsulConnection(this.consulHostPortUrl, this.consulAclToken, readTimeoutMillis, this.metrics));
+        for (URL url : this.failoverUrls) {
+            connections.add(new ConsulConnection(url, this.consulAclToken, readTimeoutMillis, this.metrics));
+        }
+        return new ConsulEndpoints(connections, 
+                                   this.endpointMaxFailures, 
+                                   this.endpointCooldownMillis, 
+                                   hedgeMinDelayMillis, 
+                                   Math.max(2, this.maxConcurrentQueries * 2),
+                                   threadNamePrefix + this.serviceName);
+    }
+    
+    /**
+     * Drops the current shared ConsulConnection(s) (if any) so that
+     * the next discover*() call builds a new one. Already running
+     * watches move over to new watch connection(s) on their next query
+     * (an in flight blocking query may fail once and be retried)
+     */
+    private void resetConnection() {
+        synchronized(connectionLock) {
+            if (this.connection != null) {
+                logger.debug("Consul url/acl token/metrics changed, closing existing Consul client");
+                this.connection.close();
+                this.connection = null;
+            }
+            if (this.watchConnection != null) {
+                this.watchConnection.close();
+                this.watchConnection = null;
+            }
+            if (this.endpoints != null) {
+                this.endpoints.close();
+                this.endpoints = null;
+            }
+            if (this.watchEndpoints != null) {
+                this.watchEndpoints.close();
+                this.watchEndpoints = null;
+            }
+        }
+    }
+    
+    /**
+     * Drops only the ConsulEndpoints used by discover*(), i.e. when 
+     * hedging settings, which never apply to blocking queries, change
+     */
+    private void resetEndpoints() {
+        synchronized(connectionLock) {
+            if (this.endpoints != null) {
+                this.endpoints.close();
+                this.endpoints = null;
+            }
+        }
+    }
+    
+    /**
+     * Stops all watches started by this instance and releases the shared 
+     * Consul client. This ConsulDiscovery can still be used afterwards, 
+     * a new client will be built on the next discover*() call
+     */
+    @Override
+    public void close() {
+        for (ServiceWatch watch : this.watches) {
+            watch.close();
+        }
+        this.watches.clear();
+        
+        synchronized(cacheLock) {
+            this.cache = null;
+            if (this.cacheRefreshExecutor != null) {
+                this.cacheRefreshExecutor.shutdownNow();
+                this.cacheRefreshExecutor = null;
+            }
+        }
+        
+        shutdownQueryExecutor();
+        shutdownAsyncExecutor();
+        resetConnection();
+    }
+    
+    private static boolean sameUrl(URL url1, URL url2) {
+        // note: not using URL.equals() as that does DNS resolution
+        if (url1 == null || url2 == null) {
+            return url1 == url2;
+        }
+        return url1.toExternalForm().equals(url2.toExternalForm());
+    }
+    
+    private void setConsulHostPortUrl(URL url) {
+        if (!sameUrl(this.consulHostPortUrl, url)) {
+            this.consulHostPortUrl = url;
+            resetConnection();
+            resetCache();
+        }
+    }
+    
+    public ConsulDiscovery setConsulUrl(URL url) {
+    	setConsulHostPortUrl(url);
+    	return this;
+    }
+    
+    /**
+     * Multiple Consul agents to use: the first is the primary (same as setConsulUrl()), 
+     * the rest are failed over to when it is slow or failing. Requests go to the 
+     * healthy agent w/ the lowest (EWMA) latency, agents that fail repeatedly 
+     * are skipped for a cooldown. 
+     * 
+     * @see #setEndpointMaxFailures(int)
+     * @see #setEndpointCooldownMillis(long)
+     * @see #setHedgeRequests(boolean)
+     * @param urls
+     * @return
+     */
+    public ConsulDiscovery setConsulUrls(List<URL> urls) {
+        if (urls == null || urls.isEmpty()) {
+            throw new IllegalArgumentException("setConsulUrls() requires at least one url");
+        }
+        this.failoverUrls = new ArrayList<URL>(urls.subList(1, urls.size()));
+        this.consulHostPortUrl = urls.get(0);
+        resetConnection();
+        resetCache();
+        return this;
+    }
+    
+    public List<URL> getConsulUrls() {
+        List<URL> urls = new ArrayList<URL>();
+        urls.add(this.consulHostPortUrl);
+        urls.addAll(this.failoverUrls);
+        return urls;
+    }
+    
+    /**
+     * When failing over across multiple agents, consecutive failures 
+     * after which an agent cools down (default 3)
+     * 
+     * @param endpointMaxFailures
+     * @return
+     */
+    public ConsulDiscovery setEndpointMaxFailures(int endpointMaxFailures) {
+        this.endpointMaxFailures = endpointMaxFailures;
+        resetConnection();
+        return this;
+    }
+    
+    /**
+     * When failing over across multiple agents, how long an agent that failed
+     * too often is only used as a last resort (default 10000)
+     * 
+     * @param endpointCooldownMillis
+     * @return
+     */
+    public ConsulDiscovery setEndpointCooldownMillis(long endpointCooldownMillis) {
+        this.endpointCooldownMillis = endpointCooldownMillis;
+        resetConnection();
+        return this;
+    }
+    
+    /**
+     * When multiple agents are configured, hedge discovery requests (default false): 
+     * if the chosen agent has not answered within its own p95 latency (but at least
+     * hedgeMinDelayMillis) the request is also sent to the next best agent and the 
+     * first answer is used. Trades a few % extra agent requests for a much shorter 
+     * tail when an agent hiccups. Blocking (watch) queries are never hedged
+     * 
+     * @param hedgeRequests
+     * @return
+     */
+    public ConsulDiscovery setHedgeRequests(boolean hedgeRequests) {
+        this.hedgeRequests = hedgeRequests;
+        resetEndpoints();
+        return this;
+    }
+    
+    /**
+     * Lower bound on the hedge delay (default 20), also used until an agent's 
+     * p95 latency is known
+     * 
+     * @param hedgeMinDelayMillis
+     * @return
+     */
+    public ConsulDiscovery setHedgeMinDelayMillis(long hedgeMinDelayMillis) {
+        this.hedgeMinDelayMillis = hedgeMinDelayMillis;
+        resetEndpoints();
+        return this;
+    }
+    
+    public ConsulDiscovery setConsulAclToken(String token) {
+        boolean changed = (this.consulAclToken == null ? token != null : !this.consulAclToken.equals(token));
+    	this.consulAclToken = token;
+    	if (changed) {
+    	    resetConnection();
+    	    resetCache();
+    	}
+    	return this;
+    }
+
+    /**
+     * @deprecated use setConsulUrl instead
+     * @param consulIp
+     * @return
+     */
+    @Deprecated
+    public ConsulDiscovery setConsulIp(String consulIp) {
+        this.consulIp = consulIp;
+        if (this.consulPort > 0) {
+        	try {
+        		setConsulHostPortUrl(new URL("http://"+this.consulIp+":"+this.consulPort));
+	        } catch(Exception e) {
+	    		throw new RuntimeException("Could not construct ConsulDiscovery: " + e.getMessage(),e);
+	    	}
+        }
+        return this;
+    }
+
+
+    /**
+     * @deprecated use setConsulUrl instead
+     * @param consulPort
+     * @return
+     */
+    @Deprecated
+    public ConsulDiscovery setConsulPort(int consulPort) {
+        this.consulPort = consulPort;
+        if (this.consulIp != null) {
+        	try {
+        		setConsulHostPortUrl(new URL("http://"+this.consulIp+":"+this.consulPort));
+	        } catch(Exception e) {
+	    		throw new RuntimeException("Could not construct ConsulDiscovery: " + e.getMessage(),e);
+	    	}
+        }
+        return this;
+    }
+
+
+    public ConsulDiscovery setServiceName(String serviceName) {
+        this.serviceName = serviceName;
+        resetCache();
+        return this;
+    }
+
+
+    public ConsulDiscovery setPortsToDiscover(List<Integer> portsToDiscover) {
+        this.portsToDiscover = portsToDiscover;
+        resetCache();
+        return this;
+    }
+    
+    public ConsulDiscovery addPortToDiscover(Integer portToDiscover) {
         this.portsToDiscover.add(portToDiscover);
+        resetCache();
         return this;
     }
     
     public ConsulDiscovery addMustHaveTag(String tag) {
         this.mustHaveTags.add(tag);
+        resetCache();
         return this;
     }
 
 
     public ConsulDiscovery setMyNodeUniqueTagId(String myNodeUniqueTagId) {
         this.myNodeUniqueTagId = myNodeUniqueTagId;
+        resetCache();
         return this;
     }
 
 
     public ConsulDiscovery setServiceNameStrategyClass(Class<? extends ServiceNameStrategy> serviceNameStrategyClass) {
         this.serviceNameStrategyClass = serviceNameStrategyClass;
+        resetCache();
         return this;
     }
 
     public ConsulDiscovery setMustHaveTags(Collection<String> mustHaveTags) {
         this.mustHaveTags = mustHaveTags;
+        resetCache();
+        return this;
+    }
+    
+    /**
+     * Max time each watch*() blocking query waits on Consul for a 
+     * change before re-issuing the query (default 55, consul max is 600).
+     * Running watches use the new wait from their next query on
+     * 
+     * @param watchWaitSeconds
+     * @return
+     */
+    public ConsulDiscovery setWatchWaitSeconds(int watchWaitSeconds) {
+        if (this.watchWaitSeconds != watchWaitSeconds) {
+            this.watchWaitSeconds = watchWaitSeconds;
+            synchronized(connectionLock) {
+                if (this.watchConnection != null) {
+                    this.watchConnection.close();
+                    this.watchConnection = null;
+                }
+                // read timeouts are derived from the wait
+                if (this.watchEndpoints != null) {
+                    this.watchEndpoints.close();
+                    this.watchEndpoints = null;
+                }
+            }
+        }
+        return this;
+    }
+    
+    /**
+     * Enables caching of discovery results for the given TTL. While 
+     * fresh, discover*() calls are answered from the last snapshot 
+     * without calling Consul. (default 0, disabled)
+     * 
+     * When enabled the collections discover*() return are the 
+     * (unmodifiable) ones held by the cached DiscoverySnapshot
+     * 
+     * @see #setCacheMaxStaleMillis(long)
+     * @param cacheTtlMillis
+     * @return
+     */
+    public ConsulDiscovery setCacheTtlMillis(long cacheTtlMillis) {
+        this.cacheTtlMillis = cacheTtlMillis;
+        resetCache();
+        return this;
+    }
+    
+    /**
+     * When caching is enabled, how old a snapshot may get and still be
+     * returned to callers while it is refreshed in the background. Beyond 
+     * this age callers block on a fresh fetch. (default 0, never serve stale)
+     * 
+     * @param cacheMaxStaleMillis
+     * @return
+     */
+    public ConsulDiscovery setCacheMaxStaleMillis(long cacheMaxStaleMillis) {
+        this.cacheMaxStaleMillis = cacheMaxStaleMillis;
+        resetCache();
+        return this;
+    }
+    
+    /**
+     * Max number of catalog queries to run concurrently for strategies that
+     * query several catalog service names (i.e. MultiServiceNameSinglePortStrategy,
+     * one per port). 1 = query one after another. (default 4)
+     * 
+     * @param maxConcurrentQueries
+     * @return
+     */
+    public ConsulDiscovery setMaxConcurrentQueries(int maxConcurrentQueries) {
+        synchronized(queryExecutorLock) {
+            if (this.ownsQueryExecutor || this.queryExecutor == null) {
+                shutdownQueryExecutor();
+            }
+            this.maxConcurrentQueries = maxConcurrentQueries;
+        }
+        return this;
+    }
+    
+    /**
+     * Use the given (ideally bounded) executor for concurrent catalog queries
+     * rather than our own. The caller remains responsible for shutting it down.
+     * 
+     * @param queryExecutor
+     * @return
+     */
+    public ConsulDiscovery setQueryExecutor(ExecutorService queryExecutor) {
+        synchronized(queryExecutorLock) {
+            shutdownQueryExecutor();
+            this.queryExecutor = queryExecutor;
+        }
+        return this;
+    }
+    
+    /**
+     * Max time to wait on each concurrent catalog query (default 0, no limit 
+     * other than the HTTP read timeout). Only applies when multiple catalog
+     * service names are queried concurrently (see setMaxConcurrentQueries()), 
+     * sequential queries are bound by the HTTP read timeout alone.
+     * 
+     * @param queryTimeoutMillis
+     * @return
+     */
+    public ConsulDiscovery setQueryTimeoutMillis(long queryTimeoutMillis) {
+        this.queryTimeoutMillis = queryTimeoutMillis;
+        return this;
+    }
+    
+    /**
+     * When several catalog queries are made and only some of them fail
+     * (or time out), return what was discovered rather than throwing. An
+     * Exception is still thrown if all fail. (default false)
+     * 
+     * @param allowPartialResults
+     * @return
+     */
+    public ConsulDiscovery setAllowPartialResults(boolean allowPartialResults) {
+        this.allowPartialResults = allowPartialResults;
+        return this;
+    }
+    
+    /**
+     * Size of the pool the *Async() methods run their (blocking) Consul calls
+     * on, this bounds the number of concurrent async discoveries. (default 8)
+     * 
+     * @param maxAsyncThreads
+     * @return
+     */
+    public ConsulDiscovery setMaxAsyncThreads(int maxAsyncThreads) {
+        synchronized(asyncExecutorLock) {
+            if (this.ownsAsyncExecutor) {
+                shutdownAsyncExecutor();
+            }
+            this.maxAsyncThreads = maxAsyncThreads;
+        }
+        return this;
+    }
+    
+    /**
+     * Run the *Async() methods' Consul calls on the given executor rather than 
+     * our own pool. Do not pass an event loop here, these calls block. The caller 
+     * remains responsible for shutting it down.
+     * 
+     * @param asyncExecutor
+     * @return
+     */
+    public ConsulDiscovery setAsyncExecutor(Executor asyncExecutor) {
+        synchronized(asyncExecutorLock) {
+            shutdownAsyncExecutor();
+            this.asyncExecutor = asyncExecutor;
+        }
+        return this;
+    }
+    
+    /**
+     * Whether to send the must have tags (and myNodeUniqueTagId for discoverMe())
+     * to Consul as "tag" query params so that it only returns matching entries. 
+     * Matching is always re-checked client side (older agents only honor the
+     * first tag), disable only if your agent rejects the params. (default true)
+     * 
+     * @param serverSideTagFiltering
+     * @return
+     */
+    public ConsulDiscovery setServerSideTagFiltering(boolean serverSideTagFiltering) {
+        this.serverSideTagFiltering = serverSideTagFiltering;
+        resetCache();
+        return this;
+    }
+    
+    /**
+     * Read consistency mode for all catalog queries, (default DEFAULT). 
+     * 
+     * STALE allows any Consul server to answer rather than forwarding every
+     * read to the leader, which scales much better w/ many polling containers. 
+     * How stale each result was is available via ServiceInfo.getLastContactMillis() 
+     * and isKnownLeader() (and the same on DiscoverySnapshot)
+     * 
+     * see: https://www.consul.io/api/index.html#consistency-modes
+     * 
+     * @see #setMaxStaleMillis(long)
+     * @param consistencyMode
+     * @return
+     */
+    public ConsulDiscovery setConsistencyMode(ConsistencyMode consistencyMode) {
+        this.consistencyMode = consistencyMode;
+        resetCache();
+        return this;
+    }
+    
+    /**
+     * For STALE reads, the max acceptable staleness. Any stale answer from a
+     * server whose last contact w/ the leader exceeds this (or that knows of no 
+     * leader) is re-queried with DEFAULT consistency. If that re-query fails,
+     * i.e. there is no leader, the stale answer is used after all (check
+     * ServiceInfo.getLastContactMillis()/isKnownLeader()). (default 0, no bound)
+     * 
+     * @param maxStaleMillis
+     * @return
+     */
+    public ConsulDiscovery setMaxStaleMillis(long maxStaleMillis) {
+        this.maxStaleMillis = maxStaleMillis;
+        resetCache();
+        return this;
+    }
+    
+    /**
+     * When discovered exposed addresses are resolved to InetAddresses (default EAGER). 
+     * IPv4 literals are always parsed directly w/o the system resolver, this only 
+     * matters if Consul holds hostnames. With LAZY/ASYNC discovery never blocks 
+     * on DNS, resolution happens on ServiceInfo.getExposedAddress() 
+     * (use ServiceInfo.getExposedHost() to avoid resolving at all)
+     * 
+     * @param addressResolution
+     * @return
+     */
+    public ConsulDiscovery setAddressResolution(AddressResolution addressResolution) {
+        this.addressResolution = addressResolution;
+        resetCache();
+        return this;
+    }
+    
+    /**
+     * Discover from the health endpoint rather than the catalog so instances w/ 
+     * failing checks are left out (default NONE, the catalog). PASSING only returns 
+     * instances whose checks (incl. node checks) all pass, PASSING_OR_WARNING 
+     * also those w/ warnings. ServiceInfo.getHealthStatus() then reports each 
+     * instance's state, and watches see instances drop out (and come back) as 
+     * their checks change
+     * 
+     * @param healthFilter
+     * @return
+     */
+    public ConsulDiscovery setHealthFilter(HealthFilter healthFilter) {
+        this.healthFilter = (healthFilter != null ? healthFilter : HealthFilter.NONE);
+        resetCache();
+        return this;
+    }
+    
+    /**
+     * Persist the last known good result of discovery to disk. Until the first 
+     * live answer after startup (which is then fetched in the background) and 
+     * whenever Consul cannot be reached, discover*() answer from the store, as 
+     * long as it is no older than its max age. Such answers are marked via 
+     * ServiceInfo.isStale() / DiscoverySnapshot.isStale(). awaitMe()/awaitPeers() 
+     * and watches never use it.
+     * 
+     * When set, discovery always fetches all services matching our must have 
+     * tags (what the store holds) and narrows that down for discoverMe() itself.
+     * 
+     * @see SnapshotStore
+     * @param snapshotStore null (default) to disable
+     * @return
+     */
+    public ConsulDiscovery setSnapshotStore(SnapshotStore snapshotStore) {
+        this.snapshotStore = snapshotStore;
+        resetCache();
+        return this;
+    }
+    
+    public SnapshotStore getSnapshotStore() {
+        return snapshotStore;
+    }
+    
+    /**
+     * If true (default) concurrent identical discovery calls (i.e. a burst of 
+     * threads all calling discoverPeers()) share one outstanding request to 
+     * Consul and all receive (a copy of) its result. A caller may thus get the 
+     * result of a request that started just before its own call
+     * 
+     * @param coalesceRequests
+     * @return
+     */
+    public ConsulDiscovery setCoalesceRequests(boolean coalesceRequests) {
+        this.coalesceRequests = coalesceRequests;
+        return this;
+    }
+    
+    /**
+     * @return number of discovery calls that joined an identical one already 
+     *         in flight rather than sending their own request
+     */
+    public long getCoalescedRequests() {
+        return this.inFlight.getCoalesced();
+    }
+    
+    /**
+     * Resolver (and bounded TTL cache) used for hostnames found in 
+     * Consul (default AddressResolver.getDefault(), shared JVM wide)
+     * 
+     * @param addressResolver
+     * @return
+     */
+    public ConsulDiscovery setAddressResolver(AddressResolver addressResolver) {
+        this.addressResolver = addressResolver;
+        resetCache();
+        return this;
+    }
+    
+    /**
+     * Reports discover*() latencies, catalog queries, agent requests, address 
+     * resolutions, cache hits/misses, watch iterations and errors to the given
+     * DiscoveryMetrics (default null, disabled: no timings are taken at all). 
+     * Already running watches keep reporting their watch iterations and errors
+     * to the previous metrics, their agent requests go to the new ones
+     * 
+     * @see JmxDiscoveryMetrics
+     * @param metrics
+     * @return
+     */
+    public ConsulDiscovery setMetrics(DiscoveryMetrics metrics) {
+        this.metrics = metrics;
+        resetConnection();
+        resetCache();
+        return this;
+    }
+    
+    public DiscoveryMetrics getMetrics() {
+        return this.metrics;
+    }
+    
+    /**
+     * Max time a watch waits before retrying after errors (default 5000), the 
+     * first retry is quicker and the wait doubles (jittered) up to this
+     * 
+     * @param watchErrorRetryMillis
+     * @return
+     */
+    public ConsulDiscovery setWatchErrorRetryMillis(long watchErrorRetryMillis) {
+        this.watchErrorRetryMillis = watchErrorRetryMillis;
         return this;
     }
     
@@ -0,0 +1,104 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single Consul agent in a ConsulEndpoints group along w/ its health:
+ * an EWMA of its latency, its latency distribution (for hedging) and
+ * its consecutive failures. After maxFailures consecutive failures it is
+ * put in cooldown and only used as a last resort until the cooldown
+ * expires, the first success afterwards fully restores it.
+ *
+ * @author bitsofinfo
+ *
+ */
+class ConsulEndpoint {
+
+    // weight of the most recent sample
+    static final double EWMA_ALPHA = 0.2;
+
+    private final ConsulConnection connection;
+
+    // Double bits, NaN until the first success
+    private final AtomicLong ewmaNanos = new AtomicLong(Double.doubleToLongBits(Double.NaN));
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long cooldownUntilNanos = 0;
+
+    ConsulEndpoint(ConsulConnection connection) {
+        this.connection = connection;
+    }
+
+    public ConsulConnection getConnection() {
+        return connection;
+    }
+
+    public void onSuccess(long durationNanos) {
+        latency.record(durationNanos);
+        consecutiveFailures.set(0);
+        cooldownUntilNanos = 0;
+
+        long current;
+        double next;
+        do {
+            current = ewmaNanos.get();
+            double ewma = Double.longBitsToDouble(current);
+            next = (Double.isNaN(ewma) ? durationNanos : ewma + EWMA_ALPHA * (durationNanos - ewma));
+        } while (!ewmaNanos.compareAndSet(current, Double.doubleToLongBits(next)));
+    }
+
+    /**
+     * @param maxFailures consecutive failures before cooling down
+     * @param cooldownNanos
+     * @return true if this failure put the endpoint in cooldown
+     */
+    public boolean onFailure(int maxFailures, long cooldownNanos) {
+        if (consecutiveFailures.incrementAndGet() >= maxFailures) {
+            cooldownUntilNanos = System.nanoTime() + cooldownNanos;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isAvailable(long nowNanos) {
+        long until = cooldownUntilNanos;
+        return until == 0 || nowNanos - until >= 0;
+    }
+
+    /**
+     * @return EWMA latency, 0 if never succeeded (so untried endpoints get probed first)
+     */
+    public double getEwmaNanos() {
+        double ewma = Double.longBitsToDouble(ewmaNanos.get());
+        return (Double.isNaN(ewma) ? 0 : ewma);
+    }
+
+    /**
+     * @return p95 latency or 0 if fewer than minSamples successes were seen
+     */
+    public long getP95Nanos(long minSamples) {
+        if (latency.getCount() < minSamples) {
+            return 0;
+        }
+        return TimeUnit.MICROSECONDS.toNanos(latency.getPercentileMicros(0.95));
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    long getCooldownUntilNanos() {
+        return cooldownUntilNanos;
+    }
+
+    @Override
+    public String toString() {
+        return connection.getConsulHostPortUrl() +
+                "[ewma=" + TimeUnit.NANOSECONDS.toMicros((long)getEwmaNanos()) + "us" +
+                " failures=" + consecutiveFailures.get() +
+                " available=" + isAvailable(System.nanoTime()) + "]";
+    }
+
+}
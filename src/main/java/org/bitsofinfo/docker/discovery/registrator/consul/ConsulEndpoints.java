@@ -0,0 +1,289 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orbitz.consul.CatalogClient;
+import com.orbitz.consul.Consul;
+
+/**
+ * A group of Consul agents that requests fail over across.
+ *
+ * Every request goes to the available endpoint w/ the lowest EWMA latency
+ * (never used endpoints first, so each gets measured), on failure the next
+ * one is tried and so on. Endpoints in cooldown (too many consecutive failures)
+ * are only tried once all available ones have failed.
+ *
+ * Optionally non-blocking requests are hedged: if the chosen endpoint has not
+ * answered within max(its p95 latency, hedgeMinDelay) the same request is sent
+ * to the next best endpoint and whichever answers first wins. The slower request
+ * is left to complete (it cannot be aborted) so its latency is still recorded.
+ *
+ * @author bitsofinfo
+ *
+ */
+class ConsulEndpoints implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConsulEndpoints.class);
+
+    // successes required before an endpoint's p95 is trusted as hedge delay
+    static final long MIN_HEDGE_SAMPLES = 20;
+
+    /**
+     * A request against a single endpoint
+     */
+    interface ConsulCall<T> {
+        T call(Consul consul) throws Exception;
+    }
+
+    private static final Comparator<ConsulEndpoint> BY_EWMA =
+            Comparator.comparingDouble(ConsulEndpoint::getEwmaNanos);
+    private static final Comparator<ConsulEndpoint> BY_COOLDOWN =
+            Comparator.comparingLong(ConsulEndpoint::getCooldownUntilNanos);
+
+    private final List<ConsulEndpoint> endpoints;
+    private final int maxFailures;
+    private final long cooldownNanos;
+    private final long hedgeMinDelayNanos;
+    private final ThreadPoolExecutor hedgeExecutor;
+
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * @param connections in order of preference (until latencies are known)
+     * @param maxFailures consecutive failures before an endpoint cools down
+     * @param cooldownMillis
+     * @param hedgeMinDelayMillis < 0 disables hedging
+     * @param maxHedgeThreads
+     * @param threadNamePrefix
+     */
+    public ConsulEndpoints(List<ConsulConnection> connections,
+                           int maxFailures,
+                           long cooldownMillis,
+                           long hedgeMinDelayMillis,
+                           int maxHedgeThreads,
+                           String threadNamePrefix) {
+
+        List<ConsulEndpoint> endpoints = new ArrayList<ConsulEndpoint>(connections.size());
+        for (ConsulConnection connection : connections) {
+            endpoints.add(new ConsulEndpoint(connection));
+        }
+        this.endpoints = Collections.unmodifiableList(endpoints);
+        this.maxFailures = Math.max(1, maxFailures);
+        this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(cooldownMillis);
+        this.hedgeMinDelayNanos = TimeUnit.MILLISECONDS.toNanos(hedgeMinDelayMillis);
+
+        if (hedgeMinDelayMillis >= 0 && endpoints.size() > 1) {
+            // no queue: if every thread is busy we just don't hedge
+            this.hedgeExecutor = new ThreadPoolExecutor(0, Math.max(1, maxHedgeThreads), 60, TimeUnit.SECONDS,
+                                                        new SynchronousQueue<Runnable>(),
+                                                        new DaemonThreadFactory(threadNamePrefix));
+        } else {
+            this.hedgeExecutor = null;
+        }
+    }
+
+    /**
+     * Runs the call against the best endpoint, failing over to the others
+     *
+     * @param call
+     * @param hedgeable false for blocking queries (their latency is the wait)
+     * @return
+     * @throws Exception if every endpoint failed (the last failure is the cause)
+     */
+    public <T> T execute(ConsulCall<T> call, boolean hedgeable) throws Exception {
+        List<ConsulEndpoint> ranked = rank();
+        if (hedgeable && this.hedgeExecutor != null && ranked.size() > 1) {
+            return hedged(ranked, call);
+        }
+        return sequential(ranked, 0, call, null);
+    }
+
+    /**
+     * For callers that need a CatalogClient itself (i.e. a ServiceNameStrategy
+     * that does not go through execute()): the client of the best endpoint
+     * that one can be built for
+     *
+     * @return
+     * @throws Exception
+     */
+    public CatalogClient getCatalogClient() throws Exception {
+        Exception lastError = null;
+        for (ConsulEndpoint endpoint : rank()) {
+            try {
+                return endpoint.getConnection().getCatalogClient();
+            } catch(Exception e) {
+                lastError = e;
+                endpoint.onFailure(this.maxFailures, this.cooldownNanos);
+            }
+        }
+        throw new Exception("No Consul client could be built for any of the " + endpoints.size() +
+                            " Consul endpoints, last error: " + lastError.getMessage(), lastError);
+    }
+
+    /**
+     * @return endpoints ordered by preference: available by EWMA latency, then
+     *         those cooling down by how soon their cooldown expires
+     */
+    List<ConsulEndpoint> rank() {
+        long now = System.nanoTime();
+        List<ConsulEndpoint> available = new ArrayList<ConsulEndpoint>(endpoints.size());
+        List<ConsulEndpoint> coolingDown = null;
+
+        for (ConsulEndpoint endpoint : endpoints) {
+            if (endpoint.isAvailable(now)) {
+                available.add(endpoint);
+            } else {
+                if (coolingDown == null) {
+                    coolingDown = new ArrayList<ConsulEndpoint>(endpoints.size());
+                }
+                coolingDown.add(endpoint);
+            }
+        }
+
+        // stable, ties keep configured order
+        available.sort(BY_EWMA);
+        if (coolingDown != null) {
+            coolingDown.sort(BY_COOLDOWN);
+            available.addAll(coolingDown);
+        }
+        return available;
+    }
+
+    private <T> T attempt(ConsulEndpoint endpoint, ConsulCall<T> call) throws Exception {
+        long start = System.nanoTime();
+        try {
+            T result = call.call(endpoint.getConnection().getConsul());
+            endpoint.onSuccess(System.nanoTime() - start);
+            return result;
+
+        } catch(Exception e) {
+            if (endpoint.onFailure(this.maxFailures, this.cooldownNanos)) {
+                logger.warn("Consul endpoint " + endpoint.getConnection().getConsulHostPortUrl() + " failed " +
+                            endpoint.getConsecutiveFailures() + " times in a row, cooling down for " +
+                            TimeUnit.NANOSECONDS.toMillis(this.cooldownNanos) + "ms: " + e.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    private <T> T sequential(List<ConsulEndpoint> ranked, int from, ConsulCall<T> call, Exception lastError) throws Exception {
+        for (int i=from; i<ranked.size(); i++) {
+            ConsulEndpoint endpoint = ranked.get(i);
+            try {
+                return attempt(endpoint, call);
+            } catch(Exception e) {
+                lastError = e;
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Consul endpoint " + endpoint + " failed: " + e.getMessage() +
+                                 (i+1 < ranked.size() ? ", failing over" : ""));
+                }
+            }
+        }
+        throw new Exception("All " + ranked.size() + " Consul endpoints failed, last error: " +
+                            (lastError != null ? lastError.getMessage() : "none"), lastError);
+    }
+
+    private <T> T hedged(List<ConsulEndpoint> ranked, ConsulCall<T> call) throws Exception {
+        final ConsulEndpoint primary = ranked.get(0);
+        final ConsulEndpoint secondary = ranked.get(1);
+        long delayNanos = Math.max(this.hedgeMinDelayNanos, primary.getP95Nanos(MIN_HEDGE_SAMPLES));
+
+        CompletionService<T> completion = new ExecutorCompletionService<T>(this.hedgeExecutor);
+        Future<T> first;
+        try {
+            first = completion.submit(() -> attempt(primary, call));
+        } catch(RejectedExecutionException e) {
+            return sequential(ranked, 0, call, null);
+        }
+
+        Future<T> done = completion.poll(delayNanos, TimeUnit.NANOSECONDS);
+        if (done != null) {
+            try {
+                return done.get();
+            } catch(ExecutionException e) {
+                return sequential(ranked, 1, call, unwrap(e));
+            }
+        }
+
+        // primary is slower than usual, race it against the next best
+        int pending = 1;
+        try {
+            completion.submit(() -> attempt(secondary, call));
+            pending++;
+            hedges.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Hedging request to " + primary + " after " +
+                             TimeUnit.NANOSECONDS.toMillis(delayNanos) + "ms w/ " + secondary);
+            }
+        } catch(RejectedExecutionException e) {
+            // no thread to spare, just wait on the primary
+        }
+
+        int tried = pending;
+        Exception lastError = null;
+        while (pending-- > 0) {
+            Future<T> next = completion.take();
+            try {
+                T result = next.get();
+                if (next != first) {
+                    hedgeWins.incrementAndGet();
+                }
+                return result;
+            } catch(ExecutionException e) {
+                lastError = unwrap(e);
+            }
+        }
+        return sequential(ranked, tried, call, lastError);
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        return (cause instanceof Exception ? (Exception)cause : e);
+    }
+
+    public List<ConsulEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return number of requests that were sent to a second endpoint
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return number of hedged requests the second endpoint answered first
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    @Override
+    public void close() {
+        if (this.hedgeExecutor != null) {
+            this.hedgeExecutor.shutdown();
+        }
+        for (ConsulEndpoint endpoint : endpoints) {
+            endpoint.getConnection().close();
+        }
+    }
+
+}
@@ -0,0 +1,29 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads so that background discovery 
+ * work never keeps the JVM alive on its own
+ * 
+ * @author bitsofinfo
+ *
+ */
+class DaemonThreadFactory implements ThreadFactory {
+    
+    private final String namePrefix;
+    private final AtomicInteger counter = new AtomicInteger();
+    
+    public DaemonThreadFactory(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, namePrefix + "-" + counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+
+}
@@ -0,0 +1,272 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TTL based snapshot cache of discovered ServiceInfos w/ stale-while-revalidate
+ * semantics:
+ *
+ * - age <= ttl: the cached snapshot is returned (hit)
+ * - ttl < age <= maxStale: the cached snapshot is returned (stale hit) and a
+ *   single background refresh is triggered
+ * - age > maxStale or nothing cached: the caller blocks on a fresh load (miss),
+ *   concurrent missing callers share a single load
+ *
+ * Enable via ConsulDiscovery.setCacheTtlMillis()
+ *
+ * @author bitsofinfo
+ *
+ */
+public class DiscoveryCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiscoveryCache.class);
+
+    /**
+     * Does the actual (uncached) discovery
+     */
+    interface Loader {
+        public Collection<ServiceInfo> load() throws Exception;
+    }
+
+    private static class Entry {
+        final DiscoverySnapshot snapshot;
+        final long loadedAtNanos;
+
+        Entry(DiscoverySnapshot snapshot, long loadedAtNanos) {
+            this.snapshot = snapshot;
+            this.loadedAtNanos = loadedAtNanos;
+        }
+    }
+
+    private final Loader loader;
+    private final String myNodeUniqueTagId;
+    private final Executor refreshExecutor;
+    private final long ttlNanos;
+    private final long maxStaleNanos;
+
+    private final Object loadLock = new Object();
+    private volatile Entry entry = null;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    private volatile DiscoveryMetrics metrics = null;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+
+    /**
+     *
+     * @param loader
+     * @param refreshExecutor where background refreshes run
+     * @param ttlMillis how long a snapshot is considered fresh
+     * @param maxStaleMillis how old a snapshot can be and still be served (while refreshing),
+     *                       if < ttlMillis then no stale snapshots are ever served
+     */
+    DiscoveryCache(Loader loader, Executor refreshExecutor, long ttlMillis, long maxStaleMillis) {
+        this(loader, null, refreshExecutor, ttlMillis, maxStaleMillis);
+    }
+
+    /**
+     *
+     * @param loader
+     * @param myNodeUniqueTagId what the cached DiscoverySnapshots getMe()/getPeers() are relative to
+     * @param refreshExecutor where background refreshes run
+     * @param ttlMillis how long a snapshot is considered fresh
+     * @param maxStaleMillis how old a snapshot can be and still be served (while refreshing),
+     *                       if < ttlMillis then no stale snapshots are ever served
+     */
+    DiscoveryCache(Loader loader, String myNodeUniqueTagId, Executor refreshExecutor, long ttlMillis, long maxStaleMillis) {
+        this.loader = loader;
+        this.myNodeUniqueTagId = myNodeUniqueTagId;
+        this.refreshExecutor = refreshExecutor;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.maxStaleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(ttlMillis, maxStaleMillis));
+    }
+
+    /**
+     * Returns the current (unmodifiable) snapshot, loading it if required
+     *
+     * @return
+     * @throws Exception
+     */
+    public Collection<ServiceInfo> get() throws Exception {
+        return getSnapshot().getAll();
+    }
+
+    /**
+     * Returns the current indexed snapshot, loading it if required
+     *
+     * @return
+     * @throws Exception
+     */
+    public DiscoverySnapshot getSnapshot() throws Exception {
+        DiscoverySnapshot snapshot = getSnapshotIfAvailable();
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        misses.incrementAndGet();
+        if (metrics != null) {
+            metrics.onCacheMiss();
+        }
+
+        synchronized(loadLock) {
+            // someone else may have loaded while we waited
+            Entry e = this.entry;
+            if (e != null && (System.nanoTime() - e.loadedAtNanos) <= ttlNanos) {
+                return e.snapshot;
+            }
+            return load().snapshot;
+        }
+    }
+
+    /**
+     * Same as getSnapshot() but never blocks on a load, unlike checking
+     * isAvailable() first this cannot race w/ the snapshot expiring
+     *
+     * @return the current fresh or acceptably stale snapshot (triggering a
+     *         background refresh if stale), null if a load would be required
+     */
+    public DiscoverySnapshot getSnapshotIfAvailable() {
+        Entry e = this.entry;
+
+        if (e != null) {
+            long age = System.nanoTime() - e.loadedAtNanos;
+
+            if (age <= ttlNanos) {
+                hits.incrementAndGet();
+                if (metrics != null) {
+                    metrics.onCacheHit(false);
+                }
+                return e.snapshot;
+            }
+
+            if (age <= maxStaleNanos) {
+                hits.incrementAndGet();
+                staleHits.incrementAndGet();
+                if (metrics != null) {
+                    metrics.onCacheHit(true);
+                }
+                refreshInBackground();
+                return e.snapshot;
+            }
+        }
+
+        return null;
+    }
+
+    private Entry load() throws Exception {
+        Entry e = new Entry(new DiscoverySnapshot(loader.load(), myNodeUniqueTagId), System.nanoTime());
+        this.entry = e;
+        return e;
+    }
+
+    private void refreshInBackground() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return; // already refreshing
+        }
+
+        try {
+            refreshExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        synchronized(loadLock) {
+                            load();
+                        }
+                        refreshes.incrementAndGet();
+                    } catch(Exception e) {
+                        refreshFailures.incrementAndGet();
+                        if (metrics != null) {
+                            metrics.onError("cacheRefresh", e);
+                        }
+                        logger.warn("refreshInBackground() failed to refresh discovery snapshot: " + e.getMessage(),e);
+                    } finally {
+                        refreshing.set(false);
+                    }
+                }
+            });
+        } catch(RuntimeException e) {
+            refreshing.set(false);
+            logger.warn("refreshInBackground() could not schedule refresh: " + e.getMessage(),e);
+        }
+    }
+
+    /**
+     * @param metrics optional, hits/misses are reported to it
+     */
+    void setMetrics(DiscoveryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return true if get() can currently be answered without blocking
+     *         on a load (fresh or acceptably stale snapshot present)
+     */
+    public boolean isAvailable() {
+        Entry e = this.entry;
+        return e != null && (System.nanoTime() - e.loadedAtNanos) <= maxStaleNanos;
+    }
+
+    /**
+     * Drops the cached snapshot, the next get() will block on a fresh load
+     */
+    public void invalidate() {
+        this.entry = null;
+    }
+
+    /**
+     * Drops the cached snapshot if it was served from a SnapshotStore
+     */
+    void invalidateIfStale() {
+        Entry e = this.entry;
+        if (e != null && e.snapshot.isStale()) {
+            synchronized(loadLock) {
+                if (this.entry == e) {
+                    this.entry = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of get() calls answered from the cache (incl. stale hits)
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of get() calls answered from a stale snapshot while refreshing
+     */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /**
+     * @return number of get() calls that had to block on a load
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of successful background refreshes
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    public long getRefreshFailures() {
+        return refreshFailures.get();
+    }
+
+}
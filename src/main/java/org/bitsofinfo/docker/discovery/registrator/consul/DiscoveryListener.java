@@ -0,0 +1,24 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.Collection;
+
+/**
+ * Callback interface for ConsulDiscovery watch*() methods. 
+ * 
+ * onDiscovery() is invoked once with the initial set of services
+ * and then again only when the set of matching ServiceInfos actually
+ * changes in Consul.
+ * 
+ * Callbacks are invoked from the watch's background thread(s), 
+ * one at a time.
+ * 
+ * @author bitsofinfo
+ *
+ */
+public interface DiscoveryListener {
+    
+    public void onDiscovery(Collection<ServiceInfo> services);
+    
+    public void onError(Exception e);
+
+}
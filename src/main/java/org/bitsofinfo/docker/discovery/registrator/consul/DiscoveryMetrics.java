@@ -0,0 +1,83 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+/**
+ * Metrics SPI for ConsulDiscovery, enable via ConsulDiscovery.setMetrics()
+ *
+ * When no DiscoveryMetrics is set (the default) none of these are
+ * invoked and no timings are taken. Implementations are called inline
+ * from discovery (and watch/refresh) threads so must be thread safe,
+ * cheap and never throw.
+ *
+ * @see JmxDiscoveryMetrics for the built in JMX implementation
+ *
+ * @author bitsofinfo
+ *
+ */
+public interface DiscoveryMetrics {
+
+    /**
+     * A ConsulDiscovery.discover*() call completed
+     *
+     * @param method i.e. "discoverMe", "discoverPeers", "discoverAll", "discoverSnapshot"
+     * @param durationNanos
+     */
+    public void onDiscovery(String method, long durationNanos);
+
+    /**
+     * A single catalog service name was fetched and its entries matched
+     *
+     * @param catalogServiceName
+     * @param fetched number of catalog entries Consul returned
+     * @param matched number of those that matched our ports/tags
+     * @param durationNanos
+     */
+    public void onCatalogQuery(String catalogServiceName, int fetched, int matched, long durationNanos);
+
+    /**
+     * An HTTP request to the Consul agent completed
+     *
+     * @param path i.e. "/v1/catalog/service/my-service"
+     * @param statusCode
+     * @param durationNanos
+     */
+    public void onAgentRequest(String path, int statusCode, long durationNanos);
+
+    /**
+     * A hostname had to actually be resolved (literals and
+     * AddressResolver cache hits are not reported)
+     *
+     * @param host
+     * @param durationNanos
+     * @param success
+     */
+    public void onAddressResolution(String host, long durationNanos, boolean success);
+
+    /**
+     * A discover*() call was answered by the DiscoveryCache
+     *
+     * @param stale true if the snapshot was stale (and a refresh was triggered)
+     */
+    public void onCacheHit(boolean stale);
+
+    /**
+     * A discover*() call had to block on loading the DiscoveryCache
+     */
+    public void onCacheMiss();
+
+    /**
+     * A ServiceWatch blocking query returned
+     *
+     * @param catalogServiceName
+     * @param changed true if the index moved (the result may still be unchanged)
+     */
+    public void onWatchIteration(String catalogServiceName, boolean changed);
+
+    /**
+     * Something failed
+     *
+     * @param operation i.e. "discoverPeers", "catalogQuery", "watch"
+     * @param error
+     */
+    public void onError(String operation, Throwable error);
+
+}
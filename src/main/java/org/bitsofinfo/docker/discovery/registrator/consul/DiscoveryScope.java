@@ -0,0 +1,32 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+/**
+ * Which subset of the discovered ServiceInfos a result represents
+ * relative to the node identified by "myNodeUniqueTagId"
+ * 
+ * @author bitsofinfo
+ *
+ */
+enum DiscoveryScope {
+    
+    /** only ServiceInfos tagged with myNodeUniqueTagId */
+    ME,
+    
+    /** only ServiceInfos NOT tagged with myNodeUniqueTagId */
+    PEERS,
+    
+    /** everything, including ourself */
+    ALL;
+    
+    public boolean includes(ServiceInfo info, String myNodeUniqueTagId) {
+        switch(this) {
+            case ME:
+                return info.getTags().contains(myNodeUniqueTagId);
+            case PEERS:
+                return !info.getTags().contains(myNodeUniqueTagId);
+            default:
+                return true;
+        }
+    }
+
+}
@@ -0,0 +1,337 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Immutable, indexed view of everything discovered by a single catalog
+ * fetch. Built once per fetch, after which all lookups (by mapped port,
+ * by tag, by container, me vs peers) are plain reads: no network calls,
+ * no scanning and no allocation.
+ *
+ * All state is held in final fields and never modified after construction
+ * so instances can be freely handed across threads. All returned collections
+ * are unmodifiable.
+ *
+ * Obtain via ConsulDiscovery.discoverSnapshot()
+ *
+ * @author bitsofinfo
+ *
+ */
+public class DiscoverySnapshot {
+
+    private final String myNodeUniqueTagId;
+
+    private final Collection<ServiceInfo> all;
+    private final Collection<ServiceInfo> me;
+    private final Collection<ServiceInfo> peers;
+
+    /**
+     * All/me/peers for a single mapped port
+     */
+    private static final class PortIndex {
+        final Collection<ServiceInfo> all;
+        final Collection<ServiceInfo> me;
+        final Collection<ServiceInfo> peers;
+
+        PortIndex(Collection<ServiceInfo> all, Collection<ServiceInfo> me, Collection<ServiceInfo> peers) {
+            this.all = all;
+            this.me = me;
+            this.peers = peers;
+        }
+    }
+
+    // mapped port index: sorted ports + parallel array, avoids boxing on lookup
+    private final int[] ports;
+    private final PortIndex[] byPort;
+    private final Set<Integer> mappedPorts;
+
+    private final Map<String,Collection<ServiceInfo>> byTag;
+    private final Map<String,Collection<ServiceInfo>> byContainer;
+
+    private final long lastContactMillis;
+    private final boolean knownLeader;
+    private final boolean stale;
+
+    /**
+     *
+     * @param all everything discovered (including ourself)
+     * @param myNodeUniqueTagId our unique tag, determines getMe() vs getPeers()
+     */
+    public DiscoverySnapshot(Collection<ServiceInfo> all, String myNodeUniqueTagId) {
+
+        this.myNodeUniqueTagId = myNodeUniqueTagId;
+
+        List<ServiceInfo> allList = new ArrayList<ServiceInfo>(all);
+        List<ServiceInfo> me = new ArrayList<ServiceInfo>();
+        List<ServiceInfo> peers = new ArrayList<ServiceInfo>();
+
+        TreeMap<Integer,List<ServiceInfo>> allByPort = new TreeMap<Integer,List<ServiceInfo>>();
+        Map<String,List<ServiceInfo>> byTag = new HashMap<String,List<ServiceInfo>>();
+        Map<String,List<ServiceInfo>> byContainer = new HashMap<String,List<ServiceInfo>>();
+
+        long lastContactMillis = 0;
+        boolean knownLeader = true;
+        boolean stale = false;
+
+        for (ServiceInfo info : allList) {
+            lastContactMillis = Math.max(lastContactMillis, info.getLastContactMillis());
+            knownLeader &= info.isKnownLeader();
+            stale |= info.isStale();
+
+            if (DiscoveryScope.ME.includes(info, myNodeUniqueTagId)) {
+                me.add(info);
+            } else {
+                peers.add(info);
+            }
+
+            add(allByPort, info.getMappedPort(), info);
+
+            if (info.getTags() != null) {
+                for (String tag : info.getTags()) {
+                    add(byTag, tag, info);
+                }
+            }
+
+            String containerId = getContainerId(info.getServiceId());
+            if (containerId != null) {
+                add(byContainer, containerId, info);
+            }
+        }
+
+        this.all = Collections.unmodifiableList(allList);
+        this.me = Collections.unmodifiableList(me);
+        this.peers = Collections.unmodifiableList(peers);
+
+        int size = allByPort.size();
+        this.ports = new int[size];
+        this.byPort = new PortIndex[size];
+
+        int i = 0;
+        for (Map.Entry<Integer,List<ServiceInfo>> entry : allByPort.entrySet()) {
+            List<ServiceInfo> mePort = new ArrayList<ServiceInfo>();
+            List<ServiceInfo> peersPort = new ArrayList<ServiceInfo>();
+            for (ServiceInfo info : entry.getValue()) {
+                if (DiscoveryScope.ME.includes(info, myNodeUniqueTagId)) {
+                    mePort.add(info);
+                } else {
+                    peersPort.add(info);
+                }
+            }
+
+            this.ports[i] = entry.getKey();
+            this.byPort[i] = new PortIndex(Collections.unmodifiableList(entry.getValue()),
+                                           unmodifiableOrEmpty(mePort),
+                                           unmodifiableOrEmpty(peersPort));
+            i++;
+        }
+        this.mappedPorts = Collections.unmodifiableSet(new LinkedHashSet<Integer>(allByPort.keySet()));
+
+        this.byTag = unmodifiable(byTag);
+        this.byContainer = unmodifiable(byContainer);
+
+        this.lastContactMillis = lastContactMillis;
+        this.knownLeader = knownLeader;
+        this.stale = stale;
+    }
+
+    /**
+     * Registrator service ids are "<docker-host>:<container-name>:<port>[:udp]",
+     * the container id is everything before the port
+     *
+     * @param serviceId
+     * @return "<docker-host>:<container-name>" or null if serviceId is not in that format
+     */
+    static String getContainerId(String serviceId) {
+        if (serviceId == null) {
+            return null;
+        }
+        int first = serviceId.indexOf(':');
+        if (first < 0) {
+            return null;
+        }
+        int second = serviceId.indexOf(':', first + 1);
+        if (second < 0) {
+            return null;
+        }
+        return serviceId.substring(0, second);
+    }
+
+    private static <K> void add(Map<K,List<ServiceInfo>> index, K key, ServiceInfo info) {
+        List<ServiceInfo> infos = index.get(key);
+        if (infos == null) {
+            infos = new ArrayList<ServiceInfo>(2);
+            index.put(key, infos);
+        } else if (infos.get(infos.size()-1) == info) {
+            return; // i.e. duplicate tag on the same entry
+        }
+        infos.add(info);
+    }
+
+    private static Collection<ServiceInfo> unmodifiableOrEmpty(List<ServiceInfo> infos) {
+        if (infos.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(infos);
+    }
+
+    private static Map<String,Collection<ServiceInfo>> unmodifiable(Map<String,List<ServiceInfo>> index) {
+        Map<String,Collection<ServiceInfo>> result = new HashMap<String,Collection<ServiceInfo>>(index.size() * 2);
+        for (Map.Entry<String,List<ServiceInfo>> entry : index.entrySet()) {
+            result.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    private PortIndex get(int mappedPort) {
+        int i = Arrays.binarySearch(this.ports, mappedPort);
+        return (i < 0 ? null : this.byPort[i]);
+    }
+
+    private static Collection<ServiceInfo> get(Map<String,Collection<ServiceInfo>> index, String key) {
+        Collection<ServiceInfo> infos = index.get(key);
+        if (infos == null) {
+            return Collections.emptyList();
+        }
+        return infos;
+    }
+
+    /**
+     * @return the unique tag id this snapshot's getMe()/getPeers() are relative to
+     */
+    public String getMyNodeUniqueTagId() {
+        return myNodeUniqueTagId;
+    }
+
+    /**
+     * @return same as ConsulDiscovery.discoverMe()
+     */
+    public Collection<ServiceInfo> getMe() {
+        return me;
+    }
+
+    /**
+     * @return same as ConsulDiscovery.discoverMe(mappedPort)
+     */
+    public Collection<ServiceInfo> getMe(int mappedPort) {
+        PortIndex index = get(mappedPort);
+        return (index != null ? index.me : Collections.<ServiceInfo>emptyList());
+    }
+
+    /**
+     * @return same as ConsulDiscovery.discoverPeers()
+     */
+    public Collection<ServiceInfo> getPeers() {
+        return peers;
+    }
+
+    /**
+     * @return same as ConsulDiscovery.discoverPeers(mappedPort)
+     */
+    public Collection<ServiceInfo> getPeers(int mappedPort) {
+        PortIndex index = get(mappedPort);
+        return (index != null ? index.peers : Collections.<ServiceInfo>emptyList());
+    }
+
+    /**
+     * @return same as ConsulDiscovery.discoverAll()
+     */
+    public Collection<ServiceInfo> getAll() {
+        return all;
+    }
+
+    /**
+     * @return same as ConsulDiscovery.discoverAll(mappedPort)
+     */
+    public Collection<ServiceInfo> getAll(int mappedPort) {
+        PortIndex index = get(mappedPort);
+        return (index != null ? index.all : Collections.<ServiceInfo>emptyList());
+    }
+
+    /**
+     * @param tag
+     * @return every ServiceInfo carrying the given tag, i.e. pass another container's
+     *         unique tag id to get all of its ServiceInfos
+     */
+    public Collection<ServiceInfo> getWithTag(String tag) {
+        return get(byTag, tag);
+    }
+
+    /**
+     * @param containerId "<docker-host>:<container-name>" as found at the start of Registrator service ids
+     * @return every ServiceInfo registered for that container (one per port)
+     */
+    public Collection<ServiceInfo> getContainer(String containerId) {
+        return get(byContainer, containerId);
+    }
+
+    /**
+     * @param info
+     * @return every ServiceInfo registered for the same container as info (incl. info itself)
+     */
+    public Collection<ServiceInfo> getContainerOf(ServiceInfo info) {
+        String containerId = getContainerId(info.getServiceId());
+        if (containerId == null) {
+            return Collections.emptyList();
+        }
+        return get(byContainer, containerId);
+    }
+
+    /**
+     * @return all distinct container ids discovered
+     */
+    public Set<String> getContainerIds() {
+        return byContainer.keySet();
+    }
+
+    /**
+     * @return all distinct tags discovered
+     */
+    public Set<String> getTags() {
+        return byTag.keySet();
+    }
+
+    /**
+     * @return all distinct mapped ports discovered, in ascending order
+     */
+    public Set<Integer> getMappedPorts() {
+        return mappedPorts;
+    }
+
+    /**
+     * @return the largest ServiceInfo.getLastContactMillis() across everything
+     *         discovered, i.e. the worst case staleness of this snapshot
+     */
+    public long getLastContactMillis() {
+        return lastContactMillis;
+    }
+
+    /**
+     * @return false if any of the Consul responses this snapshot was built
+     *         from were served w/o a known leader
+     */
+    public boolean isKnownLeader() {
+        return knownLeader;
+    }
+
+    /**
+     * @return true if this snapshot was (in part) served from the last known
+     *         good snapshot persisted by a SnapshotStore rather than Consul
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    public int size() {
+        return all.size();
+    }
+
+}
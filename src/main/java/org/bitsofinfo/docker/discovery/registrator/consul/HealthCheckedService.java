@@ -0,0 +1,77 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+import com.orbitz.consul.model.catalog.CatalogService;
+import com.orbitz.consul.model.health.ServiceHealth;
+
+/**
+ * A health endpoint entry viewed as a catalog entry (w/o copying), 
+ * so health mode goes through the same matching and conversion as 
+ * the catalog, plus its aggregate HealthStatus
+ * 
+ * @author bitsofinfo
+ *
+ */
+class HealthCheckedService extends CatalogService {
+    
+    private final ServiceHealth health;
+    private final HealthStatus status;
+    
+    HealthCheckedService(ServiceHealth health) {
+        this.health = health;
+        this.status = HealthStatus.of(health.getChecks());
+    }
+    
+    public HealthStatus getHealthStatus() {
+        return status;
+    }
+
+    @Override
+    public String getNode() {
+        return health.getNode().getNode();
+    }
+
+    @Override
+    public String getAddress() {
+        return health.getNode().getAddress();
+    }
+
+    @Override
+    public Optional<String> getDatacenter() {
+        return health.getNode().getDatacenter();
+    }
+
+    @Override
+    public String getServiceName() {
+        return health.getService().getService();
+    }
+
+    @Override
+    public String getServiceId() {
+        return health.getService().getId();
+    }
+
+    @Override
+    public String getServiceAddress() {
+        return health.getService().getAddress();
+    }
+
+    @Override
+    public int getServicePort() {
+        return health.getService().getPort();
+    }
+
+    @Override
+    public List<String> getServiceTags() {
+        return health.getService().getTags();
+    }
+
+    @Override
+    public Optional<Map<String,String>> getNodeMeta() {
+        return health.getNode().getNodeMeta();
+    }
+
+}
@@ -0,0 +1,22 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+/**
+ * Whether discovery reads the catalog (no health information) or the
+ * health endpoint, and which check states it then accepts.
+ * 
+ * @see ConsulDiscovery#setHealthFilter(HealthFilter)
+ * @author bitsofinfo
+ *
+ */
+public enum HealthFilter {
+    
+    /** catalog only, entries are returned regardless of their checks (default) */
+    NONE,
+    
+    /** health endpoint, only entries whose checks are all passing (filtered by Consul) */
+    PASSING,
+    
+    /** health endpoint, entries w/ passing or warning checks but no critical ones */
+    PASSING_OR_WARNING
+
+}
@@ -0,0 +1,66 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.List;
+
+import com.orbitz.consul.model.health.HealthCheck;
+
+/**
+ * Aggregate state of a service instance's (and its node's) Consul checks, 
+ * the worst of them wins
+ * 
+ * @see ServiceInfo#getHealthStatus()
+ * @author bitsofinfo
+ *
+ */
+public enum HealthStatus {
+    
+    PASSING,
+    
+    WARNING,
+    
+    /** includes nodes/services in maintenance and unknown states */
+    CRITICAL;
+    
+    static HealthStatus of(String consulStatus) {
+        if ("passing".equals(consulStatus)) {
+            return PASSING;
+        }
+        if ("warning".equals(consulStatus)) {
+            return WARNING;
+        }
+        return CRITICAL;
+    }
+    
+    /**
+     * @param checks
+     * @return the worst status of the given checks, PASSING if there are none
+     */
+    static HealthStatus of(List<HealthCheck> checks) {
+        HealthStatus worst = PASSING;
+        if (checks != null) {
+            for (int i=0, n=checks.size(); i<n; i++) {
+                HealthStatus status = of(checks.get(i).getStatus());
+                if (status.compareTo(worst) > 0) {
+                    worst = status;
+                }
+            }
+        }
+        return worst;
+    }
+    
+    /**
+     * @param filter
+     * @return if an instance in this state is accepted by the given filter
+     */
+    boolean accepts(HealthFilter filter) {
+        switch(filter) {
+            case PASSING:
+                return this == PASSING;
+            case PASSING_OR_WARNING:
+                return this != CRITICAL;
+            default:
+                return true;
+        }
+    }
+
+}
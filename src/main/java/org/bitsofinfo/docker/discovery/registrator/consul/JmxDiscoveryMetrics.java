@@ -0,0 +1,282 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * DiscoveryMetrics implementation that aggregates everything in memory
+ * (lock free) and exposes it as an MXBean, i.e. for jconsole or a JMX
+ * exporter to scrape.
+ *
+ * <pre>
+ * JmxDiscoveryMetrics metrics = new JmxDiscoveryMetrics("my-service").register();
+ * consulDiscovery.setMetrics(metrics);
+ * ...
+ * metrics.unregister();
+ * </pre>
+ *
+ * @author bitsofinfo
+ *
+ */
+public class JmxDiscoveryMetrics implements DiscoveryMetrics, JmxDiscoveryMetricsMXBean {
+
+    public static final String DOMAIN = "org.bitsofinfo.docker.discovery.registrator.consul";
+
+    private final ObjectName objectName;
+
+    private final ConcurrentMap<String,LatencyHistogram> discoveryLatency = new ConcurrentHashMap<String,LatencyHistogram>();
+
+    private final LatencyHistogram catalogQueryLatency = new LatencyHistogram();
+    private final LongAdder catalogQueries = new LongAdder();
+    private final LongAdder catalogEntriesFetched = new LongAdder();
+    private final LongAdder catalogEntriesMatched = new LongAdder();
+
+    private final LatencyHistogram agentRequestLatency = new LatencyHistogram();
+    private final ConcurrentMap<String,LongAdder> agentRequestsByStatus = new ConcurrentHashMap<String,LongAdder>();
+
+    private final LatencyHistogram addressResolutionLatency = new LatencyHistogram();
+    private final LongAdder addressResolutionFailures = new LongAdder();
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheStaleHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    private final LongAdder watchIterations = new LongAdder();
+    private final LongAdder watchChanges = new LongAdder();
+
+    private final ConcurrentMap<String,LongAdder> errorsByType = new ConcurrentHashMap<String,LongAdder>();
+
+    /**
+     *
+     * @param name distinguishes this instance's ObjectName, i.e. the service name
+     * @throws Exception
+     */
+    public JmxDiscoveryMetrics(String name) throws Exception {
+        this.objectName = new ObjectName(DOMAIN + ":type=DiscoveryMetrics,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Registers with the platform MBeanServer
+     *
+     * @return
+     * @throws Exception
+     */
+    public JmxDiscoveryMetrics register() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (!server.isRegistered(objectName)) {
+            server.registerMBean(this, objectName);
+        }
+        return this;
+    }
+
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch(Exception ignore) {
+            // already gone
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    private static <K> LatencyHistogram histogram(ConcurrentMap<K,LatencyHistogram> histograms, K key) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            LatencyHistogram existing = histograms.putIfAbsent(key, histogram = new LatencyHistogram());
+            histogram = (existing != null ? existing : histogram);
+        }
+        return histogram;
+    }
+
+    private static void increment(ConcurrentMap<String,LongAdder> counters, String key) {
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            LongAdder existing = counters.putIfAbsent(key, counter = new LongAdder());
+            counter = (existing != null ? existing : counter);
+        }
+        counter.increment();
+    }
+
+    private static Map<String,Long> snapshot(Map<String,LongAdder> counters) {
+        Map<String,Long> result = new TreeMap<String,Long>();
+        for (Map.Entry<String,LongAdder> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    // -- DiscoveryMetrics
+
+    @Override
+    public void onDiscovery(String method, long durationNanos) {
+        histogram(discoveryLatency, method).record(durationNanos);
+    }
+
+    @Override
+    public void onCatalogQuery(String catalogServiceName, int fetched, int matched, long durationNanos) {
+        catalogQueries.increment();
+        catalogEntriesFetched.add(fetched);
+        catalogEntriesMatched.add(matched);
+        catalogQueryLatency.record(durationNanos);
+    }
+
+    @Override
+    public void onAgentRequest(String path, int statusCode, long durationNanos) {
+        increment(agentRequestsByStatus, String.valueOf(statusCode));
+        agentRequestLatency.record(durationNanos);
+    }
+
+    @Override
+    public void onAddressResolution(String host, long durationNanos, boolean success) {
+        addressResolutionLatency.record(durationNanos);
+        if (!success) {
+            addressResolutionFailures.increment();
+        }
+    }
+
+    @Override
+    public void onCacheHit(boolean stale) {
+        cacheHits.increment();
+        if (stale) {
+            cacheStaleHits.increment();
+        }
+    }
+
+    @Override
+    public void onCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    @Override
+    public void onWatchIteration(String catalogServiceName, boolean changed) {
+        watchIterations.increment();
+        if (changed) {
+            watchChanges.increment();
+        }
+    }
+
+    @Override
+    public void onError(String operation, Throwable error) {
+        increment(errorsByType, operation + ":" + (error != null ? error.getClass().getSimpleName() : "unknown"));
+    }
+
+    // -- JmxDiscoveryMetricsMXBean
+
+    @Override
+    public Map<String,LatencyStats> getDiscoveryLatency() {
+        Map<String,LatencyStats> result = new TreeMap<String,LatencyStats>();
+        for (Map.Entry<String,LatencyHistogram> entry : discoveryLatency.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return result;
+    }
+
+    @Override
+    public LatencyStats getCatalogQueryLatency() {
+        return catalogQueryLatency.getStats();
+    }
+
+    @Override
+    public long getCatalogQueries() {
+        return catalogQueries.sum();
+    }
+
+    @Override
+    public long getCatalogEntriesFetched() {
+        return catalogEntriesFetched.sum();
+    }
+
+    @Override
+    public long getCatalogEntriesMatched() {
+        return catalogEntriesMatched.sum();
+    }
+
+    @Override
+    public LatencyStats getAgentRequestLatency() {
+        return agentRequestLatency.getStats();
+    }
+
+    @Override
+    public Map<String,Long> getAgentRequestsByStatus() {
+        return snapshot(agentRequestsByStatus);
+    }
+
+    @Override
+    public LatencyStats getAddressResolutionLatency() {
+        return addressResolutionLatency.getStats();
+    }
+
+    @Override
+    public long getAddressResolutionFailures() {
+        return addressResolutionFailures.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheStaleHits() {
+        return cacheStaleHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = cacheHits.sum();
+        long total = hits + cacheMisses.sum();
+        return (total == 0 ? 0 : (double)hits / total);
+    }
+
+    @Override
+    public long getWatchIterations() {
+        return watchIterations.sum();
+    }
+
+    @Override
+    public long getWatchChanges() {
+        return watchChanges.sum();
+    }
+
+    @Override
+    public Map<String,Long> getErrorsByType() {
+        return snapshot(errorsByType);
+    }
+
+    @Override
+    public void reset() {
+        discoveryLatency.clear();
+        catalogQueryLatency.reset();
+        catalogQueries.reset();
+        catalogEntriesFetched.reset();
+        catalogEntriesMatched.reset();
+        agentRequestLatency.reset();
+        agentRequestsByStatus.clear();
+        addressResolutionLatency.reset();
+        addressResolutionFailures.reset();
+        cacheHits.reset();
+        cacheStaleHits.reset();
+        cacheMisses.reset();
+        watchIterations.reset();
+        watchChanges.reset();
+        errorsByType.clear();
+    }
+
+}
@@ -0,0 +1,59 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.Map;
+
+/**
+ * JMX view of JmxDiscoveryMetrics
+ *
+ * @author bitsofinfo
+ *
+ */
+public interface JmxDiscoveryMetricsMXBean {
+
+    /**
+     * @return latency per discover*() method name
+     */
+    public Map<String,LatencyStats> getDiscoveryLatency();
+
+    public LatencyStats getCatalogQueryLatency();
+
+    public long getCatalogQueries();
+
+    public long getCatalogEntriesFetched();
+
+    public long getCatalogEntriesMatched();
+
+    public LatencyStats getAgentRequestLatency();
+
+    /**
+     * @return agent request counts by HTTP status code
+     */
+    public Map<String,Long> getAgentRequestsByStatus();
+
+    public LatencyStats getAddressResolutionLatency();
+
+    public long getAddressResolutionFailures();
+
+    public long getCacheHits();
+
+    public long getCacheStaleHits();
+
+    public long getCacheMisses();
+
+    /**
+     * @return hits / (hits + misses), 0 if there were none
+     */
+    public double getCacheHitRatio();
+
+    public long getWatchIterations();
+
+    public long getWatchChanges();
+
+    /**
+     * @return error counts by "operation:ExceptionType"
+     */
+    public Map<String,Long> getErrorsByType();
+
+    public void reset();
+
+}
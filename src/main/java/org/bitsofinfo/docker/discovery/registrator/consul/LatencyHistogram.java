@@ -0,0 +1,114 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free, fixed size latency histogram (microsecond resolution).
+ *
+ * Values < 16us get their own bucket, above that every power of 2
+ * is split into 8 linear sub buckets, so percentiles are accurate
+ * to within ~12.5% across the whole range using < 4KB.
+ *
+ * @author bitsofinfo
+ *
+ */
+class LatencyHistogram {
+
+    private static final int LINEAR = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = LINEAR + ((63 - 4 + 1) * SUB_BUCKETS);
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long durationNanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(durationNanos));
+
+        buckets.incrementAndGet(bucketOf(micros));
+        count.increment();
+        sumMicros.add(micros);
+
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            // retry
+        }
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < LINEAR) {
+            return (int)micros;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(micros); // >= 4
+        int sub = (int)((micros >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return LINEAR + ((exp - 4) * SUB_BUCKETS) + sub;
+    }
+
+    /**
+     * @return the largest value that falls into the given bucket
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exp = ((bucket - LINEAR) / SUB_BUCKETS) + 4;
+        long sub = (bucket - LINEAR) % SUB_BUCKETS;
+        long width = 1L << (exp - SUB_BUCKET_BITS);
+        return (1L << exp) + ((sub + 1) * width) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @param percentile 0..1
+     * @return the (bucket upper bound) value in micros at the given percentile, 0 if empty
+     */
+    public long getPercentileMicros(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i=0; i<BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long)Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    public LatencyStats getStats() {
+        long n = count.sum();
+        return new LatencyStats(n,
+                                (n == 0 ? 0 : sumMicros.sum() / n),
+                                getPercentileMicros(0.50),
+                                getPercentileMicros(0.95),
+                                getPercentileMicros(0.99),
+                                maxMicros.get());
+    }
+
+    public void reset() {
+        for (int i=0; i<BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sumMicros.reset();
+        maxMicros.set(0);
+    }
+
+}
@@ -0,0 +1,22 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+/**
+ * How a PeerLoadBalancer picks among the (non ejected) peers
+ *
+ * @see PeerLoadBalancer
+ * @author bitsofinfo
+ *
+ */
+public enum LoadBalancingPolicy {
+
+    /** each peer in turn */
+    ROUND_ROBIN,
+
+    /** the one of two randomly picked peers w/ fewer requests in flight (default) */
+    POWER_OF_TWO_CHOICES,
+
+    /** the one of two randomly picked peers w/ the lower EWMA latency * (requests in flight + 1),
+     *  failures count as a latency penalty and untried peers as typical latency */
+    EWMA
+
+}
@@ -0,0 +1,119 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The difference between two successive sets of discovered ServiceInfos,
+ * keyed by ServiceInfo.getServiceId(), as computed by MembershipTracker.
+ * 
+ * Immutable
+ * 
+ * @author bitsofinfo
+ *
+ */
+public class MembershipDiff {
+    
+    /**
+     * A serviceId whose ServiceInfo changed
+     */
+    public static class Change {
+        
+        private final ServiceInfo previous;
+        private final ServiceInfo current;
+        
+        Change(ServiceInfo previous, ServiceInfo current) {
+            this.previous = previous;
+            this.current = current;
+        }
+
+        public ServiceInfo getPrevious() {
+            return previous;
+        }
+
+        public ServiceInfo getCurrent() {
+            return current;
+        }
+        
+        @Override
+        public String toString() {
+            return "{\"previous\":" + previous + ",\"current\":" + current + "}";
+        }
+    }
+    
+    private final List<ServiceInfo> added;
+    private final List<ServiceInfo> removed;
+    private final List<Change> changed;
+    private final long fingerprint;
+    
+    MembershipDiff(List<ServiceInfo> added, List<ServiceInfo> removed, List<Change> changed, long fingerprint) {
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+        this.changed = Collections.unmodifiableList(changed);
+        this.fingerprint = fingerprint;
+    }
+    
+    /**
+     * Order independent 64 bit fingerprint of a set of ServiceInfos, built 
+     * from each ServiceInfo.getFingerprint() (which are computed once and
+     * cached), no allocation. Equal sets always have equal fingerprints.
+     * 
+     * @param services
+     * @return
+     */
+    public static long fingerprint(Collection<ServiceInfo> services) {
+        long fp = 0;
+        for (ServiceInfo info : services) {
+            fp += ServiceInfo.mix(info.getFingerprint());
+        }
+        return ServiceInfo.mix(fp ^ services.size());
+    }
+    
+    public List<ServiceInfo> getAdded() {
+        return added;
+    }
+    
+    public List<ServiceInfo> getRemoved() {
+        return removed;
+    }
+    
+    public List<Change> getChanged() {
+        return changed;
+    }
+    
+    /**
+     * @return fingerprint of the (new) set of ServiceInfos this diff leads to
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+    
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+    
+    /**
+     * Invokes the listener for every change in this diff, removed 
+     * first, then changed, then added
+     * 
+     * @param listener
+     */
+    public void dispatch(MembershipListener listener) {
+        for (ServiceInfo info : removed) {
+            listener.onPeerRemoved(info);
+        }
+        for (Change change : changed) {
+            listener.onPeerChanged(change.getPrevious(), change.getCurrent());
+        }
+        for (ServiceInfo info : added) {
+            listener.onPeerAdded(info);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "{\"added\":" + added + ",\"removed\":" + removed + ",\"changed\":" + changed + "}";
+    }
+
+}
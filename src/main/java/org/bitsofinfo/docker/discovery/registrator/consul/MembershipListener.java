@@ -0,0 +1,34 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+/**
+ * Callback interface for incremental membership changes, keyed
+ * by ServiceInfo.getServiceId(). See ConsulDiscovery.watchPeers(MembershipListener)
+ * and MembershipTracker.
+ * 
+ * For each change in the discovered services the callbacks are invoked 
+ * (removed, then changed, then added) one at a time from a single thread.
+ * 
+ * @author bitsofinfo
+ *
+ */
+public interface MembershipListener {
+    
+    /**
+     * A ServiceInfo w/ a serviceId not previously seen was discovered
+     */
+    public void onPeerAdded(ServiceInfo added);
+    
+    /**
+     * A previously discovered serviceId is no longer present
+     */
+    public void onPeerRemoved(ServiceInfo removed);
+    
+    /**
+     * A previously discovered serviceId is still present but its 
+     * ServiceInfo changed (i.e. exposed address/port or tags)
+     */
+    public void onPeerChanged(ServiceInfo previous, ServiceInfo current);
+    
+    public void onError(Exception e);
+
+}
@@ -0,0 +1,140 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the last seen set of ServiceInfos and computes incremental 
+ * MembershipDiffs (added/removed/changed, keyed by serviceId) as new
+ * sets are discovered. 
+ * 
+ * An unchanged set is detected by comparing fingerprints (see
+ * MembershipDiff.fingerprint()), confirmed by looking each service up
+ * in the current set, w/o building any maps. A full O(n) hash based
+ * diff is only done when something changed.
+ * 
+ * Thread safe.
+ * 
+ * @author bitsofinfo
+ *
+ */
+public class MembershipTracker {
+    
+    private static final Logger logger = LoggerFactory.getLogger(MembershipTracker.class);
+    
+    private Map<String,ServiceInfo> current = Collections.emptyMap();
+    private long currentFingerprint = MembershipDiff.fingerprint(Collections.<ServiceInfo>emptyList());
+    private MembershipDiff noChange = noChange(currentFingerprint);
+    
+    /**
+     * Applies the newly discovered set of services and returns what changed 
+     * since the previous call (everything is "added" on the first call)
+     * 
+     * @param services
+     * @return
+     */
+    public synchronized MembershipDiff update(Collection<ServiceInfo> services) {
+        
+        long fingerprint = MembershipDiff.fingerprint(services);
+        if (fingerprint == this.currentFingerprint && sameAsCurrent(services)) {
+            return this.noChange;
+        }
+        
+        Map<String,ServiceInfo> next = new HashMap<String,ServiceInfo>(services.size() * 2);
+        List<ServiceInfo> added = new ArrayList<ServiceInfo>();
+        List<MembershipDiff.Change> changed = new ArrayList<MembershipDiff.Change>();
+        
+        for (ServiceInfo info : services) {
+            if (next.put(info.getServiceId(), info) != null) {
+                logger.debug("update() duplicate serviceId " + info.getServiceId() + " last one wins");
+            }
+        }
+        
+        for (ServiceInfo info : next.values()) {
+            ServiceInfo previous = this.current.get(info.getServiceId());
+            if (previous == null) {
+                added.add(info);
+            } else if (previous.getFingerprint() != info.getFingerprint() || !previous.equals(info)) {
+                changed.add(new MembershipDiff.Change(previous, info));
+            }
+        }
+        
+        List<ServiceInfo> removed = new ArrayList<ServiceInfo>();
+        for (ServiceInfo previous : this.current.values()) {
+            if (!next.containsKey(previous.getServiceId())) {
+                removed.add(previous);
+            }
+        }
+        
+        this.current = next;
+        this.currentFingerprint = fingerprint;
+        this.noChange = noChange(fingerprint);
+        
+        return new MembershipDiff(added, removed, changed, fingerprint);
+    }
+    
+    /**
+     * Confirms a fingerprint match, so that a fingerprint collision can never
+     * hide a change. Allocation free, a lookup of each service by serviceId.
+     */
+    private boolean sameAsCurrent(Collection<ServiceInfo> services) {
+        if (services.size() != this.current.size()) {
+            return false;
+        }
+        for (ServiceInfo info : services) {
+            ServiceInfo previous = this.current.get(info.getServiceId());
+            if (previous == null || (previous != info && !previous.equals(info))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static MembershipDiff noChange(long fingerprint) {
+        return new MembershipDiff(Collections.<ServiceInfo>emptyList(), 
+                                  Collections.<ServiceInfo>emptyList(), 
+                                  Collections.<MembershipDiff.Change>emptyList(), fingerprint);
+    }
+    
+    /**
+     * @return fingerprint of the last set passed to update()
+     */
+    public synchronized long getFingerprint() {
+        return this.currentFingerprint;
+    }
+    
+    /**
+     * @return the current ServiceInfos by serviceId (unmodifiable)
+     */
+    public synchronized Map<String,ServiceInfo> getCurrent() {
+        return Collections.unmodifiableMap(this.current);
+    }
+    
+    /**
+     * Adapts a MembershipListener to a DiscoveryListener (for use w/ the 
+     * ConsulDiscovery watch*() methods) by diffing each discovery against
+     * the previous one via a new MembershipTracker
+     * 
+     * @param listener
+     * @return
+     */
+    public static DiscoveryListener asDiscoveryListener(final MembershipListener listener) {
+        final MembershipTracker tracker = new MembershipTracker();
+        return new DiscoveryListener() {
+            public void onDiscovery(Collection<ServiceInfo> services) {
+                tracker.update(services).dispatch(listener);
+            }
+            public void onError(Exception e) {
+                listener.onError(e);
+            }
+        };
+    }
+
+}
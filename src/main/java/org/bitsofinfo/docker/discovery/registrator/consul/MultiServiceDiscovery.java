@@ -0,0 +1,283 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Discovers many service names at once, i.e. for a gateway that needs the
+ * topology of all its upstreams, w/o one ConsulDiscovery (and Consul client)
+ * per service name.
+ *
+ * All configuration (consul url(s), strategy, ports, tags, health filter,
+ * consistency etc) comes from the given ConsulDiscovery, its service name is
+ * ignored. Service names are given explicitly and/or matched against the
+ * catalog's service names by pattern (or prefix), each is then fetched
+ * concurrently over that ConsulDiscovery's shared client and the result
+ * consolidated into one MultiServiceSnapshot.
+ *
+ * <pre>
+ * MultiServiceDiscovery upstreams = new MultiServiceDiscovery(
+ *                                       new ConsulDiscovery()
+ *                                           .setConsulUrl(url)
+ *                                           .setServiceNameStrategyClass(OneServiceNameMultiPortStrategy.class)
+ *                                           .addPortToDiscover(8080))
+ *                                       .setServiceNamePrefix("api-");
+ *
+ * MultiServiceSnapshot snapshot = upstreams.discover();
+ * snapshot.get("api-orders").getAll(8080);
+ * </pre>
+ *
+ * @author bitsofinfo
+ *
+ */
+public class MultiServiceDiscovery implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MultiServiceDiscovery.class);
+
+    private final ConsulDiscovery discovery;
+
+    private Set<String> serviceNames = new LinkedHashSet<String>();
+    private Pattern serviceNamePattern = null;
+
+    private int maxConcurrentQueries = 8;
+    private long queryTimeoutMillis = 0;
+    private boolean allowPartialResults = false;
+
+    private final Object executorLock = new Object();
+    private ThreadPoolExecutor executor = null;
+
+    /**
+     * @param discovery provides all configuration and the shared client,
+     *                  its service name is ignored. Closed by our close()
+     */
+    public MultiServiceDiscovery(ConsulDiscovery discovery) {
+        this.discovery = discovery;
+    }
+
+    /**
+     * Discovers all configured service names (plus those currently in the
+     * catalog matching the pattern/prefix, if set) concurrently
+     *
+     * @return
+     * @throws Exception if any service name failed (unless partial results are allowed)
+     */
+    public MultiServiceSnapshot discover() throws Exception {
+        DiscoveryMetrics metrics = this.discovery.getMetrics();
+        long start = System.nanoTime();
+        try {
+            MultiServiceSnapshot snapshot = _discover();
+            if (metrics != null) {
+                metrics.onDiscovery("discoverMulti", System.nanoTime() - start);
+            }
+            return snapshot;
+
+        } catch(Exception e) {
+            if (metrics != null) {
+                metrics.onError("discoverMulti", e);
+            }
+            throw e;
+        }
+    }
+
+    private MultiServiceSnapshot _discover() throws Exception {
+
+        Set<String> names = resolveServiceNames();
+
+        Map<String,DiscoverySnapshot> snapshots = new TreeMap<String,DiscoverySnapshot>();
+        Map<String,Exception> failures = new TreeMap<String,Exception>();
+
+        ThreadPoolExecutor executor = getExecutor();
+
+        // inline when there is nothing to parallelize
+        if (executor == null || names.size() <= 1) {
+            for (String name : names) {
+                try {
+                    snapshots.put(name, this.discovery.discoverSnapshot(name));
+                } catch(Exception e) {
+                    failed(name, e, failures);
+                }
+            }
+            return new MultiServiceSnapshot(snapshots, failures);
+        }
+
+        List<String> submitted = new ArrayList<String>(names.size());
+        List<Future<DiscoverySnapshot>> futures = new ArrayList<Future<DiscoverySnapshot>>(names.size());
+        for (final String name : names) {
+            submitted.add(name);
+            futures.add(executor.submit(() -> this.discovery.discoverSnapshot(name)));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.queryTimeoutMillis);
+        try {
+            for (int i=0; i<futures.size(); i++) {
+                String name = submitted.get(i);
+                Future<DiscoverySnapshot> future = futures.get(i);
+                try {
+                    if (this.queryTimeoutMillis > 0) {
+                        snapshots.put(name, future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                    } else {
+                        snapshots.put(name, future.get());
+                    }
+
+                } catch(ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    failed(name, (cause instanceof Exception ? (Exception)cause : e), failures);
+
+                } catch(TimeoutException e) {
+                    failed(name, new TimeoutException("discovery of " + name + " did not complete within " +
+                                                      this.queryTimeoutMillis + "ms"), failures);
+                }
+            }
+
+        } finally {
+            // only does anything if we are bailing out early
+            for (Future<DiscoverySnapshot> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        return new MultiServiceSnapshot(snapshots, failures);
+    }
+
+    private void failed(String serviceName, Exception e, Map<String,Exception> failures) throws Exception {
+        if (!this.allowPartialResults) {
+            throw new Exception("discover() of service name " + serviceName + " failed: " + e.getMessage(), e);
+        }
+        logger.debug("discover() of service name " + serviceName + " failed, omitting it: " + e.getMessage());
+        failures.put(serviceName, e);
+    }
+
+    /**
+     * @return the configured service names plus (if a pattern is set) those
+     *         currently in the catalog matching it
+     * @throws Exception
+     */
+    public Set<String> resolveServiceNames() throws Exception {
+        Set<String> names = new LinkedHashSet<String>(this.serviceNames);
+        if (this.serviceNamePattern != null) {
+            names.addAll(this.discovery.findServiceNames(this.serviceNamePattern));
+        }
+        return names;
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+        synchronized(executorLock) {
+            if (this.executor == null && this.maxConcurrentQueries > 1) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(this.maxConcurrentQueries, this.maxConcurrentQueries,
+                                                                    60, TimeUnit.SECONDS,
+                                                                    new LinkedBlockingQueue<Runnable>(),
+                                                                    new DaemonThreadFactory("consul-multi-discovery"));
+                executor.allowCoreThreadTimeOut(true);
+                this.executor = executor;
+            }
+            return this.executor;
+        }
+    }
+
+    /**
+     * Stops our query threads and closes the ConsulDiscovery
+     */
+    @Override
+    public void close() {
+        synchronized(executorLock) {
+            if (this.executor != null) {
+                this.executor.shutdownNow();
+                this.executor = null;
+            }
+        }
+        this.discovery.close();
+    }
+
+    public ConsulDiscovery getDiscovery() {
+        return discovery;
+    }
+
+    public MultiServiceDiscovery addServiceName(String serviceName) {
+        this.serviceNames.add(serviceName);
+        return this;
+    }
+
+    public MultiServiceDiscovery setServiceNames(Collection<String> serviceNames) {
+        this.serviceNames = new LinkedHashSet<String>(serviceNames);
+        return this;
+    }
+
+    /**
+     * Also discover every service name in the catalog (fetched on each
+     * discover()) that fully matches this pattern
+     *
+     * @param serviceNamePattern null to only discover the given service names
+     * @return
+     */
+    public MultiServiceDiscovery setServiceNamePattern(Pattern serviceNamePattern) {
+        this.serviceNamePattern = serviceNamePattern;
+        return this;
+    }
+
+    /**
+     * Same as setServiceNamePattern() for all service names w/ the given prefix
+     *
+     * @param prefix
+     * @return
+     */
+    public MultiServiceDiscovery setServiceNamePrefix(String prefix) {
+        return setServiceNamePattern(Pattern.compile(Pattern.quote(prefix) + ".*"));
+    }
+
+    /**
+     * Max service names fetched at once (default 8), 1 to fetch one after the other
+     *
+     * @param maxConcurrentQueries
+     * @return
+     */
+    public MultiServiceDiscovery setMaxConcurrentQueries(int maxConcurrentQueries) {
+        synchronized(executorLock) {
+            this.maxConcurrentQueries = maxConcurrentQueries;
+            if (this.executor != null) {
+                this.executor.shutdown();
+                this.executor = null;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Max time (overall) to wait for all service names, 0 = no limit (default)
+     *
+     * @param queryTimeoutMillis
+     * @return
+     */
+    public MultiServiceDiscovery setQueryTimeoutMillis(long queryTimeoutMillis) {
+        this.queryTimeoutMillis = queryTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * If true service names that fail (or time out) are reported in
+     * MultiServiceSnapshot.getFailures() rather than failing discover() (default false)
+     *
+     * @param allowPartialResults
+     * @return
+     */
+    public MultiServiceDiscovery setAllowPartialResults(boolean allowPartialResults) {
+        this.allowPartialResults = allowPartialResults;
+        return this;
+    }
+
+}
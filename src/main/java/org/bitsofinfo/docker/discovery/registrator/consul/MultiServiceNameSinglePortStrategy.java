@@ -2,6 +2,8 @@ package org.bitsofinfo.docker.discovery.registrator.consul;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -95,18 +97,19 @@ public class MultiServiceNameSinglePortStrategy extends ServiceNameStrategyBase
                                             Collection<Integer> ports, 
                                             Collection<String> mustMatchTags) throws Exception {
 
-        Collection<ServiceInfo> services = new ArrayList<ServiceInfo>();
-        
         // for each port, we need to append the port to the serviceName base
+        // (queried concurrently if a query executor is configured)
+        return super._discoverEach(catalogClient, getCatalogServiceNames(serviceName, ports), ports, mustMatchTags);
+        
+    }
+    
+    @Override
+    public List<String> getCatalogServiceNames(String serviceName, Collection<Integer> ports) {
+        List<String> names = new ArrayList<String>();
         for (Integer port : ports) {
-            services.addAll(
-                    super._discover(catalogClient, (serviceName+"-"+port.toString()), ports, mustMatchTags)
-                    );
-            
+            names.add(serviceName+"-"+port.toString());
         }
-        
-        return services;
-        
+        return names;
     }
 
 }
@@ -0,0 +1,83 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable result of MultiServiceDiscovery.discover(): one indexed
+ * DiscoverySnapshot per service name plus, if partial results are
+ * allowed, the service names that failed and why.
+ *
+ * @author bitsofinfo
+ *
+ */
+public class MultiServiceSnapshot {
+
+    private final Map<String,DiscoverySnapshot> snapshots;
+    private final Map<String,Exception> failures;
+    private final Collection<ServiceInfo> all;
+
+    MultiServiceSnapshot(Map<String,DiscoverySnapshot> snapshots, Map<String,Exception> failures) {
+        this.snapshots = Collections.unmodifiableMap(new LinkedHashMap<String,DiscoverySnapshot>(snapshots));
+        this.failures = Collections.unmodifiableMap(new LinkedHashMap<String,Exception>(failures));
+
+        int size = 0;
+        for (DiscoverySnapshot snapshot : snapshots.values()) {
+            size += snapshot.size();
+        }
+        Collection<ServiceInfo> all = new ArrayList<ServiceInfo>(size);
+        for (DiscoverySnapshot snapshot : snapshots.values()) {
+            all.addAll(snapshot.getAll());
+        }
+        this.all = Collections.unmodifiableCollection(all);
+    }
+
+    /**
+     * @param serviceName
+     * @return the snapshot for the given service name, null if it was not discovered (or failed)
+     */
+    public DiscoverySnapshot get(String serviceName) {
+        return snapshots.get(serviceName);
+    }
+
+    /**
+     * @return snapshots by service name, sorted by name
+     */
+    public Map<String,DiscoverySnapshot> getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * @return the service names that were discovered successfully
+     */
+    public Set<String> getServiceNames() {
+        return snapshots.keySet();
+    }
+
+    /**
+     * @return every ServiceInfo across all service names
+     */
+    public Collection<ServiceInfo> getAll() {
+        return all;
+    }
+
+    /**
+     * @return service names that could not be discovered (only w/ partial results allowed)
+     */
+    public Map<String,Exception> getFailures() {
+        return failures;
+    }
+
+    public boolean isComplete() {
+        return failures.isEmpty();
+    }
+
+    public int size() {
+        return all.size();
+    }
+
+}
@@ -0,0 +1,457 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client side load balancer over discovered peers: picks which peer's
+ * exposedAddress:exposedPort to send the next request to, per its
+ * LoadBalancingPolicy, and passively ejects outliers.
+ *
+ * Membership comes from update() or, as a DiscoveryListener, straight from
+ * a watch i.e. consulDiscovery.watchPeers(balancer). Updates are incremental:
+ * peers still present keep their state (in flight count, EWMA, failures).
+ *
+ * select() is lock free and allocation free: it reads an immutable array
+ * of peers published on each update, and per peer state is atomic.
+ *
+ * <pre>
+ * PeerLoadBalancer.Peer peer = balancer.select();
+ * long start = peer.start();
+ * try {
+ *     call(peer.getAddress(), peer.getPort());
+ *     peer.success(start);
+ * } catch(Exception e) {
+ *     peer.failure(start);
+ * }
+ * </pre>
+ *
+ * With EWMA a failure counts as a sample of FAILURE_PENALTY times the
+ * typical (EWMA over all peers' successes) latency, or its own duration if
+ * longer, so a peer failing fast never looks fastest. Peers w/o samples yet
+ * are assumed typical. Equal loads go to the peer w/ fewer requests in flight.
+ *
+ * Outlier ejection: after maxConsecutiveFailures failures in a row a peer
+ * is skipped for ejectionMillis (times the number of times it was ejected
+ * in a row, up to maxEjectionMillis). The first success afterwards fully
+ * restores it. At most maxEjectionPercent of the peers are ejected at once,
+ * and if all candidates are ejected one is used anyway.
+ *
+ * @author bitsofinfo
+ *
+ */
+public class PeerLoadBalancer implements DiscoveryListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(PeerLoadBalancer.class);
+
+    // weight of the most recent sample
+    static final double EWMA_ALPHA = 0.2;
+
+    // a failure counts as this many times the typical latency
+    static final double FAILURE_PENALTY = 5;
+
+    private static final Peer[] NO_PEERS = new Peer[0];
+
+    private final LoadBalancingPolicy policy;
+    private int mappedPort = -1;
+
+    private int maxConsecutiveFailures = 5;
+    private long ejectionNanos = TimeUnit.SECONDS.toNanos(30);
+    private long maxEjectionNanos = TimeUnit.MINUTES.toNanos(5);
+    private int maxEjectionPercent = 50;
+
+    private final Object updateLock = new Object();
+    private volatile Peer[] peers = NO_PEERS;
+    private final AtomicInteger next = new AtomicInteger();
+
+    // Double bits, EWMA over the successes of all peers, NaN until the first
+    private final AtomicLong typicalNanos = new AtomicLong(Double.doubleToLongBits(Double.NaN));
+
+    public PeerLoadBalancer() {
+        this(LoadBalancingPolicy.POWER_OF_TWO_CHOICES);
+    }
+
+    public PeerLoadBalancer(LoadBalancingPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * A peer and its state, compared by identity
+     */
+    public class Peer {
+
+        private volatile ServiceInfo serviceInfo;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        // Double bits, NaN until the first success/failure
+        private final AtomicLong ewmaNanos = new AtomicLong(Double.doubleToLongBits(Double.NaN));
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile int consecutiveEjections = 0;
+        private volatile long ejectedUntilNanos = 0;
+
+        private Peer(ServiceInfo serviceInfo) {
+            this.serviceInfo = serviceInfo;
+        }
+
+        /**
+         * Call right before sending a request to this peer
+         *
+         * @return start time, to pass to success()/failure()
+         */
+        public long start() {
+            inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        /**
+         * @param startNanos as returned by start()
+         */
+        public void success(long startNanos) {
+            long durationNanos = System.nanoTime() - startNanos;
+            inFlight.decrementAndGet();
+            consecutiveFailures.set(0);
+            if (ejectedUntilNanos != 0) {
+                ejectedUntilNanos = 0;
+                consecutiveEjections = 0;
+            }
+
+            sample(ewmaNanos, durationNanos);
+            sample(typicalNanos, durationNanos);
+        }
+
+        /**
+         * @param startNanos as returned by start()
+         */
+        public void failure(long startNanos) {
+            long durationNanos = System.nanoTime() - startNanos;
+            inFlight.decrementAndGet();
+
+            double typical = Double.longBitsToDouble(typicalNanos.get());
+            sample(ewmaNanos, Double.isNaN(typical) ? durationNanos : Math.max(durationNanos, FAILURE_PENALTY * typical));
+
+            if (consecutiveFailures.incrementAndGet() >= maxConsecutiveFailures) {
+                eject(this);
+            }
+        }
+
+        public boolean isEjected() {
+            return isEjected(System.nanoTime());
+        }
+
+        boolean isEjected(long nowNanos) {
+            long until = ejectedUntilNanos;
+            return until != 0 && nowNanos - until < 0;
+        }
+
+        public ServiceInfo getServiceInfo() {
+            return serviceInfo;
+        }
+
+        /**
+         * @return the exposed address to send requests to
+         */
+        public InetAddress getAddress() {
+            return serviceInfo.getExposedAddress();
+        }
+
+        /**
+         * @return the exposed port to send requests to
+         */
+        public int getPort() {
+            return serviceInfo.getExposedPort();
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        /**
+         * @return EWMA latency (failures count w/ a penalty), 0 if no samples yet
+         */
+        public double getEwmaNanos() {
+            double ewma = Double.longBitsToDouble(ewmaNanos.get());
+            return (Double.isNaN(ewma) ? 0 : ewma);
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures.get();
+        }
+
+        @Override
+        public String toString() {
+            ServiceInfo info = this.serviceInfo;
+            return info.getExposedHost() + ":" + info.getExposedPort() +
+                    "[inFlight=" + inFlight.get() +
+                    " ewma=" + TimeUnit.NANOSECONDS.toMicros((long)getEwmaNanos()) + "us" +
+                    " failures=" + consecutiveFailures.get() +
+                    " ejected=" + isEjected() + "]";
+        }
+    }
+
+    /**
+     * Picks the peer for the next request
+     *
+     * @return null if there are no peers
+     */
+    public Peer select() {
+        Peer[] peers = this.peers;
+        int n = peers.length;
+        if (n == 0) {
+            return null;
+        }
+        if (n == 1) {
+            return peers[0];
+        }
+
+        long now = System.nanoTime();
+        switch (this.policy) {
+            case ROUND_ROBIN:
+                return roundRobin(peers, now);
+            default:
+                return twoChoices(peers, now);
+        }
+    }
+
+    private Peer roundRobin(Peer[] peers, long now) {
+        int n = peers.length;
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+        for (int i=0; i<n; i++) {
+            Peer peer = peers[(start + i) % n];
+            if (!peer.isEjected(now)) {
+                return peer;
+            }
+        }
+        return peers[start]; // all ejected, better than nothing
+    }
+
+    private Peer twoChoices(Peer[] peers, long now) {
+        int n = peers.length;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        // a few tries to draw non ejected candidates before scanning for one
+        for (int attempt=0; attempt<3; attempt++) {
+            int a = random.nextInt(n);
+            int b = random.nextInt(n - 1);
+            if (b >= a) {
+                b++;
+            }
+            Peer pa = peers[a];
+            Peer pb = peers[b];
+            boolean aEjected = pa.isEjected(now);
+            boolean bEjected = pb.isEjected(now);
+
+            if (!aEjected && !bEjected) {
+                double loadA = load(pa);
+                double loadB = load(pb);
+                if (loadA == loadB) {
+                    return (pb.inFlight.get() < pa.inFlight.get() ? pb : pa);
+                }
+                return (loadB < loadA ? pb : pa);
+            }
+            if (!aEjected) {
+                return pa;
+            }
+            if (!bEjected) {
+                return pb;
+            }
+        }
+        return roundRobin(peers, now);
+    }
+
+    private double load(Peer peer) {
+        if (this.policy == LoadBalancingPolicy.EWMA) {
+            double ewma = Double.longBitsToDouble(peer.ewmaNanos.get());
+            if (Double.isNaN(ewma)) {
+                // untried, assume typical (0 if nothing succeeded yet: in flight counts decide)
+                double typical = Double.longBitsToDouble(typicalNanos.get());
+                ewma = (Double.isNaN(typical) ? 0 : typical);
+            }
+            return ewma * (peer.inFlight.get() + 1);
+        }
+        return peer.inFlight.get();
+    }
+
+    /**
+     * Adds a sample to the EWMA held (as Double bits) in the given AtomicLong
+     */
+    private static void sample(AtomicLong ewmaBits, double sampleNanos) {
+        long current;
+        double next;
+        do {
+            current = ewmaBits.get();
+            double ewma = Double.longBitsToDouble(current);
+            next = (Double.isNaN(ewma) ? sampleNanos : ewma + EWMA_ALPHA * (sampleNanos - ewma));
+        } while (!ewmaBits.compareAndSet(current, Double.doubleToLongBits(next)));
+    }
+
+    private void eject(Peer peer) {
+        long now = System.nanoTime();
+        if (peer.isEjected(now)) {
+            return;
+        }
+
+        // never eject more than maxEjectionPercent of the peers
+        Peer[] peers = this.peers;
+        int ejected = 0;
+        for (Peer p : peers) {
+            if (p.isEjected(now)) {
+                ejected++;
+            }
+        }
+        if ((ejected + 1) * 100 > peers.length * this.maxEjectionPercent) {
+            return;
+        }
+
+        int ejections = Math.min(peer.consecutiveEjections + 1, 64);
+        long duration = Math.min(this.maxEjectionNanos, this.ejectionNanos * ejections);
+        peer.consecutiveEjections = ejections;
+        peer.ejectedUntilNanos = now + duration;
+        peer.consecutiveFailures.set(0);
+
+        logger.warn("Ejecting peer " + peer + " for " + TimeUnit.NANOSECONDS.toMillis(duration) +
+                    "ms after " + this.maxConsecutiveFailures + " consecutive failures");
+    }
+
+    /**
+     * Replaces the membership, peers (by serviceId and exposed host:port)
+     * still present keep their state
+     *
+     * @param services i.e. discoverPeers(), filtered by mapped port if one is set
+     */
+    public void update(Collection<ServiceInfo> services) {
+        synchronized(updateLock) {
+            Map<String,Peer> current = new HashMap<String,Peer>(this.peers.length * 2);
+            for (Peer peer : this.peers) {
+                current.put(peer.serviceInfo.getServiceId(), peer);
+            }
+
+            Peer[] updated = new Peer[services.size()];
+            int n = 0;
+            int added = 0;
+            for (ServiceInfo info : services) {
+                if (this.mappedPort >= 0 && info.getMappedPort() != this.mappedPort) {
+                    continue;
+                }
+                Peer peer = current.remove(info.getServiceId());
+                if (peer == null || !sameEndpoint(peer.serviceInfo, info)) {
+                    peer = new Peer(info);
+                    added++;
+                } else {
+                    peer.serviceInfo = info; // i.e. tags or health changed
+                }
+                updated[n++] = peer;
+            }
+
+            this.peers = (n == 0 ? NO_PEERS : Arrays.copyOf(updated, n));
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("update() " + n + " peers, " + added + " added, " + current.size() + " removed");
+            }
+        }
+    }
+
+    /**
+     * Same as update() w/ the snapshot's peers
+     *
+     * @param snapshot
+     */
+    public void update(DiscoverySnapshot snapshot) {
+        update(this.mappedPort >= 0 ? snapshot.getPeers(this.mappedPort) : snapshot.getPeers());
+    }
+
+    private static boolean sameEndpoint(ServiceInfo info1, ServiceInfo info2) {
+        return info1.getExposedPort() == info2.getExposedPort() &&
+               (info1.getExposedHost() == null ? info2.getExposedHost() == null : info1.getExposedHost().equals(info2.getExposedHost()));
+    }
+
+    @Override
+    public void onDiscovery(Collection<ServiceInfo> services) {
+        update(services);
+    }
+
+    @Override
+    public void onError(Exception e) {
+        // keep balancing over what we know
+        logger.debug("onError() discovery failed, keeping " + this.peers.length + " peers: " + e.getMessage());
+    }
+
+    /**
+     * @return the current peers
+     */
+    public List<Peer> getPeers() {
+        return Collections.unmodifiableList(Arrays.asList(this.peers));
+    }
+
+    public LoadBalancingPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Only balance over peers w/ this mapped port (default -1, all)
+     *
+     * @param mappedPort
+     * @return
+     */
+    public PeerLoadBalancer setMappedPort(int mappedPort) {
+        this.mappedPort = mappedPort;
+        return this;
+    }
+
+    /**
+     * Consecutive failures before a peer is ejected (default 5)
+     *
+     * @param maxConsecutiveFailures
+     * @return
+     */
+    public PeerLoadBalancer setMaxConsecutiveFailures(int maxConsecutiveFailures) {
+        this.maxConsecutiveFailures = Math.max(1, maxConsecutiveFailures);
+        return this;
+    }
+
+    /**
+     * How long a peer is ejected the first time (default 30000), each
+     * further ejection w/o a success in between adds the same again
+     *
+     * @param ejectionMillis
+     * @return
+     */
+    public PeerLoadBalancer setEjectionMillis(long ejectionMillis) {
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+        return this;
+    }
+
+    /**
+     * Upper bound on how long a peer is ejected (default 300000)
+     *
+     * @param maxEjectionMillis
+     * @return
+     */
+    public PeerLoadBalancer setMaxEjectionMillis(long maxEjectionMillis) {
+        this.maxEjectionNanos = TimeUnit.MILLISECONDS.toNanos(maxEjectionMillis);
+        return this;
+    }
+
+    /**
+     * Max share of the peers that can be ejected at once (default 50)
+     *
+     * @param maxEjectionPercent
+     * @return
+     */
+    public PeerLoadBalancer setMaxEjectionPercent(int maxEjectionPercent) {
+        this.maxEjectionPercent = Math.max(0, Math.min(100, maxEjectionPercent));
+        return this;
+    }
+
+}
@@ -14,11 +14,26 @@ public class ServiceInfo {
     
     private int exposedPort;
     private int mappedPort;
-    private InetAddress exposedAddress; 
+    private volatile InetAddress exposedAddress; 
+    private String exposedHost;
+    private AddressResolver addressResolver = null; // when resolving lazily
     private String serviceName;
     private String serviceId;
     private Collection<String> tags = null;
     
+    // null unless discovered via the health endpoint
+    private HealthStatus healthStatus = null;
+    
+    // consul response metadata, not part of equals()
+    private long lastContactMillis = 0;
+    private boolean knownLeader = true;
+    
+    // true when served from a SnapshotStore rather than a live response, not part of equals()
+    private boolean stale = false;
+    
+    // lazily computed, 0 = not yet computed
+    private long fingerprint = 0;
+    
     public ServiceInfo(String serviceName, 
                        String serviceId,
                        InetAddress exposedAddress, 
@@ -32,8 +47,33 @@ public class ServiceInfo {
         this.serviceName = serviceName;
         this.tags = tags;
         this.serviceId = serviceId;
+        this.exposedHost = (exposedAddress != null ? exposedAddress.getHostAddress() : null);
         
     }
+    
+    /**
+     * Constructor for when the exposed address may not have been resolved
+     * yet, if exposedAddress is null it will be resolved from exposedHost
+     * via the addressResolver on the first call to getExposedAddress()
+     */
+    ServiceInfo(String serviceName, 
+                String serviceId,
+                String exposedHost,
+                InetAddress exposedAddress,
+                AddressResolver addressResolver,
+                int exposedPort, 
+                int mappedPort,
+                Collection<String> tags) {
+        
+        this.exposedHost = exposedHost;
+        this.exposedAddress = exposedAddress;
+        this.addressResolver = addressResolver;
+        this.exposedPort = exposedPort;
+        this.mappedPort = mappedPort;
+        this.serviceName = serviceName;
+        this.tags = tags;
+        this.serviceId = serviceId;
+    }
 
     public String getServiceId() {
         return this.serviceId;
@@ -43,8 +83,31 @@ public class ServiceInfo {
         return exposedPort;
     }
 
+    /**
+     * @return the exposed address, resolving it first if address
+     *         resolution is lazy/async and it has not been yet
+     * @throws IllegalStateException if lazy resolution fails
+     */
     public InetAddress getExposedAddress() {
-        return exposedAddress;
+        InetAddress address = this.exposedAddress;
+        if (address == null && this.addressResolver != null) {
+            try {
+                address = this.addressResolver.resolve(this.exposedHost);
+                this.exposedAddress = address;
+            } catch(Exception e) {
+                throw new IllegalStateException("Could not resolve exposed address " + 
+                                                this.exposedHost + " of " + this.serviceId + ": " + e.getMessage(), e);
+            }
+        }
+        return address;
+    }
+    
+    /**
+     * @return the exposed address as found in Consul (ip or hostname), 
+     *         never requires resolution
+     */
+    public String getExposedHost() {
+        return exposedHost;
     }
 
     public String getServiceName() {
@@ -59,14 +122,157 @@ public class ServiceInfo {
         return mappedPort;
     }
     
+    /**
+     * @return for the Consul response this was discovered in, how long (ms)
+     *         since the answering server last contacted the leader, 0 when
+     *         answered by the leader. Only meaningful for STALE reads.
+     */
+    public long getLastContactMillis() {
+        return lastContactMillis;
+    }
+    
+    /**
+     * @return whether the answering server knew of a cluster leader 
+     *         when the Consul response this was discovered in was served
+     */
+    public boolean isKnownLeader() {
+        return knownLeader;
+    }
+    
+    void setConsistencyInfo(long lastContactMillis, boolean knownLeader) {
+        this.lastContactMillis = lastContactMillis;
+        this.knownLeader = knownLeader;
+    }
+    
+    /**
+     * @return true if this did not come from a live Consul response but 
+     *         from the last known good snapshot persisted by a SnapshotStore 
+     *         (i.e. at startup or while Consul is unreachable)
+     */
+    public boolean isStale() {
+        return stale;
+    }
+    
+    /**
+     * @return a copy of this marked as stale
+     */
+    ServiceInfo asStale() {
+        ServiceInfo copy = new ServiceInfo(serviceName, serviceId, exposedHost, exposedAddress, addressResolver, 
+                                           exposedPort, mappedPort, tags);
+        copy.healthStatus = this.healthStatus;
+        copy.lastContactMillis = this.lastContactMillis;
+        copy.knownLeader = this.knownLeader;
+        copy.fingerprint = this.fingerprint;
+        copy.stale = true;
+        return copy;
+    }
+    
+    /**
+     * @return the aggregate state of this instance's checks, or null
+     *         if discovered from the catalog (HealthFilter.NONE)
+     */
+    public HealthStatus getHealthStatus() {
+        return healthStatus;
+    }
+    
+    void setHealthStatus(HealthStatus healthStatus) {
+        this.healthStatus = healthStatus;
+        this.fingerprint = 0;
+    }
+    
+    /**
+     * 64 bit hash of everything that makes up equals(), computed once. 
+     * Equal ServiceInfos always have equal fingerprints
+     * 
+     * @return
+     */
+    public long getFingerprint() {
+        long fp = this.fingerprint;
+        if (fp == 0) {
+            fp = 0xcbf29ce484222325L;
+            fp = fingerprint(fp, serviceName);
+            fp = fingerprint(fp, serviceId);
+            fp = fingerprint(fp, exposedHost);
+            fp = mix(fp ^ exposedPort);
+            fp = mix(fp ^ mappedPort);
+            fp = mix(fp ^ (healthStatus != null ? healthStatus.ordinal() + 1 : 0));
+            if (tags != null) {
+                for (String tag : tags) {
+                    fp = fingerprint(fp, tag);
+                }
+            }
+            fp = (fp == 0 ? 1 : fp);
+            this.fingerprint = fp;
+        }
+        return fp;
+    }
+    
+    private static long fingerprint(long fp, String value) {
+        if (value == null) {
+            return mix(fp);
+        }
+        for (int i=0; i<value.length(); i++) {
+            fp = (fp ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(fp ^ value.length());
+    }
+    
+    /**
+     * 64 bit finalizer (murmur3 fmix64)
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
+    @Override
+    public int hashCode() {
+        int result = 1;
+        result = 31 * result + exposedPort;
+        result = 31 * result + mappedPort;
+        result = 31 * result + (exposedHost == null ? 0 : exposedHost.hashCode());
+        result = 31 * result + (serviceName == null ? 0 : serviceName.hashCode());
+        result = 31 * result + (serviceId == null ? 0 : serviceId.hashCode());
+        result = 31 * result + (tags == null ? 0 : tags.hashCode());
+        result = 31 * result + (healthStatus == null ? 0 : healthStatus.ordinal() + 1);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ServiceInfo)) {
+            return false;
+        }
+        ServiceInfo other = (ServiceInfo) obj;
+        return exposedPort == other.exposedPort &&
+               mappedPort == other.mappedPort &&
+               eq(exposedHost, other.exposedHost) &&
+               eq(serviceName, other.serviceName) &&
+               eq(serviceId, other.serviceId) &&
+               eq(tags, other.tags) &&
+               healthStatus == other.healthStatus;
+    }
+    
+    private static boolean eq(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+    
     @Override
     public String toString() {
         return "{\"serviceName\":\""+ this.getServiceName() +"\"," +
                "\"serviceId\":\""+ this.getServiceId() +"\"," +
-               "\"exposedAddress\":\""+ this.getExposedAddress().getHostAddress() +"\"," +
+               "\"exposedAddress\":\""+ (this.exposedAddress != null ? this.exposedAddress.getHostAddress() : this.exposedHost) +"\"," +
                "\"exposedPort\":"+ this.getExposedPort() +"," +
                "\"mappedPort\":"+ this.getMappedPort() +"," +
-               "\"tags\":\""+ Arrays.toString(this.getTags().toArray()) +"\"}";
+               "\"tags\":\""+ Arrays.toString(this.getTags().toArray()) +"\"" +
+               (this.healthStatus != null ? ",\"healthStatus\":\"" + this.healthStatus + "\"" : "") + "}";
     }
     
 }
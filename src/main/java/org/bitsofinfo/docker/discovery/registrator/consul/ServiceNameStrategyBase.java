@@ -1,17 +1,31 @@
 package org.bitsofinfo.docker.discovery.registrator.consul;
 
+import java.math.BigInteger;
 import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Optional;
 import com.orbitz.consul.CatalogClient;
+import com.orbitz.consul.HealthClient;
 import com.orbitz.consul.model.ConsulResponse;
 import com.orbitz.consul.model.catalog.CatalogService;
+import com.orbitz.consul.model.health.ServiceHealth;
+import com.orbitz.consul.option.ConsistencyMode;
+import com.orbitz.consul.option.ImmutableQueryOptions;
+import com.orbitz.consul.option.QueryOptions;
 
 /**
  * Base code shared across all service name strategy impls. 
@@ -24,87 +38,593 @@ import com.orbitz.consul.model.catalog.CatalogService;
 public abstract class ServiceNameStrategyBase {
     
     private static final Logger logger = LoggerFactory.getLogger(ServiceNameStrategyBase.class);
+    
+    // optional, when set multiple catalog service names are queried concurrently
+    private ExecutorService queryExecutor = null;
+    private long queryTimeoutMillis = 0;
+    private boolean allowPartialResults = false;
+    
+    // send mustMatchTags to consul as ?tag= params
+    private boolean serverSideTagFiltering = true;
+    
+    // read consistency and, for STALE reads, max acceptable staleness
+    private ConsistencyMode consistencyMode = ConsistencyMode.DEFAULT;
+    private long maxStaleMillis = 0;
+    
+    // how/when catalog addresses become InetAddresses
+    private AddressResolver addressResolver = AddressResolver.getDefault();
+    private AddressResolution addressResolution = AddressResolution.EAGER;
+    
+    // optional, null = disabled
+    private DiscoveryMetrics metrics = null;
+    
+    // optional multi agent failover/hedging, null = only use the given CatalogClient
+    private volatile ConsulEndpoints endpoints = null;
+    
+    // catalog (NONE) or health endpoint, the latter requires a healthClient (or endpoints)
+    private HealthFilter healthFilter = HealthFilter.NONE;
+    private volatile HealthClient healthClient = null;
 
     protected Collection<ServiceInfo> _discover(CatalogClient catalogClient, 
                                                 String serviceName, 
                                                 Collection<Integer> ports,
                                                 Collection<String> mustMatchTags) throws Exception {
         
-        List<ServiceInfo> discoveredServices = new ArrayList<ServiceInfo>();
+        DiscoveryMetrics metrics = this.metrics;
+        if (metrics == null) {
+            ConsulResponse<List<CatalogService>> resp = fetchCatalogService(catalogClient, serviceName, 
+                                                                            buildQueryOptions(mustMatchTags, null, 0));
+            return toServiceInfos(resp, serviceName, ports, mustMatchTags);
+        }
         
-        ConsulResponse<List<CatalogService>> resp = catalogClient.getService(serviceName);
-        List<CatalogService> serviceList = resp.getResponse();
+        long start = System.nanoTime();
+        try {
+            ConsulResponse<List<CatalogService>> resp = fetchCatalogService(catalogClient, serviceName, 
+                                                                            buildQueryOptions(mustMatchTags, null, 0));
+            List<ServiceInfo> infos = toServiceInfos(resp, serviceName, ports, mustMatchTags);
+            metrics.onCatalogQuery(serviceName, resp.getResponse().size(), infos.size(), System.nanoTime() - start);
+            return infos;
+            
+        } catch(Exception e) {
+            metrics.onError("catalogQuery", e);
+            throw e;
+        }
+    }
+    
+    /**
+     * Builds the QueryOptions for a catalog query. 
+     * 
+     * Unless disabled, the mustMatchTags are sent to Consul as "tag" params so 
+     * that non-matching entries are filtered server side and never downloaded. 
+     * Agents older than 1.2.3 only honor the first tag, so the client side 
+     * tag matching in toServiceInfos() is always still applied.
+     * 
+     * @param mustMatchTags
+     * @param index optional blocking query index, null for a non-blocking query
+     * @param waitSeconds blocking query wait, ignored if index is null
+     * @return
+     */
+    protected QueryOptions buildQueryOptions(Collection<String> mustMatchTags, BigInteger index, int waitSeconds) {
         
-        logger.trace("_discover() catalogClient.getService("+serviceName+") returned " + serviceList.size() + " results..");
+        ImmutableQueryOptions.Builder builder = (index == null ? ImmutableQueryOptions.builder() :
+                                                                 QueryOptions.blockSeconds(waitSeconds, index));
         
-        for (CatalogService srv : serviceList) {
-        	
-        	logger.trace("_discover() evaluating consul service: name:" + srv.getServiceName() + 
-        				" serviceId:" + srv.getServiceId() + 
-        				" servicePort:" + srv.getServicePort() +
-        				" tags: " + Arrays.toString(srv.getServiceTags().toArray()));
+        builder.consistencyMode(this.consistencyMode);
+        
+        if (this.serverSideTagFiltering && mustMatchTags != null) {
+            for (String tag : mustMatchTags) {
+                if (tag != null) {
+                    builder.addTag(tag);
+                }
+            }
+        }
+        
+        return builder.build();
+    }
+    
+    /**
+     * Discovers across several Consul catalog service names. If a queryExecutor
+     * is configured the names are queried concurrently (each bound by the 
+     * queryTimeoutMillis, if any) so that total latency is that of the
+     * slowest single query, otherwise they are queried one after another.
+     * 
+     * The sequential path (no queryExecutor, or just one name) does not apply
+     * queryTimeoutMillis at all, each query is bound only by the HTTP read timeout.
+     * 
+     * If any query fails an Exception is thrown, unless allowPartialResults
+     * is enabled in which case results from the successful queries are
+     * returned (provided at least one succeeded)
+     * 
+     * @param catalogClient
+     * @param catalogServiceNames
+     * @param ports
+     * @param mustMatchTags
+     * @return
+     * @throws Exception
+     */
+    protected Collection<ServiceInfo> _discoverEach(final CatalogClient catalogClient, 
+                                                    List<String> catalogServiceNames, 
+                                                    final Collection<Integer> ports,
+                                                    final Collection<String> mustMatchTags) throws Exception {
+        
+        Collection<ServiceInfo> services = new ArrayList<ServiceInfo>();
+        List<String> failedNames = new ArrayList<String>();
+        Throwable firstFailure = null;
+        
+        if (this.queryExecutor == null || catalogServiceNames.size() <= 1) {
+            for (String catalogServiceName : catalogServiceNames) {
+                try {
+                    services.addAll(_discover(catalogClient, catalogServiceName, ports, mustMatchTags));
+                } catch(Exception e) {
+                    if (!this.allowPartialResults) {
+                        throw e;
+                    }
+                    failedNames.add(catalogServiceName);
+                    firstFailure = (firstFailure == null ? e : firstFailure);
+                    logger.warn("_discoverEach() query for " + catalogServiceName + " failed: " + e.getMessage());
+                }
+            }
+            
+        } else {
+            
+            List<Future<Collection<ServiceInfo>>> futures = new ArrayList<Future<Collection<ServiceInfo>>>();
+            for (final String catalogServiceName : catalogServiceNames) {
+                futures.add(this.queryExecutor.submit(new Callable<Collection<ServiceInfo>>() {
+                    public Collection<ServiceInfo> call() throws Exception {
+                        return _discover(catalogClient, catalogServiceName, ports, mustMatchTags);
+                    }
+                }));
+            }
+            
+            // all queries were started together, so a shared deadline 
+            // bounds each one by queryTimeoutMillis
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.queryTimeoutMillis);
             
-            if (matchesTags(srv.getServiceTags(),mustMatchTags)) {
+            for (int i=0; i<futures.size(); i++) {
+                Future<Collection<ServiceInfo>> future = futures.get(i);
+                String catalogServiceName = catalogServiceNames.get(i);
                 
                 try {
-                    // we parse mapped port from serviceId format "xx:yy:port"
-                    // registrator sets the serviceId = to this format above for each
-                    // unique port
-                    int mappedPort = Integer.valueOf(srv.getServiceId().split(":")[2]);
-
-                    // if we care about this mapped port... capture the service 
-                    if (ports.contains(mappedPort)) {
-                        
-                    	InetAddress exposedAddress = null;
-                    	if (srv.getServiceAddress() != null) {
-                    		exposedAddress = InetAddress.getByName(srv.getServiceAddress());
-                    	} else {
-                    		// https://www.consul.io/docs/agent/http/catalog.html#ServiceAddress
-                    		logger.trace("_discover() CatalogService.serviceAddress is null... "
-                    				+ "falling back to address["+srv.getAddress()+"]");
-                    		exposedAddress = InetAddress.getByName(srv.getAddress());
-                    	}
-                    	
-                        ServiceInfo info = new ServiceInfo(srv.getServiceName(),
-                                                            srv.getServiceId(),
-                                                            exposedAddress,
-                                                            srv.getServicePort(),
-                                                            mappedPort,
-                                                            srv.getServiceTags());
-                        discoveredServices.add(info);
-                        
-                        logger.debug("_discover() Discovered ServiceInfo: " + info);
-                        
+                    if (this.queryTimeoutMillis > 0) {
+                        services.addAll(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
                     } else {
-                    	logger.trace("_discover() serviceNameToFind=" + serviceName + 
-                    			", skipping consul service: " + srv.getServiceName() + 
-                    			" as its mappedPort[" + mappedPort + "] is not in list of "
-                    					+ "ports we care about: " + Arrays.toString(ports.toArray()) );;
+                        services.addAll(future.get());
                     }
                     
-                } catch(Exception e) {
-                    throw new Exception("discover() Unexpected error processing "
-                    		+ "service: " + srv.getServiceName() + " " + e.getMessage(),e);
+                } catch(TimeoutException e) {
+                    future.cancel(true);
+                    failedNames.add(catalogServiceName);
+                    firstFailure = (firstFailure == null ? new TimeoutException("query for " + catalogServiceName + 
+                                            " timed out after " + this.queryTimeoutMillis + "ms") : firstFailure);
+                    logger.warn("_discoverEach() query for " + catalogServiceName + " timed out after " + this.queryTimeoutMillis + "ms");
+                    
+                } catch(ExecutionException e) {
+                    failedNames.add(catalogServiceName);
+                    firstFailure = (firstFailure == null ? e.getCause() : firstFailure);
+                    logger.warn("_discoverEach() query for " + catalogServiceName + " failed: " + e.getCause().getMessage());
+                    
+                } catch(InterruptedException e) {
+                    for (Future<Collection<ServiceInfo>> f : futures) {
+                        f.cancel(true);
+                    }
+                    Thread.currentThread().interrupt();
+                    throw e;
                 }
-                
-            } else {
-            	logger.trace("_discover() serviceNameToFind=" + serviceName + 
-            			" skipping consul service: " + srv.getServiceName() + 
-            			" with tags: " + (srv.getServiceTags() != null ? Arrays.toString(srv.getServiceTags().toArray()) : "[no tags]") + 
-            			" as they don't contain mustMatchTags: " + Arrays.toString(mustMatchTags.toArray()));
             }
-            
         }
         
-        return discoveredServices;
+        if (!failedNames.isEmpty() && 
+                (!this.allowPartialResults || failedNames.size() == catalogServiceNames.size())) {
+            throw new Exception("_discoverEach() queries failed for " + failedNames + ": " + firstFailure.getMessage(), firstFailure);
+        }
+        
+        return services;
     }
     
+    /**
+     * Optional ExecutorService used to query multiple catalog service names
+     * concurrently. Should be bounded, the caller owns its lifecycle.
+     * 
+     * @param queryExecutor null for sequential queries
+     */
+    public void setQueryExecutor(ExecutorService queryExecutor) {
+        this.queryExecutor = queryExecutor;
+    }
+
+    /**
+     * Max time to wait on each concurrent catalog query (0 = no limit). 
+     * Ignored unless a queryExecutor is set and there are multiple names.
+     * 
+     * @param queryTimeoutMillis
+     */
+    public void setQueryTimeoutMillis(long queryTimeoutMillis) {
+        this.queryTimeoutMillis = queryTimeoutMillis;
+    }
+
+    /**
+     * When querying multiple catalog service names, if some (but not all)
+     * fail, return what was found rather than throwing (default false)
+     * 
+     * @param allowPartialResults
+     */
+    public void setAllowPartialResults(boolean allowPartialResults) {
+        this.allowPartialResults = allowPartialResults;
+    }
+
+    /**
+     * Send mustMatchTags to Consul so it filters by tag server side (default true), 
+     * client side filtering is always applied regardless.
+     * 
+     * @param serverSideTagFiltering
+     */
+    public void setServerSideTagFiltering(boolean serverSideTagFiltering) {
+        this.serverSideTagFiltering = serverSideTagFiltering;
+    }
+
+    /**
+     * Read consistency mode for catalog queries (default DEFAULT). STALE
+     * lets any Consul server answer rather than forwarding every read to
+     * the leader.
+     * 
+     * see: https://www.consul.io/api/index.html#consistency-modes
+     * 
+     * @param consistencyMode
+     */
+    public void setConsistencyMode(ConsistencyMode consistencyMode) {
+        this.consistencyMode = (consistencyMode != null ? consistencyMode : ConsistencyMode.DEFAULT);
+    }
+    
+    /**
+     * When using STALE reads, if the answering server's last contact with 
+     * the leader exceeds this, the query is re-issued w/ DEFAULT consistency.
+     * (default 0, accept any staleness)
+     * 
+     * @param maxStaleMillis
+     */
+    public void setMaxStaleMillis(long maxStaleMillis) {
+        this.maxStaleMillis = maxStaleMillis;
+    }
+
+    /**
+     * Resolver (and its cache) used for catalog addresses (default AddressResolver.getDefault())
+     * 
+     * @param addressResolver
+     */
+    public void setAddressResolver(AddressResolver addressResolver) {
+        this.addressResolver = (addressResolver != null ? addressResolver : AddressResolver.getDefault());
+    }
+    
+    /**
+     * Whether to discover from the catalog or the health endpoint, and 
+     * which health states to accept (default NONE, the catalog)
+     * 
+     * @param healthFilter
+     */
+    public void setHealthFilter(HealthFilter healthFilter) {
+        this.healthFilter = (healthFilter != null ? healthFilter : HealthFilter.NONE);
+    }
+    
+    public HealthFilter getHealthFilter() {
+        return healthFilter;
+    }
+    
+    /**
+     * Required for any HealthFilter other than NONE, unless ConsulEndpoints are set
+     * 
+     * @param healthClient
+     */
+    public void setHealthClient(HealthClient healthClient) {
+        this.healthClient = healthClient;
+    }
+    
+    /**
+     * Optional group of Consul agents to fail over across
+     * 
+     * @param endpoints null to only use the CatalogClient given to discover() (default)
+     */
+    void setEndpoints(ConsulEndpoints endpoints) {
+        this.endpoints = endpoints;
+    }
+    
+    /**
+     * Optional metrics to report catalog queries and address resolutions to
+     * 
+     * @param metrics null to disable (default)
+     */
+    public void setMetrics(DiscoveryMetrics metrics) {
+        this.metrics = metrics;
+    }
     
-    private boolean matchesTags(Collection<String> existingTags, Collection<String> mustMatchTags) {
-        if (mustMatchTags != null && mustMatchTags.size() > 0) {
-            return existingTags.containsAll(mustMatchTags);
+    /**
+     * When catalog addresses are resolved (default EAGER)
+     * 
+     * @param addressResolution
+     */
+    public void setAddressResolution(AddressResolution addressResolution) {
+        this.addressResolution = (addressResolution != null ? addressResolution : AddressResolution.EAGER);
+    }
+
+    /**
+     * Returns the actual Consul catalog service names that this strategy
+     * will query for the given base serviceName and ports. By default this is 
+     * just the serviceName itself, strategies that query more than one
+     * catalog service name should override this.
+     * 
+     * Used when watching the catalog via blocking queries (one per name)
+     * 
+     * @param serviceName
+     * @param ports
+     * @return
+     */
+    public List<String> getCatalogServiceNames(String serviceName, Collection<Integer> ports) {
+        return Collections.singletonList(serviceName);
+    }
+    
+    /**
+     * Fetches the raw catalog entries for the given Consul catalog serviceName.
+     * 
+     * If ConsulEndpoints are set the given catalogClient is ignored and the 
+     * fetch fails over across (and for non-blocking queries, optionally 
+     * hedges between) those endpoints instead
+     * 
+     * @param catalogClient
+     * @param catalogServiceName
+     * @param queryOptions i.e. blocking query index/wait when watching
+     * @return the full ConsulResponse (including the X-Consul-Index)
+     * @throws Exception
+     */
+    protected ConsulResponse<List<CatalogService>> fetchCatalogService(CatalogClient catalogClient, 
+                                                                       String catalogServiceName,
+                                                                       QueryOptions queryOptions) throws Exception {
+        
+        ConsulEndpoints endpoints = this.endpoints;
+        if (endpoints != null) {
+            return endpoints.execute(consul -> fetchCatalogServiceFrom(consul.catalogClient(), consul.healthClient(), 
+                                                                       catalogServiceName, queryOptions), 
+                                     !queryOptions.getIndex().isPresent());
+        }
+        
+        return fetchCatalogServiceFrom(catalogClient, this.healthClient, catalogServiceName, queryOptions);
+    }
+    
+    private ConsulResponse<List<CatalogService>> fetchCatalogServiceFrom(CatalogClient catalogClient, 
+                                                                         HealthClient healthClient,
+                                                                         String catalogServiceName,
+                                                                         QueryOptions queryOptions) throws Exception {
+        
+        if (this.healthFilter != HealthFilter.NONE) {
+            return fetchHealthyService(healthClient, catalogServiceName, queryOptions);
+        }
+        
+        ConsulResponse<List<CatalogService>> resp = catalogClient.getService(catalogServiceName, queryOptions);
+        
+        if (isTooStale(resp, queryOptions)) {
+            resp = reread("fetchCatalogService()", catalogServiceName, resp, queryOptions,
+                          options -> catalogClient.getService(catalogServiceName, options));
+        }
+        
+        return resp;
+    }
+    
+    /**
+     * Fetches the given service name from the health endpoint, keeping only 
+     * instances our HealthFilter accepts, as catalog entries that carry their 
+     * HealthStatus (see HealthCheckedService)
+     * 
+     * @param healthClient
+     * @param catalogServiceName
+     * @param queryOptions
+     * @return
+     * @throws Exception
+     */
+    private ConsulResponse<List<CatalogService>> fetchHealthyService(HealthClient healthClient, 
+                                                                     String catalogServiceName,
+                                                                     QueryOptions queryOptions) throws Exception {
+        if (healthClient == null) {
+            throw new Exception("HealthFilter " + this.healthFilter + " requires a HealthClient, none was set");
+        }
+        
+        ConsulResponse<List<ServiceHealth>> resp = getServiceInstances(healthClient, catalogServiceName, queryOptions);
+        
+        if (isTooStale(resp, queryOptions)) {
+            resp = reread("fetchHealthyService()", catalogServiceName, resp, queryOptions,
+                          options -> getServiceInstances(healthClient, catalogServiceName, options));
+        }
+        
+        List<ServiceHealth> instances = resp.getResponse();
+        List<CatalogService> accepted = new ArrayList<CatalogService>(instances.size());
+        for (int i=0, n=instances.size(); i<n; i++) {
+            HealthCheckedService service = new HealthCheckedService(instances.get(i));
+            if (service.getHealthStatus().accepts(this.healthFilter)) {
+                accepted.add(service);
+            }
+        }
+        
+        return new ConsulResponse<List<CatalogService>>(accepted, resp.getLastContact(), resp.isKnownLeader(), resp.getIndex());
+    }
+    
+    private ConsulResponse<List<ServiceHealth>> getServiceInstances(HealthClient healthClient, 
+                                                                    String catalogServiceName,
+                                                                    QueryOptions queryOptions) {
+        // passing only can be filtered by consul (?passing)
+        if (this.healthFilter == HealthFilter.PASSING) {
+            return healthClient.getHealthyServiceInstances(catalogServiceName, queryOptions);
+        }
+        return healthClient.getAllServiceInstances(catalogServiceName, queryOptions);
+    }
+    
+    /**
+     * Repeats a too stale read w/ default consistency. The re-read never
+     * blocks (the stale read already answered any blocking query, waiting
+     * again would delay the result by up to another full wait) and if it 
+     * fails, i.e. because there is no leader to serve it, the stale response 
+     * is returned as is; its lastContact/knownLeader still tell how stale it is.
+     * 
+     * @param caller
+     * @param catalogServiceName
+     * @param stale the too stale response
+     * @param queryOptions the options of the stale read
+     * @param read performs the read w/ the given options
+     * @return
+     */
+    private <T> ConsulResponse<T> reread(String caller,
+                                         String catalogServiceName,
+                                         ConsulResponse<T> stale,
+                                         QueryOptions queryOptions,
+                                         Function<QueryOptions,ConsulResponse<T>> read) {
+        
+        logger.debug(caller + " " + catalogServiceName + " stale read lastContact[" + stale.getLastContact() + 
+                     "ms] knownLeader[" + stale.isKnownLeader() + "] exceeds maxStaleMillis[" + 
+                     this.maxStaleMillis + "], retrying w/ default consistency");
+        
+        QueryOptions consistent = ImmutableQueryOptions.copyOf(queryOptions)
+                                        .withWait(Optional.<String>absent())
+                                        .withIndex(Optional.<BigInteger>absent())
+                                        .withConsistencyMode(ConsistencyMode.DEFAULT);
+        try {
+            return read.apply(consistent);
+            
+        } catch(Exception e) {
+            logger.warn(caller + " " + catalogServiceName + " default consistency re-read failed, " +
+                        "using stale read lastContact[" + stale.getLastContact() + "ms] knownLeader[" + 
+                        stale.isKnownLeader() + "]: " + e.getMessage());
+            return stale;
         }
-        return true;
+    }
+    
+    protected boolean isTooStale(ConsulResponse<?> resp, QueryOptions queryOptions) {
+        return queryOptions.getConsistencyMode() == ConsistencyMode.STALE &&
+                this.maxStaleMillis > 0 && 
+                (resp.getLastContact() > this.maxStaleMillis || !resp.isKnownLeader());
+    }
+    
+    /**
+     * Converts the raw catalog entries for a catalog service name into
+     * ServiceInfos for those entries matching the given ports and tags
+     * 
+     * @param resp the catalog response
+     * @param serviceName
+     * @param ports
+     * @param mustMatchTags
+     * @return
+     * @throws Exception
+     */
+    protected List<ServiceInfo> toServiceInfos(ConsulResponse<List<CatalogService>> resp,
+                                               String serviceName, 
+                                               Collection<Integer> ports,
+                                               Collection<String> mustMatchTags) throws Exception {
+        
+        return toServiceInfos(resp, serviceName, new CatalogEntryMatcher(ports, mustMatchTags));
+    }
+    
+    /**
+     * Same as toServiceInfos(resp, serviceName, ports, mustMatchTags) w/ 
+     * the ports and tags already compiled, i.e. once per watch
+     * 
+     * @param resp the catalog response
+     * @param serviceName
+     * @param matcher
+     * @return
+     * @throws Exception
+     */
+    List<ServiceInfo> toServiceInfos(ConsulResponse<List<CatalogService>> resp,
+                                     String serviceName, 
+                                     CatalogEntryMatcher matcher) throws Exception {
+        
+        List<CatalogService> serviceList = resp.getResponse();
+        List<ServiceInfo> discoveredServices = new ArrayList<ServiceInfo>(serviceList.size());
+        
+        boolean trace = logger.isTraceEnabled();
+        boolean debug = logger.isDebugEnabled();
+        
+        long lastContact = resp.getLastContact();
+        boolean knownLeader = resp.isKnownLeader();
+        
+        if (trace) {
+            logger.trace("_discover() catalogClient.getService("+serviceName+") returned " + serviceList.size() + " results..");
+        }
+        
+        // indexed loop, no Iterator allocation
+        for (int i=0, n=serviceList.size(); i<n; i++) {
+            CatalogService srv = serviceList.get(i);
+            List<String> serviceTags = srv.getServiceTags();
+        	
+            if (trace) {
+                logger.trace("_discover() evaluating consul service: name:" + srv.getServiceName() + 
+                			" serviceId:" + srv.getServiceId() + 
+                			" servicePort:" + srv.getServicePort() +
+                			" tags: " + serviceTags);
+            }
+            
+            if (!matcher.matchesTags(serviceTags)) {
+                if (trace) {
+                    logger.trace("_discover() serviceNameToFind=" + serviceName + 
+                            " skipping consul service: " + srv.getServiceName() + 
+                            " with tags: " + (serviceTags != null ? serviceTags : "[no tags]") + 
+                            " as they don't contain mustMatchTags");
+                }
+                continue;
+            }
+                
+            try {
+                // we parse mapped port from serviceId format "xx:yy:port"
+                // registrator sets the serviceId = to this format above for each
+                // unique port
+                int mappedPort = CatalogEntryMatcher.parseMappedPort(srv.getServiceId());
+
+                // if we don't care about this mapped port... skip
+                if (!matcher.matchesPort(mappedPort)) {
+                    if (trace) {
+                        logger.trace("_discover() serviceNameToFind=" + serviceName + 
+                                ", skipping consul service: " + srv.getServiceName() + 
+                                " as its mappedPort[" + mappedPort + "] is not in list of "
+                                        + "ports we care about: " + matcher.getPorts());
+                    }
+                    continue;
+                }
+                    
+            	String exposedHost = srv.getServiceAddress();
+            	if (exposedHost == null || exposedHost.isEmpty()) {
+            		// https://www.consul.io/docs/agent/http/catalog.html#ServiceAddress
+            	    if (trace) {
+            	        logger.trace("_discover() CatalogService.serviceAddress is empty... "
+            	                + "falling back to address["+srv.getAddress()+"]");
+            	    }
+            		exposedHost = srv.getAddress();
+            	}
+            	
+            	InetAddress exposedAddress = null;
+            	if (this.addressResolution == AddressResolution.EAGER) {
+            	    exposedAddress = this.addressResolver.resolve(exposedHost, this.metrics);
+            	} else if (this.addressResolution == AddressResolution.ASYNC) {
+            	    this.addressResolver.prefetch(exposedHost, this.metrics);
+            	}
+            	
+                ServiceInfo info = new ServiceInfo(srv.getServiceName(),
+                                                    srv.getServiceId(),
+                                                    exposedHost,
+                                                    exposedAddress,
+                                                    this.addressResolver,
+                                                    srv.getServicePort(),
+                                                    mappedPort,
+                                                    serviceTags);
+                info.setConsistencyInfo(lastContact, knownLeader);
+                if (srv instanceof HealthCheckedService) {
+                    info.setHealthStatus(((HealthCheckedService)srv).getHealthStatus());
+                }
+                discoveredServices.add(info);
+                
+                if (debug) {
+                    logger.debug("_discover() Discovered ServiceInfo: " + info);
+                }
+                
+            } catch(Exception e) {
+                throw new Exception("discover() Unexpected error processing "
+                		+ "service: " + srv.getServiceName() + " " + e.getMessage(),e);
+            }
+        }
+        
+        return discoveredServices;
     }
     
 }
@@ -0,0 +1,273 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.io.Closeable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.IntSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orbitz.consul.CatalogClient;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.catalog.CatalogService;
+import com.orbitz.consul.option.QueryOptions;
+
+/**
+ * Watches one or more Consul catalog service names using blocking queries
+ * (X-Consul-Index long polling) and notifies a DiscoveryListener only
+ * when the resulting set of matching ServiceInfos actually changes.
+ *
+ * One daemon thread is used per catalog service name the ServiceNameStrategy
+ * queries. Obtain instances via ConsulDiscovery.watchMe()/watchPeers()/watchAll()
+ * and close() when no longer needed.
+ *
+ * The client to query with (and the wait time it allows for) is looked up
+ * before every query, so a running watch follows its ConsulDiscovery's watch
+ * connection(s) when those are rebuilt (i.e. after a configuration change)
+ * rather than failing forever on a closed one.
+ *
+ * see: https://www.consul.io/api/index.html#blocking-queries
+ *
+ * @author bitsofinfo
+ *
+ */
+public class ServiceWatch implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServiceWatch.class);
+
+    // first retry after an error, doubling (jittered) up to errorRetryMillis
+    static final long MIN_ERROR_RETRY_MILLIS = 250;
+
+    /**
+     * Supplies the current client for blocking queries
+     */
+    @FunctionalInterface
+    interface Connector {
+
+        /**
+         * @param strategy the watch's strategy, to be pointed at the current
+         *                 endpoints/health client (if any) as well
+         * @return the CatalogClient to query with
+         * @throws Exception
+         */
+        CatalogClient connect(ServiceNameStrategyBase strategy) throws Exception;
+    }
+
+    private final Connector connector;
+    private final ServiceNameStrategyBase strategy;
+    private final String serviceName;
+    private final Collection<Integer> ports;
+    private final Collection<String> mustHaveTags;
+    private final CatalogEntryMatcher matcher;
+    private final DiscoveryScope scope;
+    private final String myNodeUniqueTagId;
+    private final DiscoveryListener listener;
+    private final IntSupplier waitSeconds;
+    private final long errorRetryMillis;
+    private final DiscoveryMetrics metrics;
+
+    // latest matching ServiceInfos per catalog service name, in strategy order
+    private final Map<String,List<ServiceInfo>> latest = new LinkedHashMap<String,List<ServiceInfo>>();
+    private Collection<ServiceInfo> lastPublished = null;
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private volatile boolean closed = false;
+
+    ServiceWatch(Connector connector,
+                 ServiceNameStrategyBase strategy,
+                 String serviceName,
+                 Collection<Integer> ports,
+                 Collection<String> mustHaveTags,
+                 DiscoveryScope scope,
+                 String myNodeUniqueTagId,
+                 DiscoveryListener listener,
+                 IntSupplier waitSeconds,
+                 long errorRetryMillis,
+                 DiscoveryMetrics metrics) {
+
+        this.connector = connector;
+        this.strategy = strategy;
+        this.serviceName = serviceName;
+        this.ports = new ArrayList<Integer>(ports);
+        this.mustHaveTags = new ArrayList<String>(mustHaveTags);
+        this.matcher = new CatalogEntryMatcher(this.ports, this.mustHaveTags);
+        this.scope = scope;
+        this.myNodeUniqueTagId = myNodeUniqueTagId;
+        this.listener = listener;
+        this.waitSeconds = waitSeconds;
+        this.errorRetryMillis = errorRetryMillis;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts one blocking query loop per catalog service name
+     *
+     * @param threadFactory
+     */
+    void start(ThreadFactory threadFactory) {
+        List<String> catalogServiceNames = strategy.getCatalogServiceNames(serviceName, ports);
+
+        synchronized(latest) {
+            for (String catalogServiceName : catalogServiceNames) {
+                latest.put(catalogServiceName, null);
+            }
+        }
+
+        for (final String catalogServiceName : catalogServiceNames) {
+            Thread t = threadFactory.newThread(new Runnable() {
+                public void run() {
+                    watch(catalogServiceName);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+    }
+
+    private void watch(String catalogServiceName) {
+
+        BigInteger index = null;
+        Backoff backoff = new Backoff(MIN_ERROR_RETRY_MILLIS, errorRetryMillis);
+
+        while(!closed) {
+            try {
+                QueryOptions queryOptions = strategy.buildQueryOptions(mustHaveTags, index, waitSeconds.getAsInt());
+                CatalogClient catalogClient = connector.connect(strategy);
+
+                ConsulResponse<List<CatalogService>> resp =
+                        strategy.fetchCatalogService(catalogClient, catalogServiceName, queryOptions);
+
+                if (closed) {
+                    break;
+                }
+
+                BigInteger newIndex = resp.getIndex();
+                boolean badIndex = (newIndex == null || newIndex.signum() <= 0);
+                boolean unchanged = (!badIndex && index != null && newIndex.equals(index));
+                
+                if (metrics != null) {
+                    metrics.onWatchIteration(catalogServiceName, !unchanged);
+                }
+
+                // wait time elapsed w/ no changes
+                if (unchanged) {
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("watch() " + catalogServiceName + " no change @ index " + index);
+                    }
+                    continue;
+                }
+
+                // per consul docs, a missing index or one that is not > 0 is 
+                // reset to 1 and we rate limit, a blocking query on it would 
+                // return immediately. One that goes backwards is simply taken
+                index = (badIndex ? BigInteger.ONE : newIndex);
+
+                List<ServiceInfo> infos = strategy.toServiceInfos(resp, catalogServiceName, matcher);
+                publish(catalogServiceName, infos);
+
+                if (!badIndex) {
+                    backoff.reset();
+                    continue;
+                }
+
+                long retryMillis = backoff.nextDelayMillis();
+                logger.debug("watch() " + catalogServiceName + " bad index " + newIndex + ", re-querying in " + retryMillis + "ms");
+                try {
+                    Thread.sleep(retryMillis);
+                } catch(InterruptedException ie) {
+                    break;
+                }
+
+            } catch(Exception e) {
+                if (closed) {
+                    break;
+                }
+
+                long retryMillis = backoff.nextDelayMillis();
+                logger.debug("watch() " + catalogServiceName + " error, retrying in " + retryMillis + "ms: " + e.getMessage());
+                if (metrics != null) {
+                    metrics.onError("watch", e);
+                }
+                notifyError(e);
+
+                try {
+                    Thread.sleep(retryMillis);
+                } catch(InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+
+        logger.debug("watch() " + catalogServiceName + " stopped");
+    }
+
+    private void publish(String catalogServiceName, List<ServiceInfo> infos) {
+        synchronized(latest) {
+            latest.put(catalogServiceName, infos);
+
+            // wait until every name has reported at least once
+            if (latest.containsValue(null) || closed) {
+                return;
+            }
+
+            Collection<ServiceInfo> current = new ArrayList<ServiceInfo>();
+            for (List<ServiceInfo> list : latest.values()) {
+                for (ServiceInfo info : list) {
+                    if (scope.includes(info, myNodeUniqueTagId)) {
+                        current.add(info);
+                    }
+                }
+            }
+
+            if (current.equals(lastPublished)) {
+                logger.trace("publish() " + catalogServiceName + " index changed but no matching ServiceInfos changed");
+                return;
+            }
+
+            lastPublished = current;
+
+            try {
+                listener.onDiscovery(Collections.unmodifiableCollection(current));
+            } catch(Exception e) {
+                logger.error("publish() DiscoveryListener.onDiscovery() threw error: " + e.getMessage(),e);
+            }
+        }
+    }
+
+    private void notifyError(Exception e) {
+        synchronized(latest) {
+            try {
+                listener.onError(e);
+            } catch(Exception e2) {
+                logger.error("notifyError() DiscoveryListener.onError() threw error: " + e2.getMessage(),e2);
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops watching, no further callbacks will be made once this returns
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        // ensure no callback is in flight
+        synchronized(latest) {
+            latest.clear();
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical calls: the first caller for a key runs
+ * the call, callers arriving for the same key while it is in flight wait
+ * for and share its result (or failure) rather than running it again.
+ * Once it completes the next caller starts a new call, so results are
+ * never older than the call a caller joined.
+ *
+ * The fast path is a single ConcurrentHashMap putIfAbsent(), no locks
+ * beyond the map's own per bin ones.
+ *
+ * @author bitsofinfo
+ *
+ */
+class SingleFlight<K,V> {
+
+    private final ConcurrentMap<K,CompletableFuture<V>> inFlight = new ConcurrentHashMap<K,CompletableFuture<V>>();
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param key identifies identical calls
+     * @param call
+     * @return the result of call, or of the identical call already in flight
+     * @throws Exception what call threw (for joiners, the same instance)
+     */
+    public V execute(K key, Callable<V> call) throws Exception {
+        CompletableFuture<V> mine = new CompletableFuture<V>();
+        CompletableFuture<V> theirs = inFlight.putIfAbsent(key, mine);
+
+        if (theirs != null) {
+            coalesced.incrementAndGet();
+            return join(theirs);
+        }
+
+        calls.incrementAndGet();
+
+        // unregister before completing, otherwise callers arriving in between
+        // would be handed the finished (already old) result
+        V result;
+        try {
+            result = call.call();
+        } catch(Exception e) {
+            inFlight.remove(key, mine);
+            mine.completeExceptionally(e);
+            throw e;
+        } catch(Error e) {
+            inFlight.remove(key, mine);
+            mine.completeExceptionally(e);
+            throw e;
+        }
+
+        inFlight.remove(key, mine);
+        mine.complete(result);
+        return result;
+    }
+
+    private static <V> V join(CompletableFuture<V> future) throws Exception {
+        try {
+            return future.get();
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return calls actually run
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return calls that joined one already in flight instead
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return number of calls in flight right now
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+}
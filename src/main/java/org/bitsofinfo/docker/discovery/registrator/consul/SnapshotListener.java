@@ -0,0 +1,20 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+/**
+ * Callback interface for ConsulDiscovery.watchShared()
+ * 
+ * onSnapshot() is invoked once with the current snapshot (as soon as 
+ * one is available) and then again whenever the matching ServiceInfos 
+ * change in Consul. Callbacks are invoked from the shared watch's 
+ * background thread(s), so must not block for long.
+ * 
+ * @author bitsofinfo
+ *
+ */
+public interface SnapshotListener {
+    
+    public void onSnapshot(DiscoverySnapshot snapshot);
+    
+    public void onError(Exception e);
+
+}
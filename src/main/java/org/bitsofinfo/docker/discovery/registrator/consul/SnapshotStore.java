@@ -0,0 +1,456 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the last known good discovery result to disk so a restarted
+ * container knows its peers before Consul answers, and discovery keeps
+ * working (w/ stale answers) while Consul is unreachable.
+ *
+ * Enable via ConsulDiscovery.setSnapshotStore(). Every successful live
+ * discovery updates the store (rewriting the file when the result changed,
+ * or at most every minWriteIntervalMillis when not). Until the first live
+ * answer after startup, and whenever a live discovery fails, ConsulDiscovery
+ * answers from the store instead, as long as what it holds is no older than
+ * maxAgeMillis. Such answers are marked via ServiceInfo.isStale() and
+ * DiscoverySnapshot.isStale().
+ *
+ * The store records which query (ConsulDiscovery configuration) its services
+ * answer, so a file written by a differently configured ConsulDiscovery
+ * (i.e. another service name, ports or tags sharing the path) is never
+ * served; it is ignored and replaced by the next live result.
+ *
+ * File format (big endian), written to a temp file then atomically renamed:
+ *
+ * <pre>
+ * int    magic "DDRS"
+ * short  version
+ * short  flags (0)
+ * long   written at (epoch millis)
+ * int    entry count
+ * int    query key length
+ * int    payload length
+ * int    CRC32 of the query key and payload
+ * query key: utf-8 bytes
+ * payload:
+ *   varint string count, then each: varint utf-8 length, bytes
+ *   per entry (string refs are varint indexes into the above, +1 when nullable):
+ *     serviceName, serviceId, exposedHost+1, varint exposedPort, varint mappedPort,
+ *     byte healthStatus (ordinal+1, 0 = none), varint tag count+1 (0 = null), tags
+ * </pre>
+ *
+ * Read back through a memory mapped, read only buffer. A missing, truncated,
+ * corrupt (CRC mismatch), other version or other query file is ignored 
+ * (logged), never fatal.
+ *
+ * @author bitsofinfo
+ *
+ */
+public class SnapshotStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotStore.class);
+
+    static final int MAGIC = 0x44445253; // "DDRS"
+    static final short VERSION = 2;
+    static final int HEADER_SIZE = 4 + 2 + 2 + 8 + 4 + 4 + 4 + 4;
+
+    private static final HealthStatus[] HEALTH_STATUSES = HealthStatus.values();
+
+    /**
+     * What the store currently holds
+     */
+    static class Stored {
+        final String queryKey;
+        final List<ServiceInfo> services;
+        final long atMillis;
+        final boolean live;
+
+        Stored(String queryKey, List<ServiceInfo> services, long atMillis, boolean live) {
+            this.queryKey = queryKey;
+            this.services = services;
+            this.atMillis = atMillis;
+            this.live = live;
+        }
+    }
+
+    private final Path file;
+    private long maxAgeMillis = 3600000;
+    private long minWriteIntervalMillis = 5000;
+
+    private final Object writeLock = new Object();
+    private volatile Stored stored = null;
+    private volatile boolean loaded = false;
+    private long lastWriteMillis = 0; // guarded by writeLock
+
+    /**
+     * @param file where the snapshot is kept, its directory is created as needed
+     */
+    public SnapshotStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Records a successful live discovery, rewriting the file if the result
+     * changed (or minWriteIntervalMillis has passed). Write failures are
+     * logged, never thrown, as they must not fail discovery
+     *
+     * @param queryKey identifies the query that returned the services
+     * @param services
+     */
+    void update(String queryKey, Collection<ServiceInfo> services) {
+        long now = System.currentTimeMillis();
+        Stored previous = this.stored;
+        boolean changed = (previous == null || !previous.queryKey.equals(queryKey) || 
+                           !sameServiceInfos(previous.services, services));
+        this.stored = new Stored(queryKey, new ArrayList<ServiceInfo>(services), now, true);
+        this.loaded = true; // a live result supersedes whatever is on disk
+
+        synchronized(writeLock) {
+            if (!changed && (now - this.lastWriteMillis) < this.minWriteIntervalMillis) {
+                return;
+            }
+            try {
+                write(queryKey, services, now);
+                this.lastWriteMillis = now;
+            } catch(Exception e) {
+                logger.warn("update() could not write discovery snapshot to " + this.file + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @param queryKey identifies the query to answer
+     * @param resolver for the exposed hosts of what is read from disk
+     * @return stale copies of the last known good services, or null if
+     *         there are none for the query or they are older than maxAgeMillis
+     */
+    Collection<ServiceInfo> getLastKnownGood(String queryKey, AddressResolver resolver) {
+        Stored s = getStored(queryKey, resolver);
+        if (s == null || !s.queryKey.equals(queryKey) || isExpired(s)) {
+            return null;
+        }
+        List<ServiceInfo> stale = new ArrayList<ServiceInfo>(s.services.size());
+        for (ServiceInfo info : s.services) {
+            stale.add(info.isStale() ? info : info.asStale());
+        }
+        return stale;
+    }
+
+    private Stored getStored(String queryKey, AddressResolver resolver) {
+        if (!this.loaded) {
+            synchronized(writeLock) {
+                if (!this.loaded) {
+                    try {
+                        Stored read = read(resolver);
+                        if (read != null && !read.queryKey.equals(queryKey)) {
+                            logger.info("Ignoring discovery snapshot " + this.file + " written for another query " + 
+                                        read.queryKey + ", expected " + queryKey);
+                            
+                        } else if (read != null && this.stored == null) {
+                            this.stored = read;
+                            logger.info("Loaded last known good discovery snapshot of " + read.services.size() +
+                                        " services (" + (System.currentTimeMillis() - read.atMillis) + "ms old) from " + this.file);
+                        }
+                    } catch(Exception e) {
+                        logger.warn("Ignoring unreadable discovery snapshot " + this.file + ": " + e.getMessage());
+                    }
+                    this.loaded = true;
+                }
+            }
+        }
+        return this.stored;
+    }
+
+    private boolean isExpired(Stored s) {
+        return this.maxAgeMillis > 0 && (System.currentTimeMillis() - s.atMillis) > this.maxAgeMillis;
+    }
+
+    /**
+     * @return true once a live discovery result has been recorded
+     */
+    public boolean isLive() {
+        Stored s = this.stored;
+        return s != null && s.live;
+    }
+
+    /**
+     * @return age of the last known good services (ms), -1 if there are none
+     */
+    public long getLastKnownGoodAgeMillis() {
+        Stored s = this.stored;
+        return (s != null ? System.currentTimeMillis() - s.atMillis : -1);
+    }
+
+    /**
+     * Writes the given services to the file, replacing it atomically
+     *
+     * @param queryKey identifies the query that returned the services
+     * @param services
+     * @param atMillis
+     * @throws IOException
+     */
+    void write(String queryKey, Collection<ServiceInfo> services, long atMillis) throws IOException {
+        byte[] key = queryKey.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = encode(services);
+        CRC32 crc = new CRC32();
+        crc.update(key, 0, key.length);
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + key.length + payload.length);
+        buffer.putInt(MAGIC)
+              .putShort(VERSION)
+              .putShort((short)0)
+              .putLong(atMillis)
+              .putInt(services.size())
+              .putInt(key.length)
+              .putInt(payload.length)
+              .putInt((int)crc.getValue())
+              .put(key)
+              .put(payload);
+        buffer.flip();
+
+        Path dir = this.file.toAbsolutePath().getParent();
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+
+        Path tmp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                                                         StandardOpenOption.WRITE,
+                                                         StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+
+        try {
+            Files.move(tmp, this.file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch(AtomicMoveNotSupportedException e) {
+            Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads the file via a memory mapped buffer
+     *
+     * @param resolver for the exposed hosts read
+     * @return what the file holds, null if there is no file
+     * @throws IOException if the file is truncated, corrupt or another version
+     */
+    Stored read(AddressResolver resolver) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("unexpected size " + size);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch(NoSuchFileException e) {
+            return null;
+        }
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("not a discovery snapshot");
+        }
+        short version = buffer.getShort();
+        if (version != VERSION) {
+            throw new IOException("unsupported version " + version);
+        }
+        buffer.getShort(); // flags
+        long writtenAt = buffer.getLong();
+        int count = buffer.getInt();
+        int keyLength = buffer.getInt();
+        int length = buffer.getInt();
+        int expectedCrc = buffer.getInt();
+        if (keyLength < 0 || length < 0 || (long)keyLength + length != buffer.remaining()) {
+            throw new IOException("truncated, " + buffer.remaining() + " of " + ((long)keyLength + length) + " bytes");
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if ((int)crc.getValue() != expectedCrc) {
+            throw new IOException("checksum mismatch");
+        }
+
+        byte[] key = new byte[keyLength];
+        buffer.get(key);
+        ByteBuffer payload = buffer.slice();
+
+        List<ServiceInfo> services = new ArrayList<ServiceInfo>();
+        try {
+            decode(payload, count, resolver, services);
+        } catch(RuntimeException e) {
+            throw new IOException("malformed payload: " + e, e);
+        }
+        return new Stored(new String(key, StandardCharsets.UTF_8), services, writtenAt, false);
+    }
+
+    static byte[] encode(Collection<ServiceInfo> services) {
+        // tags, hosts and service names repeat a lot, each is written once
+        Map<String,Integer> index = new HashMap<String,Integer>();
+        List<String> strings = new ArrayList<String>();
+        for (ServiceInfo info : services) {
+            intern(info.getServiceName(), index, strings);
+            intern(info.getServiceId(), index, strings);
+            intern(info.getExposedHost(), index, strings);
+            if (info.getTags() != null) {
+                for (String tag : info.getTags()) {
+                    intern(tag, index, strings);
+                }
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + services.size() * 16);
+        writeVarint(out, strings.size());
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        for (ServiceInfo info : services) {
+            writeVarint(out, index.get(info.getServiceName()));
+            writeVarint(out, index.get(info.getServiceId()));
+            writeVarint(out, (info.getExposedHost() != null ? index.get(info.getExposedHost()) + 1 : 0));
+            writeVarint(out, info.getExposedPort());
+            writeVarint(out, info.getMappedPort());
+            out.write(info.getHealthStatus() != null ? info.getHealthStatus().ordinal() + 1 : 0);
+
+            Collection<String> tags = info.getTags();
+            writeVarint(out, (tags != null ? tags.size() + 1 : 0));
+            if (tags != null) {
+                for (String tag : tags) {
+                    writeVarint(out, index.get(tag));
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static void decode(ByteBuffer in, int count, AddressResolver resolver, Collection<ServiceInfo> services) {
+        String[] strings = new String[readVarint(in)];
+        for (int i=0; i<strings.length; i++) {
+            byte[] bytes = new byte[readVarint(in)];
+            in.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        for (int i=0; i<count; i++) {
+            String serviceName = strings[readVarint(in)];
+            String serviceId = strings[readVarint(in)];
+            int host = readVarint(in);
+            String exposedHost = (host > 0 ? strings[host - 1] : null);
+            int exposedPort = readVarint(in);
+            int mappedPort = readVarint(in);
+            int health = in.get();
+
+            int tagCount = readVarint(in);
+            List<String> tags = null;
+            if (tagCount > 0) {
+                tags = new ArrayList<String>(tagCount - 1);
+                for (int t=0; t<tagCount - 1; t++) {
+                    tags.add(strings[readVarint(in)]);
+                }
+                tags = Collections.unmodifiableList(tags);
+            }
+
+            ServiceInfo info = new ServiceInfo(serviceName, serviceId, exposedHost, null, resolver,
+                                               exposedPort, mappedPort, tags);
+            if (health > 0) {
+                info.setHealthStatus(HEALTH_STATUSES[health - 1]);
+            }
+            services.add(info.asStale());
+        }
+
+        if (in.hasRemaining()) {
+            throw new IllegalStateException(in.remaining() + " trailing bytes");
+        }
+    }
+
+    private static void intern(String value, Map<String,Integer> index, List<String> strings) {
+        if (value != null && !index.containsKey(value)) {
+            index.put(value, strings.size());
+            strings.add(value);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift=0; shift<32; shift+=7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+
+    private static boolean sameServiceInfos(Collection<ServiceInfo> infos1, Collection<ServiceInfo> infos2) {
+        return infos1.size() == infos2.size() && new HashSet<ServiceInfo>(infos1).equals(new HashSet<ServiceInfo>(infos2));
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * How old the stored services may be and still be served (default 1 hour),
+     * 0 for no limit
+     *
+     * @param maxAgeMillis
+     * @return
+     */
+    public SnapshotStore setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+        return this;
+    }
+
+    /**
+     * While the discovered services do not change, the file is rewritten
+     * (to refresh its age) at most this often (default 5000)
+     *
+     * @param minWriteIntervalMillis
+     * @return
+     */
+    public SnapshotStore setMinWriteIntervalMillis(long minWriteIntervalMillis) {
+        this.minWriteIntervalMillis = minWriteIntervalMillis;
+        return this;
+    }
+
+}
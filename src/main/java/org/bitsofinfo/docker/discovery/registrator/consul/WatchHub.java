@@ -0,0 +1,210 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry that dedupes watches: all subscribers to an equivalent query
+ * (see ConsulDiscovery.getWatchKey()) share one blocking query loop, whose
+ * results are fanned out to each of them as a DiscoverySnapshot w/ their own
+ * myNodeUniqueTagId. The loop is started by the first subscriber and stopped
+ * when the last one closes its Subscription.
+ *
+ * Usually used through ConsulDiscovery.watchShared(), which uses the JVM
+ * wide getDefault() hub.
+ *
+ * @author bitsofinfo
+ *
+ */
+public class WatchHub {
+
+    private static final Logger logger = LoggerFactory.getLogger(WatchHub.class);
+
+    private static final WatchHub DEFAULT = new WatchHub();
+
+    // guarded by this
+    private final Map<List<Object>,SharedWatch> watches = new HashMap<List<Object>,SharedWatch>();
+
+    /**
+     * @return the JVM wide hub
+     */
+    public static WatchHub getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Subscribes to the query the given ConsulDiscovery describes, starting
+     * a watch for it (on a copy of its configuration) if there is none yet
+     *
+     * @param discovery
+     * @param listener
+     * @return close it to unsubscribe
+     * @throws Exception if a new watch could not be started
+     */
+    public Subscription subscribe(ConsulDiscovery discovery, SnapshotListener listener) throws Exception {
+        List<Object> key = discovery.getWatchKey();
+        Subscription subscription = new Subscription(key, discovery.getMyNodeUniqueTagId(), listener);
+
+        SharedWatch shared;
+        synchronized(this) {
+            shared = watches.get(key);
+            if (shared == null) {
+                shared = new SharedWatch(discovery.copyConfiguration());
+                shared.start();
+                watches.put(key, shared);
+                logger.debug("subscribe() started shared watch for " + discovery.getServiceName() +
+                             ", " + watches.size() + " shared watches");
+            }
+            shared.subscriptions.add(subscription);
+        }
+
+        // catch up on what the watch has already seen
+        Collection<ServiceInfo> latest = shared.latest;
+        if (latest != null) {
+            subscription.catchUp(latest);
+        }
+        return subscription;
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        SharedWatch stopped = null;
+        synchronized(this) {
+            SharedWatch shared = watches.get(subscription.key);
+            if (shared != null && shared.subscriptions.remove(subscription) && shared.subscriptions.isEmpty()) {
+                watches.remove(subscription.key);
+                stopped = shared;
+            }
+        }
+
+        if (stopped != null) {
+            logger.debug("unsubscribe() last subscriber left, stopping shared watch for " + stopped.discovery.getServiceName());
+            stopped.discovery.close();
+        }
+    }
+
+    /**
+     * @return number of distinct queries currently being watched
+     */
+    public synchronized int getWatchCount() {
+        return watches.size();
+    }
+
+    /**
+     * @return number of open subscriptions across all watches
+     */
+    public synchronized int getSubscriptionCount() {
+        int count = 0;
+        for (SharedWatch shared : watches.values()) {
+            count += shared.subscriptions.size();
+        }
+        return count;
+    }
+
+    /**
+     * One watch and everyone subscribed to it
+     */
+    private static class SharedWatch implements DiscoveryListener {
+
+        private final ConsulDiscovery discovery;
+        private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+        private volatile Collection<ServiceInfo> latest = null;
+
+        SharedWatch(ConsulDiscovery discovery) {
+            this.discovery = discovery;
+        }
+
+        void start() throws Exception {
+            discovery.watchAll(this);
+        }
+
+        @Override
+        public void onDiscovery(Collection<ServiceInfo> services) {
+            this.latest = services;
+
+            // subscribers mostly share the same myNodeUniqueTagId (same container)
+            Map<String,DiscoverySnapshot> byMyId = new HashMap<String,DiscoverySnapshot>(4);
+            for (Subscription subscription : subscriptions) {
+                DiscoverySnapshot snapshot = byMyId.get(subscription.myNodeUniqueTagId);
+                if (snapshot == null) {
+                    snapshot = new DiscoverySnapshot(services, subscription.myNodeUniqueTagId);
+                    byMyId.put(subscription.myNodeUniqueTagId, snapshot);
+                }
+                subscription.deliver(snapshot);
+            }
+        }
+
+        @Override
+        public void onError(Exception e) {
+            for (Subscription subscription : subscriptions) {
+                try {
+                    subscription.listener.onError(e);
+                } catch(Exception ignore) {
+                    logger.warn("SnapshotListener.onError() threw: " + ignore.getMessage(), ignore);
+                }
+            }
+        }
+    }
+
+    /**
+     * A single subscriber to a shared watch, close() to unsubscribe
+     */
+    public class Subscription implements Closeable {
+
+        private final List<Object> key;
+        private final String myNodeUniqueTagId;
+        private final SnapshotListener listener;
+        private volatile boolean closed = false;
+
+        // guarded by this, whether the watch already delivered to us
+        private boolean delivered = false;
+
+        private Subscription(List<Object> key, String myNodeUniqueTagId, SnapshotListener listener) {
+            this.key = key;
+            this.myNodeUniqueTagId = myNodeUniqueTagId;
+            this.listener = listener;
+        }
+
+        /**
+         * Delivers what the watch saw before we subscribed, unless the watch
+         * already delivered something (newer) to us itself
+         */
+        private synchronized void catchUp(Collection<ServiceInfo> services) {
+            if (!delivered) {
+                deliver(new DiscoverySnapshot(services, myNodeUniqueTagId));
+            }
+        }
+
+        private synchronized void deliver(DiscoverySnapshot snapshot) {
+            if (closed) {
+                return;
+            }
+            delivered = true;
+
+            try {
+                listener.onSnapshot(snapshot);
+            } catch(Exception e) {
+                logger.warn("SnapshotListener.onSnapshot() threw: " + e.getMessage(), e);
+            }
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                unsubscribe(this);
+            }
+        }
+    }
+
+}
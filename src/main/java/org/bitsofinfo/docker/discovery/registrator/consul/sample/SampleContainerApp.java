@@ -3,8 +3,10 @@ package org.bitsofinfo.docker.discovery.registrator.consul.sample;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.TimeoutException;
 
 import org.bitsofinfo.docker.discovery.registrator.consul.ConsulDiscovery;
+import org.bitsofinfo.docker.discovery.registrator.consul.DiscoverySnapshot;
 import org.bitsofinfo.docker.discovery.registrator.consul.ServiceInfo;
 import org.bitsofinfo.docker.discovery.registrator.consul.ServiceNameStrategy;
 
@@ -81,14 +83,22 @@ public class SampleContainerApp implements Runnable {
     @Override 
     public void run() {
         try {
+            // Registrator registers us asynchronously after we start, 
+            // returns as soon as both our ports are visible in Consul
+            try {
+                consulDiscovery.awaitMe(60000);
+            } catch(TimeoutException e) {
+                // keep reporting anyways, we will show up once registered
+                System.out.println("Not registered in Consul yet, reporting anyways: " + e.getMessage());
+            }
+            
             while(true) {
-                Thread.sleep(10000); 
-
-                // Lets discover ServiceInfo about myself 
-                Collection<ServiceInfo> myServices = consulDiscovery.discoverMe();
+                // Lets discover ServiceInfo about myself and my peers
+                // in one trip to consul (same as discoverMe() + discoverPeers())
+                DiscoverySnapshot snapshot = consulDiscovery.discoverSnapshot();
                 
-                // and my peers....
-                Collection<ServiceInfo> myPeerServices = consulDiscovery.discoverPeers();
+                Collection<ServiceInfo> myServices = snapshot.getMe();
+                Collection<ServiceInfo> myPeerServices = snapshot.getPeers();
 
                 StringBuffer sb = new StringBuffer("########## " + myUniqueTag + " REPORTING: ##########\n");
 
@@ -105,6 +115,8 @@ public class SampleContainerApp implements Runnable {
                 sb.append("\n########## END " + myUniqueTag + " ############\n\n");
 
                 System.out.println(sb.toString());
+                
+                Thread.sleep(10000); 
             }
         } catch(Exception e) {
             e.printStackTrace();
@@ -0,0 +1,148 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AddressResolverTest {
+
+    /**
+     * Counts actual (uncached) resolutions
+     */
+    private static class Resolutions implements DiscoveryMetrics {
+        final AtomicInteger count = new AtomicInteger();
+        public void onDiscovery(String method, long durationNanos) {}
+        public void onCatalogQuery(String catalogServiceName, int fetched, int matched, long durationNanos) {}
+        public void onAgentRequest(String path, int statusCode, long durationNanos) {}
+        public void onAddressResolution(String host, long durationNanos, boolean success) { count.incrementAndGet(); }
+        public void onCacheHit(boolean stale) {}
+        public void onCacheMiss() {}
+        public void onWatchIteration(String catalogServiceName, boolean changed) {}
+        public void onError(String operation, Throwable error) {}
+    }
+
+    @Test
+    public void testIPv4Literals() throws Exception {
+        Assert.assertArrayEquals(new byte[]{10, 0, 0, 1}, AddressResolver.parseIPv4Literal("10.0.0.1").getAddress());
+        Assert.assertArrayEquals(new byte[]{(byte)255, (byte)255, (byte)255, (byte)255},
+                                 AddressResolver.parseIPv4Literal("255.255.255.255").getAddress());
+        Assert.assertArrayEquals(new byte[]{0, 0, 0, 0}, AddressResolver.parseIPv4Literal("0.0.0.0").getAddress());
+
+        for (String notLiteral : Arrays.asList(null, "", "010.0.0.1", "10.00.0.1", "10.0.0.01",
+                                               "256.0.0.1", "10.0.0.256", "1000.0.0.1",
+                                               "1.2.3", "1.2.3.4.5", "1.2.3.4.", ".1.2.3", "1..2.3",
+                                               "1.2.3.a", "::1", "localhost")) {
+            Assert.assertNull(notLiteral, AddressResolver.parseIPv4Literal(notLiteral));
+            Assert.assertFalse(notLiteral, AddressResolver.isIPv4Literal(notLiteral));
+        }
+    }
+
+    @Test
+    public void testLiteralsAreNotCached() throws Exception {
+        AddressResolver resolver = new AddressResolver(60000, 10);
+        Resolutions resolutions = new Resolutions();
+        resolver.resolve("10.0.0.1", resolutions);
+        Assert.assertEquals(0, resolutions.count.get());
+        Assert.assertEquals(0, resolver.getCacheSize());
+    }
+
+    @Test
+    public void testCacheExpiry() throws Exception {
+        // IPv6 literals go through InetAddress/the cache but never DNS
+        AddressResolver resolver = new AddressResolver(200, 10);
+        Resolutions resolutions = new Resolutions();
+
+        resolver.resolve("::1", resolutions);
+        resolver.resolve("::1", resolutions);
+        Assert.assertEquals(1, resolutions.count.get());
+
+        Thread.sleep(300);
+        resolver.resolve("::1", resolutions);
+        Assert.assertEquals(2, resolutions.count.get());
+
+        resolver.clear();
+        resolver.resolve("::1", resolutions);
+        Assert.assertEquals(3, resolutions.count.get());
+    }
+
+    @Test
+    public void testNoCaching() throws Exception {
+        AddressResolver resolver = new AddressResolver(0, 10);
+        Resolutions resolutions = new Resolutions();
+        for (int i=0; i<3; i++) {
+            resolver.resolve("::1", resolutions);
+        }
+        Assert.assertEquals(3, resolutions.count.get());
+        Assert.assertEquals(0, resolver.getCacheSize());
+    }
+
+    @Test
+    public void testCacheIsBounded() throws Exception {
+        AddressResolver resolver = new AddressResolver(60000, 4);
+        Resolutions resolutions = new Resolutions();
+        for (int i=1; i<=20; i++) {
+            resolver.resolve("::" + i, resolutions);
+            Assert.assertTrue(resolver.getCacheSize() + " cached", resolver.getCacheSize() <= 4);
+        }
+        Assert.assertEquals(20, resolutions.count.get());
+
+        // the most recent one is always kept, the rest were evicted
+        resolver.resolve("::20", resolutions);
+        Assert.assertEquals(20, resolutions.count.get());
+        resolver.resolve("::1", resolutions);
+        Assert.assertEquals(21, resolutions.count.get());
+    }
+
+    @Test
+    public void testExpiredEvictedFirst() throws Exception {
+        AddressResolver resolver = new AddressResolver(200, 2);
+        resolver.resolve("::1");
+        Thread.sleep(300);
+        resolver.resolve("::2");
+        resolver.resolve("::3"); // full, ::1 has expired and goes
+
+        Resolutions resolutions = new Resolutions();
+        resolver.resolve("::3", resolutions);
+        Assert.assertEquals(0, resolutions.count.get());
+        Assert.assertEquals(2, resolver.getCacheSize());
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        AddressResolver resolver = new AddressResolver(60000, 10);
+        resolver.prefetch("::1");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (resolver.getCacheSize() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Resolutions resolutions = new Resolutions();
+        resolver.resolve("::1", resolutions);
+        Assert.assertEquals(0, resolutions.count.get());
+    }
+
+    @Test
+    public void testLazyResolution() throws Exception {
+        AddressResolver resolver = new AddressResolver(60000, 10);
+        ServiceInfo info = new ServiceInfo("my-service", "host1:container_1:8080", "::1", null, resolver,
+                                           32001, 8080, Arrays.asList("dev"));
+        Assert.assertEquals(0, resolver.getCacheSize());
+        Assert.assertTrue(info.getExposedAddress().isLoopbackAddress());
+        Assert.assertEquals(1, resolver.getCacheSize());
+    }
+
+    @Test
+    public void testLazyResolutionFailure() throws Exception {
+        ServiceInfo info = new ServiceInfo("my-service", "host1:container_1:8080", "no-such-host.invalid", null,
+                                           new AddressResolver(60000, 10), 32001, 8080, Arrays.asList("dev"));
+        try {
+            info.getExposedAddress();
+            Assert.fail("resolved no-such-host.invalid");
+        } catch(IllegalStateException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("no-such-host.invalid"));
+        }
+    }
+
+}
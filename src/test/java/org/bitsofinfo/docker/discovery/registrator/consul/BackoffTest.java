@@ -0,0 +1,27 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BackoffTest {
+
+    @Test
+    public void testBackoff() {
+        Backoff backoff = new Backoff(100, 1000);
+
+        long[] caps = {100, 200, 400, 800, 1000, 1000};
+        for (long cap : caps) {
+            long delay = backoff.nextDelayMillis();
+            Assert.assertTrue(delay + " vs " + cap, delay >= cap / 2 && delay <= cap);
+        }
+
+        backoff.reset();
+        Assert.assertTrue(backoff.nextDelayMillis() <= 100);
+
+        // never overflows
+        for (int i=0; i<100; i++) {
+            Assert.assertTrue(backoff.nextDelayMillis() <= 1000);
+        }
+    }
+
+}
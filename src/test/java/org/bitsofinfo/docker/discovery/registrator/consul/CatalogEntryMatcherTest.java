@@ -0,0 +1,50 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class CatalogEntryMatcherTest {
+
+    @Test
+    public void testParseMappedPort() {
+        Assert.assertEquals(8080, CatalogEntryMatcher.parseMappedPort("default:elated_swirles:8080"));
+        Assert.assertEquals(53, CatalogEntryMatcher.parseMappedPort("default:dns:53:udp"));
+
+        for (String bad : new String[]{null, "", "default", "default:x", "default:x:", "default:x:80a", "default:x:123456"}) {
+            try {
+                CatalogEntryMatcher.parseMappedPort(bad);
+                Assert.fail("expected NumberFormatException for " + bad);
+            } catch(NumberFormatException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesPort() {
+        CatalogEntryMatcher matcher = new CatalogEntryMatcher(Arrays.asList(8080, 65535, 0), null);
+        Assert.assertTrue(matcher.matchesPort(8080));
+        Assert.assertTrue(matcher.matchesPort(65535));
+        Assert.assertTrue(matcher.matchesPort(0));
+        Assert.assertFalse(matcher.matchesPort(8081));
+        Assert.assertFalse(matcher.matchesPort(-1));
+        Assert.assertFalse(matcher.matchesPort(70000));
+
+        Assert.assertFalse(new CatalogEntryMatcher(Collections.<Integer>emptyList(), null).matchesPort(8080));
+    }
+
+    @Test
+    public void testMatchesTags() {
+        CatalogEntryMatcher matcher = new CatalogEntryMatcher(null, Arrays.asList("dev", "my-app", "dev"));
+        Assert.assertTrue(matcher.matchesTags(Arrays.asList("x", "my-app", "dev")));
+        Assert.assertTrue(matcher.matchesTags(Arrays.asList("dev", "dev", "my-app")));
+        Assert.assertFalse(matcher.matchesTags(Arrays.asList("dev", "dev")));
+        Assert.assertFalse(matcher.matchesTags(null));
+
+        Assert.assertTrue(new CatalogEntryMatcher(null, null).matchesTags(Collections.<String>emptyList()));
+    }
+
+}
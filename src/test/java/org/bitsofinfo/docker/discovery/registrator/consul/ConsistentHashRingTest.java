@@ -0,0 +1,127 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void testEmpty() throws Exception {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        Assert.assertNull(ring.get("key"));
+        Assert.assertNull(ring.acquire("key"));
+        Assert.assertEquals(0, ring.size());
+
+        // every node leaves: no stale virtual nodes left behind
+        ring.update(ServiceInfoFixtures.serviceInfos(0, 3));
+        ring.update(Collections.<ServiceInfo>emptyList());
+        Assert.assertEquals(0, ring.size());
+        Assert.assertTrue(ring.getNodes().isEmpty());
+        Assert.assertNull(ring.get("key"));
+    }
+
+    @Test
+    public void testDistribution() throws Exception {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.update(ServiceInfoFixtures.serviceInfos(0, 10));
+
+        Map<String,Integer> counts = new HashMap<String,Integer>();
+        for (int k=0; k<10000; k++) {
+            counts.merge(ring.get("key-" + k).getServiceId(), 1, Integer::sum);
+        }
+        Assert.assertEquals(10, counts.size());
+        for (int count : counts.values()) {
+            Assert.assertTrue(count + " keys", count > 500 && count < 1500);
+        }
+    }
+
+    @Test
+    public void testIncrementalMatchesFullBuild() throws Exception {
+        ConsistentHashRing incremental = new ConsistentHashRing(50, ConsistentHashRing.FNV1A_64);
+        incremental.update(ServiceInfoFixtures.serviceInfos(0, 20));
+        incremental.update(ServiceInfoFixtures.serviceInfos(5, 20));  // 5 leave
+        incremental.update(ServiceInfoFixtures.serviceInfos(5, 30));  // 10 join
+
+        ConsistentHashRing full = new ConsistentHashRing(50, ConsistentHashRing.FNV1A_64);
+        full.update(ServiceInfoFixtures.serviceInfos(5, 30));
+
+        Assert.assertEquals(25, incremental.size());
+        for (int k=0; k<5000; k++) {
+            Assert.assertEquals(full.get("key-" + k), incremental.get("key-" + k));
+        }
+    }
+
+    @Test
+    public void testOnlyKeysOfChangedNodesMove() throws Exception {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.update(ServiceInfoFixtures.serviceInfos(0, 10));
+
+        Map<String,String> before = new HashMap<String,String>();
+        for (int k=0; k<5000; k++) {
+            before.put("key-" + k, ring.get("key-" + k).getServiceId());
+        }
+
+        ring.update(ServiceInfoFixtures.serviceInfos(0, 11));
+        String joined = ServiceInfoFixtures.serviceInfo(10, 8080).getServiceId();
+        int moved = 0;
+        for (Map.Entry<String,String> key : before.entrySet()) {
+            String owner = ring.get(key.getKey()).getServiceId();
+            if (!owner.equals(key.getValue())) {
+                Assert.assertEquals(joined, owner);
+                moved++;
+            }
+        }
+        Assert.assertTrue(moved + " moved", moved > 0 && moved < 1000);
+    }
+
+    @Test
+    public void testUnchangedMembershipKeepsNodes() throws Exception {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.update(ServiceInfoFixtures.serviceInfos(0, 5));
+        List<ConsistentHashRing.Node> nodes = ring.getNodes();
+
+        ring.onDiscovery(ServiceInfoFixtures.serviceInfos(0, 5));
+        for (int i=0; i<5; i++) {
+            Assert.assertSame(nodes.get(i), ring.getNodes().get(i));
+        }
+    }
+
+    @Test
+    public void testBoundedLoad() throws Exception {
+        ConsistentHashRing ring = new ConsistentHashRing().setLoadFactor(1.25);
+        ring.update(ServiceInfoFixtures.serviceInfos(0, 10));
+
+        List<ConsistentHashRing.Node> acquired = new ArrayList<ConsistentHashRing.Node>();
+        for (int k=0; k<1000; k++) {
+            // heavily skewed: few distinct keys
+            acquired.add(ring.acquire("hot-" + (k % 3)));
+        }
+        for (ConsistentHashRing.Node node : ring.getNodes()) {
+            Assert.assertTrue(node + "", node.getLoad() <= 125);
+        }
+
+        for (ConsistentHashRing.Node node : acquired) {
+            node.release();
+        }
+        for (ConsistentHashRing.Node node : ring.getNodes()) {
+            Assert.assertEquals(0, node.getLoad());
+        }
+    }
+
+    @Test
+    public void testContainerNodeKey() throws Exception {
+        ConsistentHashRing ring = new ConsistentHashRing().setNodeKey(ConsistentHashRing.NodeKey.CONTAINER);
+        ring.update(Arrays.asList(ServiceInfoFixtures.serviceInfo(1, 8080), ServiceInfoFixtures.serviceInfo(1, 8443), ServiceInfoFixtures.serviceInfo(2, 8080)));
+
+        Assert.assertEquals(2, ring.size());
+        Assert.assertEquals(8080, ring.getNodeByKey("host1:container_1").getServiceInfo().getMappedPort());
+    }
+
+}
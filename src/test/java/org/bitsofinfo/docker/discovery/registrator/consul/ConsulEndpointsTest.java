@@ -0,0 +1,108 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.catalog.CatalogService;
+import com.orbitz.consul.option.QueryOptions;
+
+/**
+ * Failover and hedging across two EmbeddedConsulCatalogs
+ */
+public class ConsulEndpointsTest {
+
+    private EmbeddedConsulCatalog agentA;
+    private EmbeddedConsulCatalog agentB;
+    private ConsulEndpoints endpoints;
+
+    private static final ConsulEndpoints.ConsulCall<ConsulResponse<List<CatalogService>>> GET_SERVICE =
+            consul -> consul.catalogClient().getService("my-service", QueryOptions.BLANK);
+
+    @Before
+    public void setUp() throws Exception {
+        agentA = new EmbeddedConsulCatalog().register("my-service", "host1:container_a:8080", "10.0.0.1", 32001, "dev");
+        agentB = new EmbeddedConsulCatalog().register("my-service", "host1:container_a:8080", "10.0.0.1", 32001, "dev");
+    }
+
+    @After
+    public void tearDown() {
+        if (endpoints != null) {
+            endpoints.close();
+        }
+        agentA.close();
+        agentB.close();
+    }
+
+    private ConsulEndpoints newEndpoints(long hedgeMinDelayMillis) {
+        return new ConsulEndpoints(Arrays.asList(new ConsulConnection(agentA.getUrl(), null),
+                                                 new ConsulConnection(agentB.getUrl(), null)),
+                                   2, 60000, hedgeMinDelayMillis, 4, "test-hedge");
+    }
+
+    private EmbeddedConsulCatalog agentOf(ConsulEndpoint endpoint) {
+        return endpoint.getConnection().getConsulHostPortUrl().equals(agentA.getUrl()) ? agentA : agentB;
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        endpoints = newEndpoints(-1);
+        agentA.setErrorRate(1.0);
+
+        for (int i=0; i<10; i++) {
+            Assert.assertEquals(1, endpoints.execute(GET_SERVICE, true).getResponse().size());
+        }
+
+        // A cooled down after 2 failures and is no longer tried
+        Assert.assertEquals(2, agentA.getCatalogRequests());
+        Assert.assertEquals(10, agentB.getCatalogRequests());
+        Assert.assertEquals(agentB.getUrl(), endpoints.rank().get(0).getConnection().getConsulHostPortUrl());
+
+        agentB.setErrorRate(1.0);
+        try {
+            endpoints.execute(GET_SERVICE, true);
+            Assert.fail();
+        } catch(Exception expected) {
+            // cooling down endpoints are still tried as a last resort
+            Assert.assertEquals(3, agentA.getCatalogRequests());
+        }
+    }
+
+    @Test
+    public void testHedging() throws Exception {
+        endpoints = newEndpoints(20);
+
+        // warm up: builds both clients and measures both
+        for (int i=0; i<4; i++) {
+            endpoints.execute(GET_SERVICE, true);
+        }
+        Assert.assertTrue(agentA.getCatalogRequests() > 0);
+        Assert.assertTrue(agentB.getCatalogRequests() > 0);
+
+        // the agent we would go to next hiccups
+        EmbeddedConsulCatalog slow = agentOf(endpoints.rank().get(0));
+        slow.setLatency(1000, 0);
+        long hedges = endpoints.getHedges();
+        long hedgeWins = endpoints.getHedgeWins();
+
+        long start = System.nanoTime();
+        Assert.assertEquals(1, endpoints.execute(GET_SERVICE, true).getResponse().size());
+        long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assert.assertTrue("took " + tookMillis + "ms", tookMillis < 800);
+        Assert.assertEquals(hedges + 1, endpoints.getHedges());
+        Assert.assertEquals(hedgeWins + 1, endpoints.getHedgeWins());
+
+        // blocking queries are never hedged
+        hedges = endpoints.getHedges();
+        endpoints.execute(GET_SERVICE, false);
+        Assert.assertEquals(hedges, endpoints.getHedges());
+    }
+
+}
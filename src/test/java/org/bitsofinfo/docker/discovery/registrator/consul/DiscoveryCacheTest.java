@@ -0,0 +1,93 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class DiscoveryCacheTest {
+    
+    private static final Executor SAME_THREAD = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    
+    private static class CountingLoader implements DiscoveryCache.Loader {
+        final AtomicInteger loads = new AtomicInteger();
+        public Collection<ServiceInfo> load() throws Exception {
+            loads.incrementAndGet();
+            return new ArrayList<ServiceInfo>();
+        }
+    }
+
+    @Test
+    public void testFreshSnapshotIsServedFromCache() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        DiscoveryCache cache = new DiscoveryCache(loader, SAME_THREAD, 60000, 0);
+        
+        cache.get();
+        cache.get();
+        cache.get();
+        
+        Assert.assertEquals(1, loader.loads.get());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(2, cache.getHits());
+    }
+    
+    @Test
+    public void testStaleSnapshotIsServedWhileRefreshing() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        DiscoveryCache cache = new DiscoveryCache(loader, SAME_THREAD, 1, 60000);
+        
+        cache.get();
+        Thread.sleep(5);
+        cache.get();
+        
+        Assert.assertEquals(2, loader.loads.get());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getStaleHits());
+        Assert.assertEquals(1, cache.getRefreshes());
+    }
+    
+    @Test
+    public void testTooStaleSnapshotBlocks() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        DiscoveryCache cache = new DiscoveryCache(loader, SAME_THREAD, 1, 1);
+        
+        cache.get();
+        Thread.sleep(5);
+        cache.get();
+        
+        Assert.assertEquals(2, loader.loads.get());
+        Assert.assertEquals(2, cache.getMisses());
+        Assert.assertEquals(0, cache.getStaleHits());
+    }
+    
+    @Test
+    public void testIfAvailableNeverLoads() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        DiscoveryCache cache = new DiscoveryCache(loader, SAME_THREAD, 1, 1);
+        
+        Assert.assertNull(cache.getSnapshotIfAvailable());
+        Assert.assertEquals(0, loader.loads.get());
+        
+        DiscoverySnapshot loaded = cache.getSnapshot();
+        Assert.assertSame(loaded, cache.getSnapshotIfAvailable());
+        
+        // expired: still nothing loaded on our behalf
+        Thread.sleep(5);
+        Assert.assertNull(cache.getSnapshotIfAvailable());
+        Assert.assertEquals(1, loader.loads.get());
+        Assert.assertEquals(1, cache.getMisses());
+        
+        cache.invalidate();
+        Assert.assertNull(cache.getSnapshotIfAvailable());
+        Assert.assertEquals(1, loader.loads.get());
+    }
+    
+}
@@ -0,0 +1,265 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates a fleet of N containers, each running a SampleContainerApp
+ * style loop (discoverSnapshot() every pollIntervalMillis, each w/ its own
+ * ConsulDiscovery) against an EmbeddedConsulCatalog and reports discovery
+ * latency percentiles and the request rate the "agent" saw. Each
+ * container's first call (which also builds its Consul client) is
+ * not included in the percentiles.
+ *
+ * Optionally injects agent latency/errors and registration churn.
+ *
+ * Run w/ main() (args: containers durationSeconds pollIntervalMillis), or
+ * programmatically via run().
+ *
+ * @author bitsofinfo
+ *
+ */
+public class DiscoveryLoadHarness {
+
+    public static class Result {
+        public long calls;
+        public long failures;
+        public long p50Micros;
+        public long p99Micros;
+        public long maxMicros;
+        public long agentRequests;
+        public double agentRequestsPerSecond;
+        public long elapsedMillis;
+
+        @Override
+        public String toString() {
+            return "calls=" + calls + " failures=" + failures +
+                   " p50=" + p50Micros + "us p99=" + p99Micros + "us max=" + maxMicros + "us" +
+                   " agentRequests=" + agentRequests +
+                   " agentRequests/s=" + String.format("%.1f", agentRequestsPerSecond) +
+                   " elapsed=" + elapsedMillis + "ms";
+        }
+    }
+
+    private static class Samples {
+        long[] values = new long[1024];
+        int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    private int containers = 50;
+    private long durationMillis = 10000;
+    private long pollIntervalMillis = 1000;
+    private String serviceName = "my-service";
+    private Class<? extends ServiceNameStrategy> serviceNameStrategyClass = OneServiceNameMultiPortStrategy.class;
+    private long agentLatencyMillis = 0;
+    private long agentLatencyJitterMillis = 0;
+    private double agentErrorRate = 0;
+    private long churnIntervalMillis = 0;
+    private long cacheTtlMillis = 0;
+
+    public static void main(String[] args) throws Exception {
+        DiscoveryLoadHarness harness = new DiscoveryLoadHarness();
+        if (args.length > 0) {
+            harness.setContainers(Integer.parseInt(args[0]));
+        }
+        if (args.length > 1) {
+            harness.setDurationMillis(TimeUnit.SECONDS.toMillis(Long.parseLong(args[1])));
+        }
+        if (args.length > 2) {
+            harness.setPollIntervalMillis(Long.parseLong(args[2]));
+        }
+        System.out.println(harness.run());
+    }
+
+    /**
+     * Runs the simulation, blocks for ~durationMillis
+     *
+     * @return
+     * @throws Exception
+     */
+    public Result run() throws Exception {
+
+        final EmbeddedConsulCatalog catalog = new EmbeddedConsulCatalog();
+        List<ConsulDiscovery> discoveries = new ArrayList<ConsulDiscovery>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        try {
+            catalog.setLatency(agentLatencyMillis, agentLatencyJitterMillis);
+
+            for (int i=0; i<containers; i++) {
+                registerContainer(catalog, i);
+            }
+
+            final Samples[] samples = new Samples[containers];
+            final AtomicLong failures = new AtomicLong();
+            final CountDownLatch done = new CountDownLatch(containers);
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+            // errors only once everyone is registered, so setup is not affected
+            catalog.setErrorRate(agentErrorRate);
+            long requestsAtStart = catalog.getRequests();
+            long start = System.nanoTime();
+
+            for (int i=0; i<containers; i++) {
+                final Samples containerSamples = samples[i] = new Samples();
+                final ConsulDiscovery discovery = new ConsulDiscovery()
+                                                        .setConsulUrl(catalog.getUrl())
+                                                        .setServiceName(serviceName)
+                                                        .setMyNodeUniqueTagId("uniqueContainerId" + i)
+                                                        .addPortToDiscover(8080)
+                                                        .addPortToDiscover(8443)
+                                                        .setServiceNameStrategyClass(serviceNameStrategyClass)
+                                                        .setCacheTtlMillis(cacheTtlMillis);
+                discoveries.add(discovery);
+
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            // spread the fleet out rather than polling in lock step
+                            Thread.sleep(ThreadLocalRandom.current().nextLong(Math.max(1, pollIntervalMillis)));
+
+                            boolean first = true;
+                            while (System.nanoTime() < deadline) {
+                                long t0 = System.nanoTime();
+                                try {
+                                    discovery.discoverSnapshot();
+                                    // the first call also builds the client, not representative
+                                    if (!first) {
+                                        containerSamples.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t0));
+                                    }
+                                } catch(Exception e) {
+                                    failures.incrementAndGet();
+                                }
+                                first = false;
+                                Thread.sleep(pollIntervalMillis);
+                            }
+                        } catch(InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }, "load-harness-container-" + i);
+                t.setDaemon(true);
+                threads.add(t);
+                t.start();
+            }
+
+            // registration churn: one container re-registers w/ a new port each interval
+            int churned = 0;
+            while (!done.await(Math.max(10, churnIntervalMillis > 0 ? churnIntervalMillis : 100), TimeUnit.MILLISECONDS)) {
+                if (churnIntervalMillis > 0) {
+                    registerContainer(catalog, churned++ % containers);
+                }
+            }
+
+            Result result = new Result();
+            result.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            result.failures = failures.get();
+            result.agentRequests = catalog.getRequests() - requestsAtStart;
+            result.agentRequestsPerSecond = result.agentRequests * 1000d / Math.max(1, result.elapsedMillis);
+
+            Samples all = new Samples();
+            for (Samples s : samples) {
+                for (int i=0; i<s.size; i++) {
+                    all.add(s.values[i]);
+                }
+            }
+            long[] sorted = Arrays.copyOf(all.values, all.size);
+            Arrays.sort(sorted);
+
+            result.calls = sorted.length + result.failures;
+            result.p50Micros = percentile(sorted, 0.50);
+            result.p99Micros = percentile(sorted, 0.99);
+            result.maxMicros = (sorted.length > 0 ? sorted[sorted.length-1] : 0);
+            return result;
+
+        } finally {
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+            for (ConsulDiscovery discovery : discoveries) {
+                discovery.close();
+            }
+            catalog.close();
+        }
+    }
+
+    private void registerContainer(EmbeddedConsulCatalog catalog, int container) {
+        String address = "10.0." + ((container >> 8) & 0xff) + "." + (container & 0xff);
+        boolean perPortNames = MultiServiceNameSinglePortStrategy.class.equals(serviceNameStrategyClass);
+
+        for (int mappedPort : new int[]{8080, 8443}) {
+            catalog.register(perPortNames ? serviceName + "-" + mappedPort : serviceName,
+                             "docker-host-" + (container % 10) + ":container_" + container + ":" + mappedPort,
+                             address,
+                             32000 + ThreadLocalRandom.current().nextInt(30000),
+                             "dev", "uniqueContainerId" + container);
+        }
+    }
+
+    static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int)Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    public DiscoveryLoadHarness setContainers(int containers) {
+        this.containers = containers;
+        return this;
+    }
+
+    public DiscoveryLoadHarness setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+        return this;
+    }
+
+    public DiscoveryLoadHarness setPollIntervalMillis(long pollIntervalMillis) {
+        this.pollIntervalMillis = pollIntervalMillis;
+        return this;
+    }
+
+    public DiscoveryLoadHarness setServiceNameStrategyClass(Class<? extends ServiceNameStrategy> serviceNameStrategyClass) {
+        this.serviceNameStrategyClass = serviceNameStrategyClass;
+        return this;
+    }
+
+    public DiscoveryLoadHarness setAgentLatency(long latencyMillis, long jitterMillis) {
+        this.agentLatencyMillis = latencyMillis;
+        this.agentLatencyJitterMillis = jitterMillis;
+        return this;
+    }
+
+    public DiscoveryLoadHarness setAgentErrorRate(double agentErrorRate) {
+        this.agentErrorRate = agentErrorRate;
+        return this;
+    }
+
+    /**
+     * Re-register one container every churnIntervalMillis (0 = no churn)
+     */
+    public DiscoveryLoadHarness setChurnIntervalMillis(long churnIntervalMillis) {
+        this.churnIntervalMillis = churnIntervalMillis;
+        return this;
+    }
+
+    public DiscoveryLoadHarness setCacheTtlMillis(long cacheTtlMillis) {
+        this.cacheTtlMillis = cacheTtlMillis;
+        return this;
+    }
+
+}
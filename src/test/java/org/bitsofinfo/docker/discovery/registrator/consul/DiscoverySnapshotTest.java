@@ -0,0 +1,69 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class DiscoverySnapshotTest {
+
+    private static ServiceInfo info(String container, int mappedPort, int exposedPort, String... tags) throws Exception {
+        return new ServiceInfo("my-service",
+                               "host:" + container + ":" + mappedPort,
+                               InetAddress.getByAddress(new byte[]{10,0,0,1}),
+                               exposedPort,
+                               mappedPort,
+                               Arrays.asList(tags));
+    }
+
+    private static DiscoverySnapshot snapshot() throws Exception {
+        return new DiscoverySnapshot(Arrays.asList(info("a", 8080, 32001, "dev", "node-a"),
+                                                   info("a", 8443, 32002, "dev", "node-a"),
+                                                   info("b", 8080, 32003, "dev", "node-b"),
+                                                   info("c", 8080, 32004, "dev", "node-c", "leader")),
+                                     "node-a");
+    }
+
+    @Test
+    public void testMePeersByPort() throws Exception {
+        DiscoverySnapshot snapshot = snapshot();
+
+        Assert.assertEquals(4, snapshot.getAll().size());
+        Assert.assertEquals(2, snapshot.getMe().size());
+        Assert.assertEquals(2, snapshot.getPeers().size());
+
+        Assert.assertEquals(3, snapshot.getAll(8080).size());
+        Assert.assertEquals(1, snapshot.getMe(8443).size());
+        Assert.assertEquals(32002, snapshot.getMe(8443).iterator().next().getExposedPort());
+        Assert.assertEquals(2, snapshot.getPeers(8080).size());
+        Assert.assertTrue(snapshot.getPeers(8443).isEmpty());
+        Assert.assertTrue(snapshot.getAll(9999).isEmpty());
+
+        Assert.assertEquals(Arrays.asList(8080, 8443), Arrays.asList(snapshot.getMappedPorts().toArray()));
+    }
+
+    @Test
+    public void testByTagAndContainer() throws Exception {
+        DiscoverySnapshot snapshot = snapshot();
+
+        Assert.assertEquals(4, snapshot.getWithTag("dev").size());
+        Assert.assertEquals(1, snapshot.getWithTag("leader").size());
+        Assert.assertEquals(2, snapshot.getWithTag("node-a").size());
+        Assert.assertTrue(snapshot.getWithTag("nope").isEmpty());
+
+        Assert.assertEquals(2, snapshot.getContainer("host:a").size());
+        Assert.assertEquals(1, snapshot.getContainer("host:c").size());
+        Assert.assertEquals(3, snapshot.getContainerIds().size());
+
+        ServiceInfo b = snapshot.getWithTag("node-b").iterator().next();
+        Assert.assertEquals(1, snapshot.getContainerOf(b).size());
+    }
+
+    @Test(expected=UnsupportedOperationException.class)
+    public void testImmutable() throws Exception {
+        snapshot().getAll(8080).clear();
+    }
+
+}
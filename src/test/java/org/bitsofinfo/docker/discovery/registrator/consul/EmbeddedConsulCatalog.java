@@ -0,0 +1,613 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the parts of the Consul HTTP API that
+ * ConsulDiscovery uses, so discovery can be tested and load tested
+ * w/o a real agent:
+ *
+ * - GET /v1/catalog/service/{name} (incl. ?tag= filters, all of them or
+ *   w/ setFirstTagOnly() just the first like older agents)
+ * - GET /v1/catalog/services
+ * - GET /v1/health/service/{name} (incl. ?tag= and ?passing), one check per entry
+ * - GET /v1/agent/self (the client pings this when built)
+ *
+ * Blocking queries (?index=&wait=) are honored: the request is held until
+ * the catalog index moves past the given index or the wait elapses. Every
+ * register()/deregister() bumps the index, X-Consul-Index reports the
+ * index of the last change to the requested service (or the whole catalog
+ * for /v1/catalog/services).
+ *
+ * Check states can be changed via setCheckStatus() (default passing),
+ * which bumps the index like a registration does.
+ *
+ * Latency (fixed + random jitter) and errors (HTTP 500 w/ a given
+ * probability) can be injected to see how discovery copes.
+ *
+ * A misbehaving agent that omits or zeroes X-Consul-Index can be
+ * simulated via setReportedIndex().
+ *
+ * Staleness can be simulated too: setLastContact() is reported in
+ * X-Consul-LastContact of ?stale reads and w/ setKnownLeader(false) X-Consul-KnownLeader
+ * is false and, like a real agent, only ?stale reads are answered, all
+ * others fail w/ HTTP 500 "No cluster leader".
+ *
+ * @author bitsofinfo
+ *
+ */
+public class EmbeddedConsulCatalog implements Closeable {
+
+    static {
+        // w/o TCP_NODELAY the JDK server's separate header/body writes hit
+        // Nagle + delayed ACK and every response takes ~40ms
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private static class Entry {
+        final String node;
+        final String address;
+        final String serviceName;
+        final String serviceId;
+        final String serviceAddress;
+        final int servicePort;
+        final List<String> tags;
+
+        Entry(String node, String address, String serviceName, String serviceId,
+              String serviceAddress, int servicePort, List<String> tags) {
+            this.node = node;
+            this.address = address;
+            this.serviceName = serviceName;
+            this.serviceId = serviceId;
+            this.serviceAddress = serviceAddress;
+            this.servicePort = servicePort;
+            this.tags = tags;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // guarded by this, notifyAll() on every change
+    private final Map<String,Map<String,Entry>> services = new TreeMap<String,Map<String,Entry>>();
+    private final Map<String,Long> serviceIndexes = new LinkedHashMap<String,Long>();
+    private final Map<String,String> checkStatuses = new LinkedHashMap<String,String>();
+    private long index = 1;
+
+    private volatile long latencyMillis = 0;
+    private volatile long latencyJitterMillis = 0;
+    private volatile double errorRate = 0;
+    private volatile long lastContactMillis = 0;
+    private volatile boolean knownLeader = true;
+    private volatile Long reportedIndex = null;
+    private volatile boolean firstTagOnly = false;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong catalogRequests = new AtomicLong();
+    private final AtomicLong blockingRequests = new AtomicLong();
+    private final AtomicLong staleRequests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong entriesReturned = new AtomicLong();
+
+    /**
+     * Starts listening on an ephemeral port on 127.0.0.1
+     *
+     * @throws IOException
+     */
+    public EmbeddedConsulCatalog() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+
+        // blocking queries each hold a thread for up to their wait time
+        this.executor = Executors.newCachedThreadPool(new DaemonThreadFactory("embedded-consul-catalog"));
+        this.server.setExecutor(this.executor);
+
+        this.server.createContext("/v1/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    EmbeddedConsulCatalog.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+
+        this.server.start();
+    }
+
+    /**
+     * @return http://127.0.0.1:<port>
+     */
+    public URL getUrl() {
+        try {
+            return new URL("http://127.0.0.1:" + server.getAddress().getPort());
+        } catch(Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Registers (or replaces) a catalog entry the way Registrator would
+     *
+     * @param serviceName
+     * @param serviceId i.e. "<docker-host>:<container-name>:<mappedPort>"
+     * @param serviceAddress
+     * @param servicePort
+     * @param tags
+     * @return
+     */
+    public EmbeddedConsulCatalog register(String serviceName, String serviceId, String serviceAddress,
+                                         int servicePort, String... tags) {
+        String node = serviceId.substring(0, Math.max(0, serviceId.indexOf(':')));
+        Entry entry = new Entry(node, serviceAddress, serviceName, serviceId, serviceAddress,
+                                servicePort, new ArrayList<String>(Arrays.asList(tags)));
+
+        synchronized(this) {
+            Map<String,Entry> entries = services.get(serviceName);
+            if (entries == null) {
+                entries = new LinkedHashMap<String,Entry>();
+                services.put(serviceName, entries);
+            }
+            entries.put(serviceId, entry);
+            changed(serviceName);
+        }
+        return this;
+    }
+
+    /**
+     * Removes the catalog entry w/ the given serviceId (from whatever service it is in)
+     *
+     * @param serviceId
+     * @return true if it existed
+     */
+    public boolean deregister(String serviceId) {
+        synchronized(this) {
+            for (Map.Entry<String,Map<String,Entry>> service : services.entrySet()) {
+                if (service.getValue().remove(serviceId) != null) {
+                    changed(service.getKey());
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Sets the status of the entry's (only) check
+     *
+     * @param serviceId
+     * @param status "passing", "warning" or "critical"
+     * @return true if the entry exists
+     */
+    public boolean setCheckStatus(String serviceId, String status) {
+        synchronized(this) {
+            for (Map.Entry<String,Map<String,Entry>> service : services.entrySet()) {
+                if (service.getValue().containsKey(serviceId)) {
+                    checkStatuses.put(serviceId, status);
+                    changed(service.getKey());
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void changed(String serviceName) {
+        index++;
+        serviceIndexes.put(serviceName, index);
+        notifyAll();
+    }
+
+    /**
+     * Every response is delayed by latencyMillis + [0, jitterMillis)
+     */
+    public EmbeddedConsulCatalog setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * Probability (0..1) that a request is answered w/ HTTP 500
+     */
+    public EmbeddedConsulCatalog setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Reported as X-Consul-LastContact on ?stale reads, ms since the agent's
+     * server last heard from the leader (consistent reads always report 0)
+     */
+    public EmbeddedConsulCatalog setLastContact(long lastContactMillis) {
+        this.lastContactMillis = lastContactMillis;
+        return this;
+    }
+
+    /**
+     * Reported as X-Consul-KnownLeader, when false only ?stale reads succeed
+     */
+    public EmbeddedConsulCatalog setKnownLeader(boolean knownLeader) {
+        this.knownLeader = knownLeader;
+        return this;
+    }
+
+    /**
+     * Misbehaving agent: X-Consul-Index is always reported as the given value 
+     * (or omitted if < 0) rather than the real index, null restores the latter
+     */
+    public EmbeddedConsulCatalog setReportedIndex(Long reportedIndex) {
+        this.reportedIndex = reportedIndex;
+        return this;
+    }
+
+    /**
+     * Like agents older than 1.2.3, only honor the first ?tag= param 
+     * and ignore any further ones
+     */
+    public EmbeddedConsulCatalog setFirstTagOnly(boolean firstTagOnly) {
+        this.firstTagOnly = firstTagOnly;
+        return this;
+    }
+
+    /**
+     * @return all requests received (incl. /v1/agent/self)
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return requests to /v1/catalog/* and /v1/health/*
+     */
+    public long getCatalogRequests() {
+        return catalogRequests.get();
+    }
+
+    /**
+     * @return catalog requests that carried a blocking ?index=
+     */
+    public long getBlockingRequests() {
+        return blockingRequests.get();
+    }
+
+    /**
+     * @return catalog requests that allowed a ?stale read
+     */
+    public long getStaleRequests() {
+        return staleRequests.get();
+    }
+
+    /**
+     * @return requests answered w/ an injected error
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return catalog/health entries sent back, i.e. after ?tag= filtering
+     */
+    public long getEntriesReturned() {
+        return entriesReturned.get();
+    }
+
+    public synchronized long getIndex() {
+        return index;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+
+        String path = exchange.getRequestURI().getPath();
+        Map<String,List<String>> params = parseQuery(exchange.getRequestURI().getRawQuery());
+
+        long latency = this.latencyMillis;
+        if (this.latencyJitterMillis > 0) {
+            latency += ThreadLocalRandom.current().nextLong(this.latencyJitterMillis);
+        }
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        if (path.startsWith("/v1/agent/self")) {
+            respond(exchange, 200, 1, "{}");
+            return;
+        }
+
+        if (!path.startsWith("/v1/catalog/") && !path.startsWith("/v1/health/")) {
+            respond(exchange, 404, 0, "unsupported: " + path);
+            return;
+        }
+
+        catalogRequests.incrementAndGet();
+
+        if (this.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < this.errorRate) {
+            errors.incrementAndGet();
+            respond(exchange, 500, 0, "injected error");
+            return;
+        }
+
+        boolean stale = params.containsKey("stale");
+        if (stale) {
+            staleRequests.incrementAndGet();
+        } else if (!this.knownLeader) {
+            respond(exchange, 500, 0, "No cluster leader");
+            return;
+        }
+
+        String serviceName = null;
+        boolean health = false;
+        if (path.startsWith("/v1/catalog/service/")) {
+            serviceName = URLDecoder.decode(path.substring("/v1/catalog/service/".length()), "UTF-8");
+        } else if (path.startsWith("/v1/health/service/")) {
+            serviceName = URLDecoder.decode(path.substring("/v1/health/service/".length()), "UTF-8");
+            health = true;
+        } else if (!path.equals("/v1/catalog/services")) {
+            respond(exchange, 404, 0, "unsupported: " + path);
+            return;
+        }
+
+        long minIndex = 0;
+        if (params.containsKey("index")) {
+            blockingRequests.incrementAndGet();
+            minIndex = Long.parseLong(first(params, "index"));
+        }
+
+        List<String> tags = params.get("tag");
+        if (this.firstTagOnly && tags != null && tags.size() > 1) {
+            tags = tags.subList(0, 1);
+        }
+
+        long respIndex;
+        String body;
+
+        synchronized(this) {
+            if (minIndex > 0) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(parseWaitMillis(first(params, "wait")));
+                long remaining;
+                while (indexOf(serviceName) <= minIndex && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+
+            respIndex = indexOf(serviceName);
+            if (health) {
+                body = healthJson(serviceName, tags, params.containsKey("passing"));
+            } else {
+                body = (serviceName != null ? serviceJson(serviceName, tags) : servicesJson());
+            }
+        }
+
+        // consistent reads are answered by the leader itself
+        respond(exchange, 200, respIndex, (stale ? this.lastContactMillis : 0), body);
+    }
+
+    private long indexOf(String serviceName) {
+        if (serviceName == null) {
+            return index;
+        }
+        Long serviceIndex = serviceIndexes.get(serviceName);
+        return (serviceIndex != null ? serviceIndex : 1);
+    }
+
+    private String serviceJson(String serviceName, List<String> tags) {
+        StringBuilder json = new StringBuilder("[");
+        Map<String,Entry> entries = services.get(serviceName);
+        if (entries != null) {
+            for (Entry entry : entries.values()) {
+                if (tags != null && !entry.tags.containsAll(tags)) {
+                    continue;
+                }
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                entriesReturned.incrementAndGet();
+                json.append("{\"Node\":").append(quote(entry.node))
+                    .append(",\"Address\":").append(quote(entry.address))
+                    .append(",\"ServiceName\":").append(quote(entry.serviceName))
+                    .append(",\"ServiceID\":").append(quote(entry.serviceId))
+                    .append(",\"ServiceAddress\":").append(quote(entry.serviceAddress))
+                    .append(",\"ServicePort\":").append(entry.servicePort)
+                    .append(",\"ServiceTags\":").append(quote(entry.tags))
+                    .append('}');
+            }
+        }
+        return json.append(']').toString();
+    }
+
+    private String healthJson(String serviceName, List<String> tags, boolean passingOnly) {
+        StringBuilder json = new StringBuilder("[");
+        Map<String,Entry> entries = services.get(serviceName);
+        if (entries != null) {
+            for (Entry entry : entries.values()) {
+                String status = checkStatuses.get(entry.serviceId);
+                status = (status != null ? status : "passing");
+                if ((tags != null && !entry.tags.containsAll(tags)) || (passingOnly && !status.equals("passing"))) {
+                    continue;
+                }
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                entriesReturned.incrementAndGet();
+                json.append("{\"Node\":{\"Node\":").append(quote(entry.node))
+                    .append(",\"Address\":").append(quote(entry.address)).append('}')
+                    .append(",\"Service\":{\"ID\":").append(quote(entry.serviceId))
+                    .append(",\"Service\":").append(quote(entry.serviceName))
+                    .append(",\"Tags\":").append(quote(entry.tags))
+                    .append(",\"Address\":").append(quote(entry.serviceAddress))
+                    .append(",\"Port\":").append(entry.servicePort).append('}')
+                    .append(",\"Checks\":[{\"Node\":").append(quote(entry.node))
+                    .append(",\"CheckID\":").append(quote("service:" + entry.serviceId))
+                    .append(",\"Name\":").append(quote("Service '" + entry.serviceName + "' check"))
+                    .append(",\"Status\":").append(quote(status))
+                    .append(",\"ServiceID\":").append(quote(entry.serviceId))
+                    .append(",\"ServiceName\":").append(quote(entry.serviceName))
+                    .append(",\"ServiceTags\":").append(quote(entry.tags))
+                    .append("}]}");
+            }
+        }
+        return json.append(']').toString();
+    }
+
+    private String servicesJson() {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String,Map<String,Entry>> service : services.entrySet()) {
+            if (service.getValue().isEmpty()) {
+                continue;
+            }
+            Set<String> tags = new LinkedHashSet<String>();
+            for (Entry entry : service.getValue().values()) {
+                tags.addAll(entry.tags);
+            }
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(quote(service.getKey())).append(':').append(quote(tags));
+        }
+        return json.append('}').toString();
+    }
+
+    private static String quote(Collection<String> values) {
+        StringBuilder json = new StringBuilder("[");
+        for (String value : values) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(quote(value));
+        }
+        return json.append(']').toString();
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int)c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    private void respond(HttpExchange exchange, int status, long index, String body) throws IOException {
+        respond(exchange, status, index, 0, body);
+    }
+
+    private void respond(HttpExchange exchange, int status, long index, long lastContactMillis, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        Long reportedIndex = this.reportedIndex;
+        if (reportedIndex == null) {
+            exchange.getResponseHeaders().set("X-Consul-Index", String.valueOf(index));
+        } else if (reportedIndex >= 0) {
+            exchange.getResponseHeaders().set("X-Consul-Index", String.valueOf(reportedIndex));
+        }
+        exchange.getResponseHeaders().set("X-Consul-Knownleader", String.valueOf(this.knownLeader));
+        exchange.getResponseHeaders().set("X-Consul-Lastcontact", String.valueOf(lastContactMillis));
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static Map<String,List<String>> parseQuery(String rawQuery) throws IOException {
+        Map<String,List<String>> params = new LinkedHashMap<String,List<String>>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            String value = (eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            List<String> values = params.get(name);
+            if (values == null) {
+                values = new ArrayList<String>();
+                params.put(name, values);
+            }
+            values.add(value);
+        }
+        return params;
+    }
+
+    private static String first(Map<String,List<String>> params, String name) {
+        List<String> values = params.get(name);
+        return (values == null || values.isEmpty() ? null : values.get(0));
+    }
+
+    /**
+     * Consul wait syntax: "10s", "5m", "500ms", default (and max) 5 minutes
+     */
+    static long parseWaitMillis(String wait) {
+        long max = TimeUnit.MINUTES.toMillis(5);
+        if (wait == null || wait.isEmpty()) {
+            return max;
+        }
+        long millis;
+        if (wait.endsWith("ms")) {
+            millis = Long.parseLong(wait.substring(0, wait.length() - 2));
+        } else if (wait.endsWith("s")) {
+            millis = TimeUnit.SECONDS.toMillis(Long.parseLong(wait.substring(0, wait.length() - 1)));
+        } else if (wait.endsWith("m")) {
+            millis = TimeUnit.MINUTES.toMillis(Long.parseLong(wait.substring(0, wait.length() - 1)));
+        } else {
+            millis = TimeUnit.SECONDS.toMillis(Long.parseLong(wait));
+        }
+        return Math.min(millis, max);
+    }
+
+    /**
+     * Stops the server, in flight blocking queries are dropped
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        synchronized(this) {
+            notifyAll();
+        }
+    }
+
+}
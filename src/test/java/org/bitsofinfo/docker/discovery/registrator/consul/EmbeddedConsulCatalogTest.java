@@ -0,0 +1,753 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orbitz.consul.option.ConsistencyMode;
+
+/**
+ * ConsulDiscovery end to end against the EmbeddedConsulCatalog, no Consul required
+ */
+public class EmbeddedConsulCatalogTest {
+
+    private EmbeddedConsulCatalog catalog;
+    private ConsulDiscovery discovery;
+
+    @Before
+    public void setUp() throws Exception {
+        catalog = new EmbeddedConsulCatalog()
+                    .register("my-service", "host1:container_a:8080", "10.0.0.1", 32001, "dev", "node-a")
+                    .register("my-service", "host1:container_a:8443", "10.0.0.1", 32002, "dev", "node-a")
+                    .register("my-service", "host2:container_b:8080", "10.0.0.2", 32003, "dev", "node-b")
+                    .register("my-service", "host2:container_c:8080", "10.0.0.2", 32004, "prod", "node-c");
+
+        discovery = new ConsulDiscovery()
+                        .setConsulUrl(catalog.getUrl())
+                        .setServiceName("my-service")
+                        .setMyNodeUniqueTagId("node-a")
+                        .addMustHaveTag("dev")
+                        .addPortToDiscover(8080)
+                        .addPortToDiscover(8443)
+                        .setServiceNameStrategyClass(OneServiceNameMultiPortStrategy.class)
+                        .setWatchWaitSeconds(2);
+    }
+
+    @After
+    public void tearDown() {
+        discovery.close();
+        catalog.close();
+    }
+
+    @Test
+    public void testDiscover() throws Exception {
+        Assert.assertEquals(2, discovery.discoverMe().size());
+        Assert.assertEquals(1, discovery.discoverMe(8443).size());
+        Assert.assertEquals(1, discovery.discoverPeers().size());
+        Assert.assertEquals(3, discovery.discoverAll().size());
+
+        ServiceInfo peer = discovery.discoverPeers().iterator().next();
+        Assert.assertEquals("10.0.0.2", peer.getExposedAddress().getHostAddress());
+        Assert.assertEquals(32003, peer.getExposedPort());
+        Assert.assertEquals(8080, peer.getMappedPort());
+    }
+
+    @Test
+    public void testWatchSeesRegistration() throws Exception {
+        final BlockingQueue<Collection<ServiceInfo>> updates = new LinkedBlockingQueue<Collection<ServiceInfo>>();
+
+        ServiceWatch watch = discovery.watchPeers(new DiscoveryListener() {
+            public void onDiscovery(Collection<ServiceInfo> services) {
+                updates.add(services);
+            }
+            public void onError(Exception e) {
+            }
+        });
+
+        try {
+            Assert.assertEquals(1, updates.poll(5, TimeUnit.SECONDS).size());
+
+            catalog.register("my-service", "host3:container_d:8080", "10.0.0.3", 32005, "dev", "node-d");
+            Assert.assertEquals(2, updates.poll(5, TimeUnit.SECONDS).size());
+            Assert.assertTrue(catalog.getBlockingRequests() > 0);
+
+        } finally {
+            watch.close();
+        }
+    }
+
+    @Test
+    public void testWatchRateLimitsMissingIndex() throws Exception {
+        watchWithBadIndex(-1L);
+    }
+
+    @Test
+    public void testWatchRateLimitsZeroIndex() throws Exception {
+        watchWithBadIndex(0L);
+    }
+
+    private void watchWithBadIndex(long reportedIndex) throws Exception {
+        final BlockingQueue<Collection<ServiceInfo>> updates = new LinkedBlockingQueue<Collection<ServiceInfo>>();
+        catalog.setReportedIndex(reportedIndex);
+        discovery.setWatchErrorRetryMillis(1000);
+
+        ServiceWatch watch = discovery.watchPeers(new DiscoveryListener() {
+            public void onDiscovery(Collection<ServiceInfo> services) {
+                updates.add(services);
+            }
+            public void onError(Exception e) {
+            }
+        });
+
+        try {
+            Assert.assertEquals(1, updates.poll(5, TimeUnit.SECONDS).size());
+
+            // every answer returns immediately, the watch must not spin on them
+            long before = catalog.getCatalogRequests();
+            Thread.sleep(2000);
+            long requests = catalog.getCatalogRequests() - before;
+            Assert.assertTrue(requests + " requests in 2s", requests <= 6);
+
+            // but still sees changes
+            catalog.register("my-service", "host3:container_d:8080", "10.0.0.3", 32005, "dev", "node-d");
+            Assert.assertEquals(2, updates.poll(5, TimeUnit.SECONDS).size());
+
+        } finally {
+            watch.close();
+        }
+    }
+
+    @Test
+    public void testWatchSurvivesReconfiguration() throws Exception {
+        // the same agent twice, so watches go through (failover) watch endpoints
+        discovery.setConsulUrls(Arrays.asList(catalog.getUrl(), catalog.getUrl()));
+        final BlockingQueue<Collection<ServiceInfo>> updates = new LinkedBlockingQueue<Collection<ServiceInfo>>();
+
+        ServiceWatch watch = discovery.watchPeers(new DiscoveryListener() {
+            public void onDiscovery(Collection<ServiceInfo> services) {
+                updates.add(services);
+            }
+            public void onError(Exception e) {
+            }
+        });
+
+        try {
+            Assert.assertEquals(1, updates.poll(5, TimeUnit.SECONDS).size());
+
+            // each of these closes the connections the watch started w/
+            discovery.setEndpointCooldownMillis(5000);
+            discovery.setEndpointMaxFailures(5);
+            discovery.setMetrics(new JmxDiscoveryMetrics("reconfigured"));
+            discovery.setWatchWaitSeconds(1);
+
+            catalog.register("my-service", "host3:container_d:8080", "10.0.0.3", 32005, "dev", "node-d");
+            Assert.assertEquals(2, updates.poll(5, TimeUnit.SECONDS).size());
+
+            catalog.deregister("host3:container_d:8080");
+            Assert.assertEquals(1, updates.poll(5, TimeUnit.SECONDS).size());
+
+        } finally {
+            watch.close();
+        }
+    }
+
+    @Test(expected=Exception.class)
+    public void testInjectedErrorsSurface() throws Exception {
+        discovery.discoverAll(); // builds the client while healthy
+        catalog.setErrorRate(1.0);
+        discovery.discoverAll();
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        JmxDiscoveryMetrics metrics = new JmxDiscoveryMetrics("test").register();
+        try {
+            discovery.setMetrics(metrics).setCacheTtlMillis(60000);
+
+            discovery.discoverMe(8080);
+            discovery.discoverPeers();
+            discovery.discoverAll();
+
+            Assert.assertEquals(1, metrics.getDiscoveryLatency().get("discoverMe").getCount());
+            Assert.assertEquals(1, metrics.getDiscoveryLatency().get("discoverPeers").getCount());
+            Assert.assertEquals(1, metrics.getCatalogQueries());
+            Assert.assertEquals(3, metrics.getCatalogEntriesFetched()); // "dev" filtered server side
+            Assert.assertEquals(3, metrics.getCatalogEntriesMatched());
+            Assert.assertEquals(1, metrics.getCacheMisses());
+            Assert.assertEquals(2, metrics.getCacheHits());
+            Assert.assertTrue(metrics.getAgentRequestsByStatus().get("200") >= 1);
+
+            catalog.setErrorRate(1.0);
+            discovery.setCacheTtlMillis(0);
+            try {
+                discovery.discoverAll();
+                Assert.fail();
+            } catch(Exception expected) {
+            }
+            Assert.assertTrue(metrics.getErrorsByType().keySet().toString(), 
+                              metrics.getErrorsByType().containsKey("discoverAll:Exception"));
+            Assert.assertTrue(metrics.getAgentRequestsByStatus().containsKey("500"));
+
+        } finally {
+            metrics.unregister();
+        }
+    }
+
+    @Test
+    public void testCoalesceRequests() throws Exception {
+        discovery.discoverPeers(); // builds the client
+        catalog.setLatency(300, 0);
+        long before = catalog.getCatalogRequests();
+
+        final int callers = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<Collection<ServiceInfo>>> results = new ArrayList<Future<Collection<ServiceInfo>>>();
+            for (int i=0; i<callers; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return discovery.discoverPeers();
+                }));
+            }
+            start.countDown();
+
+            Set<Collection<ServiceInfo>> distinct = Collections.newSetFromMap(new IdentityHashMap<Collection<ServiceInfo>,Boolean>());
+            for (Future<Collection<ServiceInfo>> result : results) {
+                Collection<ServiceInfo> peers = result.get(10, TimeUnit.SECONDS);
+                Assert.assertEquals(1, peers.size());
+                distinct.add(peers);
+            }
+            Assert.assertEquals(callers, distinct.size()); // each caller gets its own copy
+
+            long requests = catalog.getCatalogRequests() - before;
+            Assert.assertTrue(requests + " requests", requests < callers);
+            Assert.assertEquals(callers - requests, discovery.getCoalescedRequests());
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncRunsOnExecutor() throws Exception {
+        discovery.discoverPeers(); // builds the client
+        catalog.setLatency(300, 0);
+
+        // own pool: the caller is not held up by the catalog latency
+        long start = System.nanoTime();
+        CompletableFuture<Collection<ServiceInfo>> peers = discovery.discoverPeersAsync();
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 200);
+        Assert.assertFalse(peers.isDone());
+        Assert.assertEquals(1, peers.get(10, TimeUnit.SECONDS).size());
+
+        // given executor
+        final AtomicInteger handedOff = new AtomicInteger();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            discovery.setAsyncExecutor(command -> {
+                handedOff.incrementAndGet();
+                executor.execute(command);
+            });
+            Assert.assertEquals(3, discovery.discoverAllAsync().get(10, TimeUnit.SECONDS).size());
+            Assert.assertEquals(1, discovery.discoverMeAsync(8443).get(10, TimeUnit.SECONDS).size());
+            Assert.assertEquals(2, handedOff.get());
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncCompletesInlineFromWarmCache() throws Exception {
+        final AtomicInteger handedOff = new AtomicInteger();
+        discovery.setCacheTtlMillis(60000)
+                 .setAsyncExecutor(command -> {
+                     handedOff.incrementAndGet();
+                     new Thread(command).start();
+                 });
+
+        // cold cache: goes to the executor
+        Assert.assertEquals(1, discovery.discoverPeersAsync().get(10, TimeUnit.SECONDS).size());
+        Assert.assertEquals(1, handedOff.get());
+
+        // warm: already complete when returned, no thread hop even if Consul is slow
+        catalog.setLatency(300, 0);
+        CompletableFuture<Collection<ServiceInfo>> peers = discovery.discoverPeersAsync();
+        Assert.assertTrue(peers.isDone());
+        Assert.assertEquals(1, peers.get().size());
+        Assert.assertTrue(discovery.discoverSnapshotAsync().isDone());
+        Assert.assertEquals(1, handedOff.get());
+
+        // dropped from the cache: back to the executor, never a load on the caller
+        discovery.getCache().invalidate();
+        peers = discovery.discoverPeersAsync();
+        Assert.assertEquals(2, handedOff.get());
+        Assert.assertEquals(1, peers.get(10, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    public void testAsyncCompletesExceptionally() throws Exception {
+        discovery.discoverAll(); // builds the client while healthy
+        catalog.setErrorRate(1.0);
+
+        CompletableFuture<Collection<ServiceInfo>> all = discovery.discoverAllAsync();
+        try {
+            all.get(10, TimeUnit.SECONDS);
+            Assert.fail("no failure");
+        } catch(ExecutionException expected) {
+        }
+        Assert.assertTrue(all.isCompletedExceptionally());
+
+        // an executor that refuses the work fails the future rather than the caller
+        catalog.setErrorRate(0);
+        discovery.setAsyncExecutor(command -> {
+            throw new RejectedExecutionException("full");
+        });
+        CompletableFuture<Collection<ServiceInfo>> peers = discovery.discoverPeersAsync();
+        Assert.assertTrue(peers.isCompletedExceptionally());
+        try {
+            peers.join();
+            Assert.fail("no failure");
+        } catch(CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void testSnapshotStore() throws Exception {
+        Path file = Files.createTempDirectory("snapshot-store").resolve("my-service.snapshot");
+
+        discovery.setSnapshotStore(new SnapshotStore(file));
+        discovery.awaitPeers(0, 1, 0, 5000);
+        Assert.assertFalse(Files.exists(file)); // awaitPeers() does not write it either
+
+        Assert.assertFalse(discovery.discoverPeers().iterator().next().isStale());
+        Assert.assertTrue(Files.exists(file));
+
+        // a restarted container answers from disk while Consul is down
+        catalog.setErrorRate(1.0);
+        ConsulDiscovery restarted = discovery.copyConfiguration()
+                                        .setMyNodeUniqueTagId("node-a")
+                                        .setSnapshotStore(new SnapshotStore(file));
+        try {
+            DiscoverySnapshot snapshot = restarted.discoverSnapshot();
+            Assert.assertTrue(snapshot.isStale());
+            Assert.assertEquals(2, snapshot.getMe().size());
+            Assert.assertEquals(1, snapshot.getPeers().size());
+            Assert.assertEquals(2, restarted.discoverMe().size());
+
+            // once Consul is back, live answers replace the disk ones
+            catalog.setErrorRate(0);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (restarted.discoverSnapshot().isStale() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertFalse(restarted.discoverSnapshot().isStale());
+            Assert.assertTrue(restarted.getSnapshotStore().isLive());
+
+            // and Consul going away again is survived
+            catalog.setErrorRate(1.0);
+            Collection<ServiceInfo> peers = restarted.discoverPeers();
+            Assert.assertEquals(1, peers.size());
+            Assert.assertTrue(peers.iterator().next().isStale());
+
+            // awaitPeers() wants live peers, the store does not satisfy it
+            try {
+                restarted.awaitPeers(0, 1, 0, 500);
+                Assert.fail("awaitPeers() answered from the snapshot store");
+            } catch(TimeoutException expected) {
+            }
+
+            restarted.setSnapshotStore(new SnapshotStore(file).setMaxAgeMillis(1));
+            Thread.sleep(5);
+            try {
+                restarted.discoverPeers();
+                Assert.fail("expected the snapshot to be too old");
+            } catch(Exception expected) {
+            }
+
+            // a differently configured discovery sharing the file is never answered from it
+            ConsulDiscovery other = discovery.copyConfiguration()
+                                        .setMyNodeUniqueTagId("node-c")
+                                        .setMustHaveTags(Collections.singletonList("prod"))
+                                        .setSnapshotStore(new SnapshotStore(file));
+            try {
+                other.discoverAll();
+                Assert.fail("expected no snapshot for another query");
+            } catch(Exception expected) {
+            } finally {
+                other.close();
+            }
+
+        } finally {
+            catalog.setErrorRate(0);
+            restarted.close();
+        }
+    }
+
+    @Test
+    public void testCoalescedFetchUpdatesSnapshotStore() throws Exception {
+        Path file = Files.createTempDirectory("snapshot-store").resolve("my-service.snapshot");
+        discovery.discoverPeers(); // builds the client
+        discovery.setSnapshotStore(new SnapshotStore(file));
+        catalog.setLatency(500, 0);
+
+        // awaitPeers() never writes the store, discoverAll() joins its in flight fetch
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            long before = catalog.getCatalogRequests();
+            Future<DiscoverySnapshot> awaiting = executor.submit(() -> discovery.awaitPeers(0, 1, 0, 5000));
+            Thread.sleep(150);
+            Assert.assertEquals(3, discovery.discoverAll().size());
+            awaiting.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(before + 1, catalog.getCatalogRequests());
+
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertTrue(Files.exists(file));
+        Assert.assertTrue(discovery.getSnapshotStore().isLive());
+    }
+
+    @Test
+    public void testAwaitMe() throws Exception {
+        discovery.setMyNodeUniqueTagId("node-z");
+
+        new Thread(() -> {
+            try {
+                Thread.sleep(300);
+                catalog.register("my-service", "host3:container_z:8080", "10.0.0.3", 32006, "dev", "node-z");
+                Thread.sleep(300);
+                catalog.register("my-service", "host3:container_z:8443", "10.0.0.3", 32007, "dev", "node-z");
+            } catch(Exception ignore) {
+            }
+        }).start();
+
+        long start = System.nanoTime();
+        Collection<ServiceInfo> me = discovery.awaitMe(10000);
+        long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assert.assertEquals(2, me.size());
+        Assert.assertTrue("took " + tookMillis + "ms", tookMillis < 5000);
+        Assert.assertTrue(catalog.getBlockingRequests() > 0);
+
+        // already registered: immediate
+        Assert.assertEquals(2, discovery.awaitMe(Arrays.asList(8443), 1000).size());
+    }
+
+    @Test(expected=TimeoutException.class)
+    public void testAwaitMeTimeout() throws Exception {
+        discovery.setMyNodeUniqueTagId("node-never").awaitMe(500);
+    }
+
+    @Test
+    public void testAwaitPeers() throws Exception {
+        // container_b is the only dev peer so far
+        Assert.assertEquals(1, discovery.awaitPeers(1, 1000).getPeers().size());
+
+        new Thread(() -> {
+            try {
+                Thread.sleep(300);
+                for (int i=0; i<3; i++) {
+                    catalog.register("my-service", "host3:container_" + i + ":8080", "10.0.0.3", 32010 + i, "dev", "node-" + i);
+                    Thread.sleep(100);
+                }
+            } catch(Exception ignore) {
+            }
+        }).start();
+
+        // settles on the whole burst rather than the first one that reaches quorum
+        DiscoverySnapshot snapshot = discovery.awaitPeers(8080, 2, 1000, 10000);
+        Assert.assertEquals(4, snapshot.getPeers(8080).size());
+        Assert.assertEquals(1, snapshot.getMe(8080).size());
+        Assert.assertTrue(catalog.getBlockingRequests() > 0);
+    }
+
+    @Test(expected=TimeoutException.class)
+    public void testAwaitPeersTimeout() throws Exception {
+        discovery.awaitPeers(5, 500);
+    }
+
+    @Test
+    public void testMaxStaleRereads() throws Exception {
+        discovery.setConsistencyMode(ConsistencyMode.STALE).setMaxStaleMillis(1000);
+        discovery.discoverAll(); // builds the client
+
+        long before = catalog.getCatalogRequests();
+        catalog.setLastContact(5000);
+        Collection<ServiceInfo> all = discovery.discoverAll();
+
+        // one stale read, too stale, so one default consistency re-read
+        Assert.assertEquals(3, all.size());
+        Assert.assertEquals(before + 2, catalog.getCatalogRequests());
+        Assert.assertEquals(0, all.iterator().next().getLastContactMillis());
+
+        // within bounds: no re-read
+        catalog.setLastContact(500);
+        before = catalog.getCatalogRequests();
+        all = discovery.discoverAll();
+        Assert.assertEquals(before + 1, catalog.getCatalogRequests());
+        Assert.assertEquals(500, all.iterator().next().getLastContactMillis());
+    }
+
+    @Test
+    public void testConsistencySettingsResetCache() throws Exception {
+        discovery.setCacheTtlMillis(60000).setConsistencyMode(ConsistencyMode.STALE);
+        catalog.setLastContact(5000);
+        Assert.assertEquals(5000, discovery.discoverAll().iterator().next().getLastContactMillis());
+
+        // a cached answer too stale for the new bound is not served
+        discovery.setMaxStaleMillis(1000);
+        Assert.assertEquals(0, discovery.discoverAll().iterator().next().getLastContactMillis());
+
+        // nor is one read under the old mode
+        catalog.setLastContact(500);
+        discovery.setMaxStaleMillis(0).setConsistencyMode(ConsistencyMode.STALE);
+        discovery.discoverAll();
+        long stale = catalog.getStaleRequests();
+        discovery.setConsistencyMode(ConsistencyMode.DEFAULT);
+        Assert.assertEquals(0, discovery.discoverAll().iterator().next().getLastContactMillis());
+        Assert.assertEquals(stale, catalog.getStaleRequests());
+    }
+
+    @Test
+    public void testNoLeaderUsesStaleRead() throws Exception {
+        discovery.setConsistencyMode(ConsistencyMode.STALE).setMaxStaleMillis(1000);
+        discovery.discoverAll(); // builds the client
+
+        catalog.setKnownLeader(false).setLastContact(5000);
+        long stale = catalog.getStaleRequests();
+        long before = catalog.getCatalogRequests();
+        Collection<ServiceInfo> all = discovery.discoverAll();
+
+        // re-read failed w/o a leader, the stale answer is kept
+        Assert.assertEquals(3, all.size());
+        Assert.assertEquals(before + 2, catalog.getCatalogRequests());
+        Assert.assertEquals(stale + 1, catalog.getStaleRequests());
+        ServiceInfo info = all.iterator().next();
+        Assert.assertFalse(info.isKnownLeader());
+        Assert.assertEquals(5000, info.getLastContactMillis());
+    }
+
+    @Test
+    public void testWatchRereadDoesNotBlock() throws Exception {
+        discovery.setConsistencyMode(ConsistencyMode.STALE).setMaxStaleMillis(1000).setWatchWaitSeconds(1);
+        final BlockingQueue<Collection<ServiceInfo>> updates = new LinkedBlockingQueue<Collection<ServiceInfo>>();
+
+        ServiceWatch watch = discovery.watchPeers(new DiscoveryListener() {
+            public void onDiscovery(Collection<ServiceInfo> services) {
+                updates.add(services);
+            }
+            public void onError(Exception e) {
+            }
+        });
+
+        try {
+            Assert.assertEquals(1, updates.poll(5, TimeUnit.SECONDS).size());
+
+            // nothing changes: each blocking stale read waits out its 1s and is
+            // too stale, the default consistency re-read must not wait again
+            catalog.setLastContact(5000);
+            long blocking = catalog.getBlockingRequests();
+            long stale = catalog.getStaleRequests();
+            long requests = catalog.getCatalogRequests();
+            Thread.sleep(3500);
+
+            long blockingReads = catalog.getBlockingRequests() - blocking;
+            long staleReads = catalog.getStaleRequests() - stale;
+            long rereads = catalog.getCatalogRequests() - requests - staleReads;
+            Assert.assertTrue(rereads + " re-reads", rereads >= 2);
+            Assert.assertTrue(blockingReads + " blocking vs " + staleReads + " stale", blockingReads <= staleReads + 1);
+
+        } finally {
+            watch.close();
+        }
+    }
+
+    @Test
+    public void testServerSideTagFiltering() throws Exception {
+        discovery.discoverAll(); // builds the client
+
+        // "dev" sent as ?tag=, the "prod" entry never leaves the agent
+        long before = catalog.getEntriesReturned();
+        Assert.assertEquals(3, discovery.discoverAll().size());
+        Assert.assertEquals(3, catalog.getEntriesReturned() - before);
+
+        // discoverMe() also sends myNodeUniqueTagId
+        before = catalog.getEntriesReturned();
+        Assert.assertEquals(2, discovery.discoverMe().size());
+        Assert.assertEquals(2, catalog.getEntriesReturned() - before);
+
+        // off: everything is downloaded and filtered client side, same result
+        discovery.setServerSideTagFiltering(false);
+        before = catalog.getEntriesReturned();
+        Assert.assertEquals(3, discovery.discoverAll().size());
+        Assert.assertEquals(4, catalog.getEntriesReturned() - before);
+
+        before = catalog.getEntriesReturned();
+        Assert.assertEquals(2, discovery.discoverMe().size());
+        Assert.assertEquals(4, catalog.getEntriesReturned() - before);
+    }
+
+    @Test
+    public void testServerSideTagFilteringRechecked() throws Exception {
+        // an older agent only filters by the first tag ("dev"), not by "node-a"
+        catalog.setFirstTagOnly(true);
+
+        long before = catalog.getEntriesReturned();
+        Collection<ServiceInfo> me = discovery.discoverMe();
+        Assert.assertEquals(3, catalog.getEntriesReturned() - before);
+        Assert.assertEquals(2, me.size());
+        for (ServiceInfo info : me) {
+            Assert.assertTrue(info.getTags().contains("node-a"));
+        }
+    }
+
+    @Test
+    public void testServerSideTagFilteringResetsCache() throws Exception {
+        discovery.setCacheTtlMillis(60000);
+        discovery.discoverAll();
+        long before = catalog.getCatalogRequests();
+        discovery.discoverAll();
+        Assert.assertEquals(before, catalog.getCatalogRequests());
+
+        discovery.setServerSideTagFiltering(false);
+        before = catalog.getEntriesReturned();
+        Assert.assertEquals(3, discovery.discoverAll().size());
+        Assert.assertEquals(4, catalog.getEntriesReturned() - before);
+    }
+
+    @Test
+    public void testHealthFilter() throws Exception {
+        catalog.setCheckStatus("host2:container_b:8080", "warning");
+
+        discovery.setHealthFilter(HealthFilter.PASSING);
+        Assert.assertEquals(0, discovery.discoverPeers().size());
+        Assert.assertEquals(HealthStatus.PASSING, discovery.discoverMe().iterator().next().getHealthStatus());
+
+        discovery.setHealthFilter(HealthFilter.PASSING_OR_WARNING);
+        Assert.assertEquals(HealthStatus.WARNING, discovery.discoverPeers().iterator().next().getHealthStatus());
+
+        discovery.setHealthFilter(HealthFilter.NONE);
+        Assert.assertNull(discovery.discoverPeers().iterator().next().getHealthStatus());
+    }
+
+    @Test
+    public void testWatchHealth() throws Exception {
+        final BlockingQueue<Collection<ServiceInfo>> updates = new LinkedBlockingQueue<Collection<ServiceInfo>>();
+
+        discovery.setHealthFilter(HealthFilter.PASSING);
+        ServiceWatch watch = discovery.watchPeers(new DiscoveryListener() {
+            public void onDiscovery(Collection<ServiceInfo> services) {
+                updates.add(services);
+            }
+            public void onError(Exception e) {
+            }
+        });
+
+        try {
+            Assert.assertEquals(1, updates.poll(5, TimeUnit.SECONDS).size());
+
+            catalog.setCheckStatus("host2:container_b:8080", "critical");
+            Assert.assertEquals(0, updates.poll(5, TimeUnit.SECONDS).size());
+
+            catalog.setCheckStatus("host2:container_b:8080", "passing");
+            Assert.assertEquals(1, updates.poll(5, TimeUnit.SECONDS).size());
+
+        } finally {
+            watch.close();
+        }
+    }
+
+    @Test
+    public void testWatchShared() throws Exception {
+        final BlockingQueue<DiscoverySnapshot> updatesA = new LinkedBlockingQueue<DiscoverySnapshot>();
+        final BlockingQueue<DiscoverySnapshot> updatesB = new LinkedBlockingQueue<DiscoverySnapshot>();
+
+        ConsulDiscovery other = discovery.copyConfiguration().setMyNodeUniqueTagId("node-b");
+        WatchHub hub = WatchHub.getDefault();
+
+        WatchHub.Subscription a = discovery.watchShared(new SnapshotListener() {
+            public void onSnapshot(DiscoverySnapshot snapshot) {
+                updatesA.add(snapshot);
+            }
+            public void onError(Exception e) {
+            }
+        });
+        WatchHub.Subscription b = other.watchShared(new SnapshotListener() {
+            public void onSnapshot(DiscoverySnapshot snapshot) {
+                updatesB.add(snapshot);
+            }
+            public void onError(Exception e) {
+            }
+        });
+
+        try {
+            // one watch, two subscribers each seeing themselves as "me"
+            Assert.assertEquals(1, hub.getWatchCount());
+            Assert.assertEquals(2, hub.getSubscriptionCount());
+
+            DiscoverySnapshot snapshotA = updatesA.poll(5, TimeUnit.SECONDS);
+            DiscoverySnapshot snapshotB = updatesB.poll(5, TimeUnit.SECONDS);
+            Assert.assertEquals(3, snapshotA.size());
+            Assert.assertEquals(2, snapshotA.getMe().size());
+            Assert.assertEquals(1, snapshotB.getMe().size());
+
+            catalog.register("my-service", "host3:container_d:8080", "10.0.0.3", 32005, "dev", "node-d");
+            Assert.assertEquals(4, updatesA.poll(5, TimeUnit.SECONDS).size());
+            Assert.assertEquals(4, updatesB.poll(5, TimeUnit.SECONDS).size());
+
+            a.close();
+            Assert.assertEquals(1, hub.getWatchCount());
+            Assert.assertEquals(1, hub.getSubscriptionCount());
+
+        } finally {
+            a.close();
+            b.close();
+            other.close();
+        }
+
+        Assert.assertEquals(0, hub.getWatchCount());
+        Assert.assertTrue(a.isClosed() && b.isClosed());
+    }
+
+    @Test
+    public void testLoadHarness() throws Exception {
+        DiscoveryLoadHarness.Result result = new DiscoveryLoadHarness()
+                                                    .setContainers(5)
+                                                    .setDurationMillis(2500)
+                                                    .setPollIntervalMillis(50)
+                                                    .run();
+
+        Assert.assertEquals(0, result.failures);
+        Assert.assertTrue(result.calls > 0);
+        Assert.assertTrue(result.p99Micros >= result.p50Micros);
+        Assert.assertTrue(result.agentRequests >= result.calls);
+    }
+
+}
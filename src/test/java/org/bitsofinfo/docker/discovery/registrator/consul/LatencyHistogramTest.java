@@ -0,0 +1,43 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        long last = -1;
+        for (long micros = 0; micros < 5000000; micros += 7) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            long upper = LatencyHistogram.upperBoundOf(bucket);
+            Assert.assertTrue(micros <= upper);
+            Assert.assertTrue(upper >= last);
+            Assert.assertTrue("bucket too wide for " + micros, upper - micros <= Math.max(1, micros / 8));
+            last = upper;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentileMicros(0.99));
+
+        for (int i=1; i<=1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+
+        LatencyStats stats = histogram.getStats();
+        Assert.assertEquals(1000, stats.getCount());
+        Assert.assertEquals(500500, stats.getMeanMicros());
+        Assert.assertEquals(1000000, stats.getMaxMicros());
+        Assert.assertEquals(500000, stats.getP50Micros(), 500000 / 8);
+        Assert.assertEquals(990000, stats.getP99Micros(), 990000 / 8);
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getStats().getCount());
+    }
+
+}
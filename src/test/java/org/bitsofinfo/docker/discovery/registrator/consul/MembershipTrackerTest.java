@@ -0,0 +1,92 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class MembershipTrackerTest {
+    
+    private static ServiceInfo info(String container, int exposedPort, String... tags) throws Exception {
+        return new ServiceInfo("my-service", 
+                               "host:" + container + ":8080", 
+                               InetAddress.getByAddress(new byte[]{10,0,0,1}), 
+                               exposedPort, 
+                               8080, 
+                               Arrays.asList(tags));
+    }
+    
+    @Test
+    public void testAddedRemovedChanged() throws Exception {
+        MembershipTracker tracker = new MembershipTracker();
+        
+        MembershipDiff diff = tracker.update(Arrays.asList(info("a", 32001, "dev"), info("b", 32002, "dev")));
+        Assert.assertEquals(2, diff.getAdded().size());
+        Assert.assertTrue(diff.getRemoved().isEmpty());
+        
+        diff = tracker.update(Arrays.asList(info("b", 32099, "dev"), info("c", 32003, "dev")));
+        Assert.assertEquals(1, diff.getAdded().size());
+        Assert.assertEquals("host:c:8080", diff.getAdded().get(0).getServiceId());
+        Assert.assertEquals(1, diff.getRemoved().size());
+        Assert.assertEquals("host:a:8080", diff.getRemoved().get(0).getServiceId());
+        Assert.assertEquals(1, diff.getChanged().size());
+        Assert.assertEquals(32002, diff.getChanged().get(0).getPrevious().getExposedPort());
+        Assert.assertEquals(32099, diff.getChanged().get(0).getCurrent().getExposedPort());
+    }
+    
+    @Test
+    public void testUnchangedSnapshotIsEmptyDiff() throws Exception {
+        MembershipTracker tracker = new MembershipTracker();
+        tracker.update(Arrays.asList(info("a", 32001, "dev"), info("b", 32002, "dev")));
+        
+        // same content, new instances, different order
+        Collection<ServiceInfo> same = Arrays.asList(info("b", 32002, "dev"), info("a", 32001, "dev"));
+        MembershipDiff diff = tracker.update(same);
+        
+        Assert.assertTrue(diff.isEmpty());
+        Assert.assertEquals(MembershipDiff.fingerprint(same), diff.getFingerprint());
+    }
+    
+    @Test
+    public void testFingerprintCollisionIsNotNoChange() throws Exception {
+        MembershipTracker tracker = new MembershipTracker();
+        tracker.update(Arrays.asList(colliding("a", 32001), info("b", 32002, "dev")));
+        
+        // different set, same fingerprint
+        Collection<ServiceInfo> other = Arrays.asList(colliding("c", 32003), info("b", 32002, "dev"));
+        Assert.assertEquals(tracker.getFingerprint(), MembershipDiff.fingerprint(other));
+        
+        MembershipDiff diff = tracker.update(other);
+        Assert.assertEquals(1, diff.getAdded().size());
+        Assert.assertEquals("host:c:8080", diff.getAdded().get(0).getServiceId());
+        Assert.assertEquals(1, diff.getRemoved().size());
+        Assert.assertEquals("host:a:8080", diff.getRemoved().get(0).getServiceId());
+        Assert.assertTrue(tracker.getCurrent().containsKey("host:c:8080"));
+    }
+    
+    private static ServiceInfo colliding(String container, int exposedPort) throws Exception {
+        return new ServiceInfo("my-service", "host:" + container + ":8080", 
+                               InetAddress.getByAddress(new byte[]{10,0,0,1}), 
+                               exposedPort, 8080, Arrays.asList("dev")) {
+            @Override
+            public long getFingerprint() {
+                return 42;
+            }
+        };
+    }
+    
+    @Test
+    public void testTagChangeIsDetected() throws Exception {
+        MembershipTracker tracker = new MembershipTracker();
+        tracker.update(Arrays.asList(info("a", 32001, "dev")));
+        
+        MembershipDiff diff = tracker.update(Arrays.asList(info("a", 32001, "dev", "leader")));
+        Assert.assertEquals(1, diff.getChanged().size());
+        Assert.assertTrue(diff.getAdded().isEmpty());
+        Assert.assertTrue(diff.getRemoved().isEmpty());
+    }
+
+}
@@ -0,0 +1,101 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MultiServiceDiscoveryTest {
+
+    private EmbeddedConsulCatalog catalog;
+
+    @Before
+    public void setUp() throws Exception {
+        catalog = new EmbeddedConsulCatalog()
+                    .register("api-orders", "host1:orders_1:8080", "10.0.0.1", 32001, "dev")
+                    .register("api-orders", "host2:orders_2:8080", "10.0.0.2", 32002, "dev")
+                    .register("api-users", "host1:users_1:8080", "10.0.0.1", 32003, "dev")
+                    .register("api-legacy", "host1:legacy_1:8080", "10.0.0.1", 32004, "prod")
+                    .register("billing", "host3:billing_1:8080", "10.0.0.3", 32005, "dev")
+                    .register("api-users-8080", "host1:users_1:8080", "10.0.0.1", 32003, "dev")
+                    .register("api-orders-8080", "host1:orders_1:8080", "10.0.0.1", 32001, "dev");
+    }
+
+    @After
+    public void tearDown() {
+        catalog.close();
+    }
+
+    private ConsulDiscovery newDiscovery(Class<? extends ServiceNameStrategy> strategy) {
+        return new ConsulDiscovery()
+                    .setConsulUrl(catalog.getUrl())
+                    .addMustHaveTag("dev")
+                    .addPortToDiscover(8080)
+                    .setServiceNameStrategyClass(strategy);
+    }
+
+    @Test
+    public void testPrefix() throws Exception {
+        MultiServiceDiscovery multi = new MultiServiceDiscovery(newDiscovery(OneServiceNameMultiPortStrategy.class))
+                                            .setServiceNamePrefix("api-")
+                                            .addServiceName("billing");
+        try {
+            MultiServiceSnapshot snapshot = multi.discover();
+
+            // api-legacy has no "dev" instance so is never fetched
+            Assert.assertEquals(Arrays.asList("api-orders", "api-orders-8080", "api-users", "api-users-8080", "billing"),
+                                Arrays.asList(snapshot.getServiceNames().toArray()));
+            Assert.assertEquals(2, snapshot.get("api-orders").getAll(8080).size());
+            Assert.assertEquals(1, snapshot.get("billing").size());
+            Assert.assertEquals(6, snapshot.size());
+            Assert.assertTrue(snapshot.isComplete());
+
+        } finally {
+            multi.close();
+        }
+    }
+
+    @Test
+    public void testPortSuffixedNames() throws Exception {
+        MultiServiceDiscovery multi = new MultiServiceDiscovery(newDiscovery(MultiServiceNameSinglePortStrategy.class))
+                                            .setServiceNamePattern(Pattern.compile("api-.*"))
+                                            .setMaxConcurrentQueries(1);
+        try {
+            MultiServiceSnapshot snapshot = multi.discover();
+            Assert.assertEquals(Arrays.asList("api-orders", "api-users"), Arrays.asList(snapshot.getServiceNames().toArray()));
+            Assert.assertEquals(1, snapshot.get("api-orders").size());
+
+        } finally {
+            multi.close();
+        }
+    }
+
+    @Test
+    public void testPartialResults() throws Exception {
+        MultiServiceDiscovery multi = new MultiServiceDiscovery(newDiscovery(OneServiceNameMultiPortStrategy.class))
+                                            .setServiceNames(Arrays.asList("api-orders", "api-users"))
+                                            .setAllowPartialResults(true);
+        try {
+            Assert.assertEquals(2, multi.discover().getServiceNames().size());
+
+            catalog.setErrorRate(1.0);
+            MultiServiceSnapshot snapshot = multi.discover();
+            Assert.assertEquals(0, snapshot.size());
+            Assert.assertEquals(2, snapshot.getFailures().size());
+
+            multi.setAllowPartialResults(false);
+            try {
+                multi.discover();
+                Assert.fail();
+            } catch(Exception expected) {
+            }
+
+        } finally {
+            multi.close();
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.orbitz.consul.CatalogClient;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.catalog.CatalogService;
+import com.orbitz.consul.model.catalog.ImmutableCatalogService;
+import com.orbitz.consul.option.QueryOptions;
+
+public class MultiServiceNameSinglePortStrategyTest {
+
+    private static final List<String> TAGS = Arrays.asList("dev");
+
+    /**
+     * Answers each catalog service name from memory after a per name delay,
+     * or fails it, never touching a CatalogClient
+     */
+    private static class SlowCatalogStrategy extends MultiServiceNameSinglePortStrategy {
+
+        final Map<String,Long> delayMillis = new HashMap<String,Long>();
+        final List<String> failing = new ArrayList<String>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final CountDownLatch interrupted;
+
+        SlowCatalogStrategy(int expectedInterrupts) {
+            this.interrupted = new CountDownLatch(expectedInterrupts);
+        }
+
+        @Override
+        protected ConsulResponse<List<CatalogService>> fetchCatalogService(CatalogClient catalogClient,
+                                                                           String catalogServiceName,
+                                                                           QueryOptions queryOptions) throws Exception {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Long delay = delayMillis.get(catalogServiceName);
+                if (delay != null) {
+                    Thread.sleep(delay);
+                }
+                if (failing.contains(catalogServiceName)) {
+                    throw new Exception("catalog query for " + catalogServiceName + " failed");
+                }
+
+                int mappedPort = Integer.parseInt(catalogServiceName.substring(catalogServiceName.lastIndexOf('-') + 1));
+                List<CatalogService> entries = new ArrayList<CatalogService>();
+                entries.add(ImmutableCatalogService.builder()
+                                .node("host1")
+                                .address("10.0.0.1")
+                                .serviceName(catalogServiceName)
+                                .serviceId("host1:container_1:" + mappedPort)
+                                .serviceAddress("10.0.0.1")
+                                .servicePort(32000 + mappedPort)
+                                .addServiceTags("dev")
+                                .build());
+                return new ConsulResponse<List<CatalogService>>(entries, 0, true, BigInteger.ONE);
+
+            } catch(InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private ExecutorService executor = null;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<Integer> mappedPorts(Collection<ServiceInfo> infos) {
+        List<Integer> ports = new ArrayList<Integer>();
+        for (ServiceInfo info : infos) {
+            ports.add(info.getMappedPort());
+        }
+        return ports;
+    }
+
+    @Test
+    public void testSequentialIgnoresTimeout() throws Exception {
+        SlowCatalogStrategy strategy = new SlowCatalogStrategy(0);
+        strategy.delayMillis.put("my-service-8080", 300L);
+        strategy.setQueryTimeoutMillis(50);
+
+        Collection<ServiceInfo> infos = strategy.discover(null, "my-service", Arrays.asList(8080, 8443), TAGS);
+        Assert.assertEquals(Arrays.asList(8080, 8443), mappedPorts(infos));
+        Assert.assertEquals(1, strategy.maxInFlight.get());
+    }
+
+    @Test
+    public void testConcurrentFanOut() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        SlowCatalogStrategy strategy = new SlowCatalogStrategy(0);
+        strategy.setQueryExecutor(executor);
+        for (int port : Arrays.asList(8080, 8443, 9090, 9443)) {
+            strategy.delayMillis.put("my-service-" + port, 400L);
+        }
+
+        long start = System.nanoTime();
+        Collection<ServiceInfo> infos = strategy.discover(null, "my-service", Arrays.asList(8080, 8443, 9090, 9443), TAGS);
+        long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // results in query order, total latency that of the slowest query
+        Assert.assertEquals(Arrays.asList(8080, 8443, 9090, 9443), mappedPorts(infos));
+        Assert.assertEquals(4, strategy.maxInFlight.get());
+        Assert.assertTrue(tookMillis + "ms", tookMillis < 1200);
+    }
+
+    @Test
+    public void testSharedDeadline() throws Exception {
+        executor = Executors.newFixedThreadPool(6);
+        SlowCatalogStrategy strategy = new SlowCatalogStrategy(5);
+        strategy.setQueryExecutor(executor);
+        strategy.setQueryTimeoutMillis(300);
+        strategy.setAllowPartialResults(true);
+        List<Integer> ports = Arrays.asList(8080, 9001, 9002, 9003, 9004, 9005);
+        for (int port : ports.subList(1, ports.size())) {
+            strategy.delayMillis.put("my-service-" + port, 10000L);
+        }
+
+        // five slow queries time out together, not one after another (5 x 300ms)
+        long start = System.nanoTime();
+        Collection<ServiceInfo> infos = strategy.discover(null, "my-service", ports, TAGS);
+        long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assert.assertEquals(Arrays.asList(8080), mappedPorts(infos));
+        Assert.assertTrue(tookMillis + "ms", tookMillis >= 250 && tookMillis < 1000);
+    }
+
+    @Test
+    public void testTimeoutCancelsQuery() throws Exception {
+        executor = Executors.newFixedThreadPool(2);
+        SlowCatalogStrategy strategy = new SlowCatalogStrategy(1);
+        strategy.setQueryExecutor(executor);
+        strategy.setQueryTimeoutMillis(200);
+        strategy.delayMillis.put("my-service-8443", 10000L);
+
+        try {
+            strategy.discover(null, "my-service", Arrays.asList(8080, 8443), TAGS);
+            Assert.fail("no timeout");
+        } catch(Exception e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("[my-service-8443]"));
+        }
+
+        // the timed out query was interrupted rather than left running
+        Assert.assertTrue(strategy.interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        executor = Executors.newFixedThreadPool(2);
+        SlowCatalogStrategy strategy = new SlowCatalogStrategy(0);
+        strategy.setQueryExecutor(executor);
+        strategy.failing.add("my-service-8443");
+
+        try {
+            strategy.discover(null, "my-service", Arrays.asList(8080, 8443), TAGS);
+            Assert.fail("no failure");
+        } catch(Exception e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("catalog query for my-service-8443 failed"));
+        }
+    }
+
+    @Test
+    public void testPartialResults() throws Exception {
+        executor = Executors.newFixedThreadPool(3);
+        SlowCatalogStrategy strategy = new SlowCatalogStrategy(1);
+        strategy.setQueryExecutor(executor);
+        strategy.setQueryTimeoutMillis(300);
+        strategy.setAllowPartialResults(true);
+        strategy.failing.add("my-service-8443");
+        strategy.delayMillis.put("my-service-9090", 10000L);
+
+        Collection<ServiceInfo> infos = strategy.discover(null, "my-service", Arrays.asList(8080, 8443, 9090), TAGS);
+        Assert.assertEquals(Arrays.asList(8080), mappedPorts(infos));
+
+        // nothing succeeded, partial or not
+        strategy.failing.add("my-service-8080");
+        try {
+            strategy.discover(null, "my-service", Arrays.asList(8080, 8443), TAGS);
+            Assert.fail("no failure");
+        } catch(Exception e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("[my-service-8080, my-service-8443]"));
+        }
+    }
+
+    @Test
+    public void testSequentialPartialResults() throws Exception {
+        SlowCatalogStrategy strategy = new SlowCatalogStrategy(0);
+        strategy.setAllowPartialResults(true);
+        strategy.failing.add("my-service-8080");
+
+        Collection<ServiceInfo> infos = strategy.discover(null, "my-service", Arrays.asList(8080, 8443), TAGS);
+        Assert.assertEquals(Arrays.asList(8443), mappedPorts(infos));
+    }
+
+}
@@ -0,0 +1,167 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PeerLoadBalancerTest {
+
+    @Test
+    public void testEmpty() throws Exception {
+        PeerLoadBalancer balancer = new PeerLoadBalancer();
+        Assert.assertNull(balancer.select());
+
+        // all peers gone
+        balancer.update(ServiceInfoFixtures.serviceInfos(1, 3));
+        balancer.update(Collections.<ServiceInfo>emptyList());
+        Assert.assertTrue(balancer.getPeers().isEmpty());
+        Assert.assertNull(balancer.select());
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        PeerLoadBalancer balancer = new PeerLoadBalancer(LoadBalancingPolicy.ROUND_ROBIN);
+        balancer.update(ServiceInfoFixtures.serviceInfos(1, 4));
+
+        Map<Integer,Integer> counts = new HashMap<Integer,Integer>();
+        for (int i=0; i<300; i++) {
+            counts.merge(balancer.select().getPort(), 1, Integer::sum);
+        }
+        Assert.assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            Assert.assertEquals(100, count);
+        }
+    }
+
+    @Test
+    public void testPowerOfTwoChoicesAvoidsBusyPeer() throws Exception {
+        PeerLoadBalancer balancer = new PeerLoadBalancer(LoadBalancingPolicy.POWER_OF_TWO_CHOICES);
+        balancer.update(ServiceInfoFixtures.serviceInfos(1, 3));
+
+        PeerLoadBalancer.Peer busy = balancer.getPeers().get(0);
+        busy.start();
+        busy.start();
+        for (int i=0; i<100; i++) {
+            Assert.assertNotSame(busy, balancer.select());
+        }
+    }
+
+    @Test
+    public void testEwmaPrefersFastPeer() throws Exception {
+        PeerLoadBalancer balancer = new PeerLoadBalancer(LoadBalancingPolicy.EWMA);
+        balancer.update(ServiceInfoFixtures.serviceInfos(1, 3));
+
+        PeerLoadBalancer.Peer slow = balancer.getPeers().get(0);
+        PeerLoadBalancer.Peer fast = balancer.getPeers().get(1);
+        slow.success(slow.start() - 50000000);
+        fast.success(fast.start() - 1000000);
+
+        for (int i=0; i<100; i++) {
+            Assert.assertSame(fast, balancer.select());
+        }
+        Assert.assertTrue(slow.getEwmaNanos() > fast.getEwmaNanos());
+    }
+
+    @Test
+    public void testEwmaAvoidsFailingPeer() throws Exception {
+        // never ejected, so only its EWMA can keep it from winning
+        PeerLoadBalancer balancer = new PeerLoadBalancer(LoadBalancingPolicy.EWMA).setMaxEjectionPercent(0);
+        balancer.update(ServiceInfoFixtures.serviceInfos(1, 4));
+
+        PeerLoadBalancer.Peer failing = balancer.getPeers().get(0);
+        PeerLoadBalancer.Peer healthy = balancer.getPeers().get(1);
+        healthy.success(healthy.start() - 1000000);
+        for (int i=0; i<10; i++) {
+            failing.failure(failing.start()); // fails instantly
+        }
+        Assert.assertFalse(failing.isEjected());
+        Assert.assertTrue(failing.getEwmaNanos() > healthy.getEwmaNanos());
+
+        for (int i=0; i<100; i++) {
+            Assert.assertNotSame(failing, balancer.select());
+        }
+    }
+
+    @Test
+    public void testEwmaUntriedPeer() throws Exception {
+        PeerLoadBalancer balancer = new PeerLoadBalancer(LoadBalancingPolicy.EWMA);
+        balancer.update(ServiceInfoFixtures.serviceInfos(1, 3));
+
+        // nothing measured yet: in flight requests decide
+        PeerLoadBalancer.Peer untried = balancer.getPeers().get(0);
+        PeerLoadBalancer.Peer healthy = balancer.getPeers().get(1);
+        untried.start();
+        for (int i=0; i<100; i++) {
+            Assert.assertSame(healthy, balancer.select());
+        }
+
+        // untried is assumed typical, its in flight request makes it the busier one
+        healthy.success(healthy.start() - 1000000);
+        for (int i=0; i<100; i++) {
+            Assert.assertSame(healthy, balancer.select());
+        }
+    }
+
+    @Test
+    public void testOutlierEjection() throws Exception {
+        PeerLoadBalancer balancer = new PeerLoadBalancer(LoadBalancingPolicy.ROUND_ROBIN)
+                                        .setMaxConsecutiveFailures(3)
+                                        .setEjectionMillis(60000);
+        balancer.update(ServiceInfoFixtures.serviceInfos(1, 5));
+
+        PeerLoadBalancer.Peer failing = balancer.getPeers().get(0);
+        for (int i=0; i<3; i++) {
+            failing.failure(failing.start());
+        }
+        Assert.assertTrue(failing.isEjected());
+        for (int i=0; i<20; i++) {
+            Assert.assertNotSame(failing, balancer.select());
+        }
+
+        // no more than half of the peers are ejected
+        PeerLoadBalancer.Peer second = balancer.getPeers().get(1);
+        PeerLoadBalancer.Peer third = balancer.getPeers().get(2);
+        for (int i=0; i<3; i++) {
+            second.failure(second.start());
+            third.failure(third.start());
+        }
+        Assert.assertTrue(second.isEjected());
+        Assert.assertFalse(third.isEjected());
+
+        // a success restores it
+        failing.success(failing.start());
+        Assert.assertFalse(failing.isEjected());
+        Assert.assertEquals(0, failing.getInFlight());
+    }
+
+    @Test
+    public void testIncrementalUpdate() throws Exception {
+        PeerLoadBalancer balancer = new PeerLoadBalancer().setMappedPort(8080);
+        List<ServiceInfo> peers = ServiceInfoFixtures.serviceInfos(1, 4);
+        peers.add(ServiceInfoFixtures.serviceInfo(9, 8443));
+        balancer.update(peers);
+        Assert.assertEquals(3, balancer.getPeers().size());
+
+        PeerLoadBalancer.Peer kept = balancer.getPeers().get(1);
+        kept.start();
+
+        // peer 1 leaves, peer 4 joins, peer 3 moves to another exposed port
+        List<ServiceInfo> updated = ServiceInfoFixtures.serviceInfos(1, 5).subList(1, 4);
+        ServiceInfo moved = updated.get(1);
+        updated.set(1, new ServiceInfo(moved.getServiceName(), moved.getServiceId(), moved.getExposedAddress(),
+                                       40000, moved.getMappedPort(), moved.getTags()));
+        balancer.onDiscovery(updated);
+
+        List<PeerLoadBalancer.Peer> current = balancer.getPeers();
+        Assert.assertEquals(3, current.size());
+        Assert.assertSame(kept, current.get(0));
+        Assert.assertEquals(1, current.get(0).getInFlight());
+        Assert.assertEquals(40000, current.get(1).getPort());
+        Assert.assertEquals(0, current.get(1).getInFlight());
+    }
+
+}
@@ -0,0 +1,37 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Registrator style ServiceInfos for tests, one container per index:
+ *
+ * - serviceId "host{i % 10}:container_{i}:{mappedPort}"
+ * - exposed on 10.0.{i / 250}.{i % 250}:{32000 + i}
+ * - tagged "dev" and "node-{i}"
+ */
+final class ServiceInfoFixtures {
+
+    private ServiceInfoFixtures() {
+    }
+
+    static ServiceInfo serviceInfo(int i, int mappedPort) throws Exception {
+        return new ServiceInfo("my-service", "host" + (i % 10) + ":container_" + i + ":" + mappedPort,
+                               InetAddress.getByName("10.0." + (i / 250) + "." + (i % 250)), 32000 + i, mappedPort,
+                               Arrays.asList("dev", "node-" + i));
+    }
+
+    /**
+     * @return serviceInfo(i, 8080) for each i from (inclusive) to to (exclusive)
+     */
+    static List<ServiceInfo> serviceInfos(int from, int to) throws Exception {
+        List<ServiceInfo> infos = new ArrayList<ServiceInfo>();
+        for (int i=from; i<to; i++) {
+            infos.add(serviceInfo(i, 8080));
+        }
+        return infos;
+    }
+
+}
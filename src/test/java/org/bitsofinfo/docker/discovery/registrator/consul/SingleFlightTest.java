@@ -0,0 +1,109 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    private static final int CALLERS = 8;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentCallsShareOne() throws Exception {
+        final SingleFlight<String,Integer> flight = new SingleFlight<String,Integer>();
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i=0; i<CALLERS; i++) {
+            results.add(executor.submit(() -> flight.execute("peers", () -> {
+                runs.incrementAndGet();
+                release.await();
+                return 42;
+            })));
+        }
+
+        // wait until every caller is either running or has joined
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flight.getCalls() + flight.getCoalesced() < CALLERS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        for (Future<Integer> result : results) {
+            Assert.assertEquals(42, result.get(5, TimeUnit.SECONDS).intValue());
+        }
+        Assert.assertEquals(1, runs.get());
+        Assert.assertEquals(1, flight.getCalls());
+        Assert.assertEquals(CALLERS - 1, flight.getCoalesced());
+        Assert.assertEquals(0, flight.getInFlight());
+
+        // nothing in flight anymore, so the next call runs again
+        Assert.assertEquals(43, flight.execute("peers", () -> 43).intValue());
+        Assert.assertEquals(2, flight.getCalls());
+    }
+
+    @Test
+    public void testDistinctKeysDoNotShare() throws Exception {
+        SingleFlight<String,String> flight = new SingleFlight<String,String>();
+        Assert.assertEquals("a", flight.execute("a", () -> flight.execute("b", () -> "b").replace("b", "a")));
+        Assert.assertEquals(2, flight.getCalls());
+        Assert.assertEquals(0, flight.getCoalesced());
+    }
+
+    @Test
+    public void testFailureIsShared() throws Exception {
+        final SingleFlight<String,Integer> flight = new SingleFlight<String,Integer>();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i=0; i<CALLERS; i++) {
+            results.add(executor.submit(() -> flight.execute("peers", () -> {
+                release.await();
+                throw new IllegalStateException("agent down");
+            })));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flight.getCalls() + flight.getCoalesced() < CALLERS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        for (Future<Integer> result : results) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                Assert.fail("expected failure");
+            } catch(ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+                Assert.assertEquals("agent down", e.getCause().getMessage());
+            }
+        }
+        Assert.assertEquals(1, flight.getCalls());
+        Assert.assertEquals(0, flight.getInFlight());
+    }
+
+}
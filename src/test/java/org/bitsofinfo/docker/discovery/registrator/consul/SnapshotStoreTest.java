@@ -0,0 +1,153 @@
+package org.bitsofinfo.docker.discovery.registrator.consul;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SnapshotStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String KEY = "[my-service, 8080, 8443, dev]";
+
+    private Path file;
+    private List<ServiceInfo> services;
+
+    @Before
+    public void setUp() throws Exception {
+        file = folder.getRoot().toPath().resolve("snapshots").resolve("my-service.snapshot");
+
+        ServiceInfo healthy = new ServiceInfo("my-service", "host2:container_b:8080", InetAddress.getByName("10.0.0.2"),
+                                              32003, 8080, Arrays.asList("dev", "node-b"));
+        healthy.setHealthStatus(HealthStatus.WARNING);
+
+        services = new ArrayList<ServiceInfo>();
+        services.add(new ServiceInfo("my-service", "host1:container_a:8080", InetAddress.getByName("10.0.0.1"),
+                                     32001, 8080, Arrays.asList("dev", "node-a")));
+        services.add(new ServiceInfo("my-service", "host1:container_a:8443", InetAddress.getByName("10.0.0.1"),
+                                     32002, 8443, Arrays.asList("dev", "node-a")));
+        services.add(healthy);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        new SnapshotStore(file).update(KEY, services);
+
+        SnapshotStore restarted = new SnapshotStore(file);
+        Assert.assertFalse(restarted.isLive());
+
+        Collection<ServiceInfo> read = restarted.getLastKnownGood(KEY, AddressResolver.getDefault());
+        Assert.assertEquals(new HashSet<ServiceInfo>(services), new HashSet<ServiceInfo>(read));
+        for (ServiceInfo info : read) {
+            Assert.assertTrue(info.isStale());
+            Assert.assertEquals(info.getExposedHost(), info.getExposedAddress().getHostAddress());
+        }
+        Assert.assertTrue(new DiscoverySnapshot(read, "node-a").isStale());
+        Assert.assertEquals(2, new DiscoverySnapshot(read, "node-a").getMe().size());
+    }
+
+    @Test
+    public void testLiveResultsAreServedStale() throws Exception {
+        SnapshotStore store = new SnapshotStore(file);
+        Assert.assertNull(store.getLastKnownGood(KEY, AddressResolver.getDefault()));
+        Assert.assertEquals(-1, store.getLastKnownGoodAgeMillis());
+
+        store.update(KEY, services);
+        Assert.assertTrue(store.isLive());
+        for (ServiceInfo info : store.getLastKnownGood(KEY, AddressResolver.getDefault())) {
+            Assert.assertTrue(info.isStale());
+        }
+        for (ServiceInfo info : services) {
+            Assert.assertFalse(info.isStale());
+        }
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        new SnapshotStore(file).write(KEY, services, System.currentTimeMillis() - 60000);
+
+        Assert.assertNull(new SnapshotStore(file).setMaxAgeMillis(30000).getLastKnownGood(KEY, AddressResolver.getDefault()));
+        Assert.assertEquals(3, new SnapshotStore(file).setMaxAgeMillis(0).getLastKnownGood(KEY, AddressResolver.getDefault()).size());
+    }
+
+    @Test
+    public void testCorruptFileIsIgnored() throws Exception {
+        new SnapshotStore(file).update(KEY, services);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(raf.length() - 3);
+            raf.write(0x5A);
+        }
+
+        SnapshotStore store = new SnapshotStore(file);
+        try {
+            store.read(AddressResolver.getDefault());
+            Assert.fail("expected checksum mismatch");
+        } catch(IOException expected) {
+            Assert.assertTrue(expected.getMessage().contains("checksum"));
+        }
+        Assert.assertNull(store.getLastKnownGood(KEY, AddressResolver.getDefault()));
+    }
+
+    @Test
+    public void testOtherVersionIsIgnored() throws Exception {
+        new SnapshotStore(file).update(KEY, services);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(4);
+            raf.writeShort(SnapshotStore.VERSION + 1);
+        }
+        Assert.assertNull(new SnapshotStore(file).getLastKnownGood(KEY, AddressResolver.getDefault()));
+    }
+
+    @Test
+    public void testOtherQueryIsIgnored() throws Exception {
+        new SnapshotStore(file).update(KEY, services);
+
+        Assert.assertEquals(KEY, new SnapshotStore(file).read(AddressResolver.getDefault()).queryKey);
+        Assert.assertNull(new SnapshotStore(file).getLastKnownGood("[other-service, 8080, dev]", AddressResolver.getDefault()));
+
+        // nor are live results served to another query
+        SnapshotStore store = new SnapshotStore(file);
+        store.update(KEY, services);
+        Assert.assertNull(store.getLastKnownGood("[my-service, 8080, prod]", AddressResolver.getDefault()));
+        Assert.assertEquals(3, store.getLastKnownGood(KEY, AddressResolver.getDefault()).size());
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        List<ServiceInfo> many = new ArrayList<ServiceInfo>();
+        for (int c=0; c<100; c++) {
+            for (int port : new int[]{8080, 8443}) {
+                many.add(new ServiceInfo("my-service", "host" + (c % 10) + ":container_" + c + ":" + port,
+                                         InetAddress.getByName("10.0.0." + (c % 10)), 32000 + c, port,
+                                         Arrays.asList("dev", "my-app", "node-" + c)));
+            }
+        }
+
+        // repeated strings are written once, so it is smaller than just the raw strings
+        int raw = 0;
+        for (ServiceInfo info : many) {
+            raw += info.getServiceName().length() + info.getServiceId().length() + info.getExposedHost().length();
+            for (String tag : info.getTags()) {
+                raw += tag.length();
+            }
+        }
+        byte[] encoded = SnapshotStore.encode(many);
+        Assert.assertTrue(encoded.length + " vs " + raw + " bytes", encoded.length < raw);
+    }
+
+}